@@ -0,0 +1,15 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+/**
+ * Receives the outcome of an operation submitted to {@link AsyncSessionCipher}.
+ * Invoked on the thread that ran the operation.
+ */
+public interface AsyncCallback<T> {
+  public void onSuccess(T result);
+  public void onFailure(Exception exception);
+}
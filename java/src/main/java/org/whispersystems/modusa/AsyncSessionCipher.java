@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+import org.whispersystems.modusa.logging.Log;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.PreKeySignalMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.PreKeyBundle;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+import org.whispersystems.modusa.util.KeyedSerialExecutor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A non-blocking front end to {@link SessionCipher} and {@link SessionBuilder}.
+ * <p>
+ * Every operation is queued and run on an {@link Executor}, and its result is
+ * delivered through the returned {@link Future} and an optional {@link AsyncCallback}.
+ * Operations for the same remote address run one at a time in the order they were
+ * submitted, while operations for different addresses run concurrently.
+ * <p>
+ * When no executor is supplied, virtual threads are used if the runtime supports
+ * them, and a cached pool of daemon threads otherwise.  That executor belongs to
+ * this instance and is released with {@link #shutdown()}.
+ */
+public class AsyncSessionCipher {
+
+  private static final String TAG = AsyncSessionCipher.class.getSimpleName();
+
+  private final SignalProtocolStore                        store;
+  private final KeyedSerialExecutor<SignalProtocolAddress> executor;
+  private final ExecutorService                            ownedExecutor;
+
+  private volatile boolean shutdown;
+
+  public AsyncSessionCipher(SignalProtocolStore store) {
+    this(store, createDefaultExecutor(), true);
+  }
+
+  /**
+   * @param store    The store holding the sessions to operate on.
+   * @param executor The {@link Executor} that operations are run on.
+   */
+  public AsyncSessionCipher(SignalProtocolStore store, Executor executor) {
+    this(store, executor, false);
+  }
+
+  private AsyncSessionCipher(SignalProtocolStore store, Executor executor, boolean owned) {
+    this.store         = store;
+    this.executor      = new KeyedSerialExecutor<>(executor);
+    this.ownedExecutor = owned ? (ExecutorService)executor : null;
+  }
+
+  /**
+   * Stop accepting operations and let those already queued finish.  Operations
+   * submitted afterwards fail with a {@link RejectedExecutionException}.
+   * <p>
+   * Only the default executor is shut down, once every queued operation has run.  An
+   * executor passed to the constructor belongs to the caller and is left running.
+   */
+  public void shutdown() {
+    shutdown = true;
+
+    if (ownedExecutor != null) {
+      executor.whenIdle(new Runnable() {
+        @Override
+        public void run() {
+          ownedExecutor.shutdown();
+        }
+      });
+    }
+  }
+
+  /**
+   * @see SessionCipher#encrypt(byte[])
+   */
+  public Future<CiphertextMessage> encrypt(SignalProtocolAddress remoteAddress, byte[] paddedMessage) {
+    return encrypt(remoteAddress, paddedMessage, null);
+  }
+
+  public Future<CiphertextMessage> encrypt(final SignalProtocolAddress remoteAddress,
+                                           final byte[] paddedMessage,
+                                           AsyncCallback<CiphertextMessage> callback)
+  {
+    return submit(remoteAddress, new Callable<CiphertextMessage>() {
+      @Override
+      public CiphertextMessage call() throws Exception {
+        return new SessionCipher(store, remoteAddress).encrypt(paddedMessage);
+      }
+    }, callback);
+  }
+
+  /**
+   * @see SessionCipher#decrypt(PreKeySignalMessage)
+   */
+  public Future<byte[]> decrypt(SignalProtocolAddress remoteAddress, PreKeySignalMessage ciphertext) {
+    return decrypt(remoteAddress, ciphertext, null);
+  }
+
+  public Future<byte[]> decrypt(final SignalProtocolAddress remoteAddress,
+                                final PreKeySignalMessage ciphertext,
+                                AsyncCallback<byte[]> callback)
+  {
+    return submit(remoteAddress, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return new SessionCipher(store, remoteAddress).decrypt(ciphertext);
+      }
+    }, callback);
+  }
+
+  /**
+   * @see SessionCipher#decrypt(SignalMessage)
+   */
+  public Future<byte[]> decrypt(SignalProtocolAddress remoteAddress, SignalMessage ciphertext) {
+    return decrypt(remoteAddress, ciphertext, null);
+  }
+
+  public Future<byte[]> decrypt(final SignalProtocolAddress remoteAddress,
+                                final SignalMessage ciphertext,
+                                AsyncCallback<byte[]> callback)
+  {
+    return submit(remoteAddress, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return new SessionCipher(store, remoteAddress).decrypt(ciphertext);
+      }
+    }, callback);
+  }
+
+  /**
+   * @see SessionBuilder#process(PreKeyBundle)
+   */
+  public Future<Void> process(SignalProtocolAddress remoteAddress, PreKeyBundle preKey) {
+    return process(remoteAddress, preKey, null);
+  }
+
+  public Future<Void> process(final SignalProtocolAddress remoteAddress,
+                              final PreKeyBundle preKey,
+                              AsyncCallback<Void> callback)
+  {
+    return submit(remoteAddress, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        new SessionBuilder(store, remoteAddress).process(preKey);
+        return null;
+      }
+    }, callback);
+  }
+
+  private <T> Future<T> submit(SignalProtocolAddress remoteAddress, Callable<T> operation,
+                               AsyncCallback<T> callback)
+  {
+    if (shutdown) {
+      throw new RejectedExecutionException("AsyncSessionCipher has been shut down");
+    }
+
+    CallbackFutureTask<T> task = new CallbackFutureTask<>(operation, callback);
+    executor.execute(remoteAddress, task);
+
+    return task;
+  }
+
+  private static ExecutorService createDefaultExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "AsyncSessionCipher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  private static class CallbackFutureTask<T> extends FutureTask<T>
+      implements KeyedSerialExecutor.RejectableTask
+  {
+
+    private final AsyncCallback<T> callback;
+
+    CallbackFutureTask(Callable<T> callable, AsyncCallback<T> callback) {
+      super(callable);
+      this.callback = callback;
+    }
+
+    @Override
+    public void reject(RuntimeException cause) {
+      setException(cause);
+    }
+
+    @Override
+    protected void done() {
+      if (callback == null || isCancelled()) return;
+
+      try {
+        T result;
+
+        try {
+          result = get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) callback.onFailure((Exception)e.getCause());
+          else                                   callback.onFailure(e);
+          return;
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        callback.onSuccess(result);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "AsyncCallback failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,12 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+import java.util.List;
+
+public interface BatchDecryptionCallback {
+  public void handlePlaintexts(List<DecryptionResult> results);
+}
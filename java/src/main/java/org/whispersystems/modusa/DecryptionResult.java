@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+/**
+ * The outcome of decrypting a single message as part of a batch.
+ * <p>
+ * Exactly one of {@link #getPlaintext()} or {@link #getException()} is non-null.
+ */
+public class DecryptionResult {
+
+  private final byte[]    plaintext;
+  private final Exception exception;
+
+  public DecryptionResult(byte[] plaintext) {
+    this.plaintext = plaintext;
+    this.exception = null;
+  }
+
+  public DecryptionResult(Exception exception) {
+    this.plaintext = null;
+    this.exception = exception;
+  }
+
+  public boolean isSuccess() {
+    return exception == null;
+  }
+
+  /**
+   * @return The decrypted plaintext, or null if decryption failed.
+   */
+  public byte[] getPlaintext() {
+    return plaintext;
+  }
+
+  /**
+   * @return The reason decryption failed, or null if it succeeded.
+   */
+  public Exception getException() {
+    return exception;
+  }
+}
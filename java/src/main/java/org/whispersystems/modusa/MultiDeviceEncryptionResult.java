@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of encrypting one message to several devices with
+ * {@link MultiDeviceSessionCipher}.
+ * <p>
+ * Every requested address appears in exactly one of {@link #getCiphertexts()}
+ * or {@link #getFailures()}.
+ */
+public class MultiDeviceEncryptionResult {
+
+  private final Map<SignalProtocolAddress, CiphertextMessage> ciphertexts;
+  private final Map<SignalProtocolAddress, Exception>         failures;
+
+  public MultiDeviceEncryptionResult(Map<SignalProtocolAddress, CiphertextMessage> ciphertexts,
+                                     Map<SignalProtocolAddress, Exception> failures)
+  {
+    this.ciphertexts = Collections.unmodifiableMap(ciphertexts);
+    this.failures    = Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * @return The ciphertext for every device that was successfully encrypted to.
+   */
+  public Map<SignalProtocolAddress, CiphertextMessage> getCiphertexts() {
+    return ciphertexts;
+  }
+
+  /**
+   * @return The reason encryption failed for every device that could not be encrypted to,
+   *         for instance an {@link UntrustedIdentityException} or a {@link NoSessionException}.
+   */
+  public Map<SignalProtocolAddress, Exception> getFailures() {
+    return failures;
+  }
+
+  public boolean hasFailures() {
+    return !failures.isEmpty();
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa;
+
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.state.IdentityKeyStore;
+import org.whispersystems.modusa.state.PreKeyStore;
+import org.whispersystems.modusa.state.SessionStore;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+import org.whispersystems.modusa.state.SignedPreKeyStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Encrypts a single message to every device session of a recipient at once.
+ * <p>
+ * Each device has an independent session, so the per-device encryptions are
+ * submitted to an {@link Executor} and run in parallel.  A failure on one device
+ * is reported in the {@link MultiDeviceEncryptionResult} and does not prevent the
+ * message from being encrypted to the others.
+ */
+public class MultiDeviceSessionCipher {
+
+  private final SessionStore      sessionStore;
+  private final PreKeyStore       preKeyStore;
+  private final SignedPreKeyStore signedPreKeyStore;
+  private final IdentityKeyStore  identityKeyStore;
+  private final Executor          executor;
+
+  /**
+   * Construct a MultiDeviceSessionCipher.
+   *
+   * @param executor The {@link Executor} that per-device encryptions are run on.  Encryptions
+   *                 it rejects are run on the calling thread instead.
+   */
+  public MultiDeviceSessionCipher(SessionStore sessionStore, PreKeyStore preKeyStore,
+                                  SignedPreKeyStore signedPreKeyStore, IdentityKeyStore identityKeyStore,
+                                  Executor executor)
+  {
+    this.sessionStore      = sessionStore;
+    this.preKeyStore       = preKeyStore;
+    this.signedPreKeyStore = signedPreKeyStore;
+    this.identityKeyStore  = identityKeyStore;
+    this.executor          = executor;
+  }
+
+  public MultiDeviceSessionCipher(SignalProtocolStore store, Executor executor) {
+    this(store, store, store, store, executor);
+  }
+
+  /**
+   * Encrypt a message to every device of a recipient that there is a session with.
+   *
+   * @param  name          The name of the recipient.
+   * @param  paddedMessage The plaintext message bytes, optionally padded to a constant multiple.
+   * @return The ciphertext for each device, and the failure for each device that could not
+   *         be encrypted to.
+   * @throws InterruptedException if interrupted while waiting for the encryptions to complete.
+   */
+  public MultiDeviceEncryptionResult encrypt(String name, byte[] paddedMessage)
+      throws InterruptedException
+  {
+    List<SignalProtocolAddress> addresses     = new ArrayList<>();
+    SignalProtocolAddress       primaryDevice = new SignalProtocolAddress(name, 1);
+
+    if (sessionStore.containsSession(primaryDevice)) {
+      addresses.add(primaryDevice);
+    }
+
+    for (int deviceId : sessionStore.getSubDeviceSessions(name)) {
+      addresses.add(new SignalProtocolAddress(name, deviceId));
+    }
+
+    return encrypt(addresses, paddedMessage);
+  }
+
+  /**
+   * Encrypt a message to each of a set of devices.
+   *
+   * @param  addresses     The devices to encrypt to.
+   * @param  paddedMessage The plaintext message bytes, optionally padded to a constant multiple.
+   * @return The ciphertext for each device, and the failure for each device that could not
+   *         be encrypted to.
+   * @throws InterruptedException if interrupted while waiting for the encryptions to complete.
+   */
+  public MultiDeviceEncryptionResult encrypt(Collection<SignalProtocolAddress> addresses,
+                                             final byte[] paddedMessage)
+      throws InterruptedException
+  {
+    Map<SignalProtocolAddress, FutureTask<CiphertextMessage>> tasks = new LinkedHashMap<>();
+
+    for (final SignalProtocolAddress address : addresses) {
+      if (tasks.containsKey(address)) continue;
+
+      FutureTask<CiphertextMessage> task = new FutureTask<>(new Callable<CiphertextMessage>() {
+        @Override
+        public CiphertextMessage call() throws Exception {
+          if (!sessionStore.containsSession(address)) {
+            throw new NoSessionException("No session for: " + address);
+          }
+
+          return new SessionCipher(sessionStore, preKeyStore, signedPreKeyStore,
+                                   identityKeyStore, address).encrypt(paddedMessage);
+        }
+      });
+
+      tasks.put(address, task);
+
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+
+    Map<SignalProtocolAddress, CiphertextMessage> ciphertexts = new LinkedHashMap<>();
+    Map<SignalProtocolAddress, Exception>         failures    = new LinkedHashMap<>();
+
+    try {
+      for (Map.Entry<SignalProtocolAddress, FutureTask<CiphertextMessage>> task : tasks.entrySet()) {
+        try {
+          ciphertexts.put(task.getKey(), task.getValue().get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+
+          if      (cause instanceof Exception) failures.put(task.getKey(), (Exception)cause);
+          else if (cause instanceof Error)     throw (Error)cause;
+          else                                 throw new AssertionError(cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      for (FutureTask<CiphertextMessage> task : tasks.values()) {
+        task.cancel(false);
+      }
+
+      throw e;
+    }
+
+    return new MultiDeviceEncryptionResult(ciphertexts, failures);
+  }
+}
@@ -10,15 +10,18 @@ import org.whispersystems.modusa.ecc.Curve;
 import org.whispersystems.modusa.ecc.ECKeyPair;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.logging.Log;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
 import org.whispersystems.modusa.protocol.PreKeySignalMessage;
 import org.whispersystems.modusa.protocol.SignalMessage;
 import org.whispersystems.modusa.ratchet.AliceSignalProtocolParameters;
 import org.whispersystems.modusa.ratchet.BobSignalProtocolParameters;
 import org.whispersystems.modusa.ratchet.RatchetingSession;
 import org.whispersystems.modusa.state.*;
+import org.whispersystems.modusa.state.impl.InMemorySignedPreKeyVerificationCache;
 import org.whispersystems.modusa.util.guava.Optional;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * SessionBuilder is responsible for setting up encrypted sessions.
@@ -40,11 +43,15 @@ public class SessionBuilder {
 
   private static final String TAG = SessionBuilder.class.getSimpleName();
 
+  private static final SignedPreKeyVerificationCache DEFAULT_VERIFICATION_CACHE = new InMemorySignedPreKeyVerificationCache();
+
   private final SessionStore      sessionStore;
   private final PreKeyStore       preKeyStore;
   private final SignedPreKeyStore signedPreKeyStore;
   private final IdentityKeyStore  identityKeyStore;
   private final SignalProtocolAddress remoteAddress;
+  private final Lock              sessionLock;
+  private final SignedPreKeyVerificationCache verificationCache;
 
   /**
    * Constructs a SessionBuilder.
@@ -59,12 +66,31 @@ public class SessionBuilder {
                         SignedPreKeyStore signedPreKeyStore,
                         IdentityKeyStore identityKeyStore,
                         SignalProtocolAddress remoteAddress)
+  {
+    this(sessionStore, preKeyStore, signedPreKeyStore, identityKeyStore, remoteAddress, DEFAULT_VERIFICATION_CACHE);
+  }
+
+  /**
+   * Constructs a SessionBuilder that records verified signed PreKey signatures in the
+   * given cache, rather than the cache shared by all other SessionBuilders.
+   *
+   * @param verificationCache The {@link SignedPreKeyVerificationCache} consulted before verifying
+   *                          the signature on a {@link PreKeyBundle}'s signed PreKey.
+   */
+  public SessionBuilder(SessionStore sessionStore,
+                        PreKeyStore preKeyStore,
+                        SignedPreKeyStore signedPreKeyStore,
+                        IdentityKeyStore identityKeyStore,
+                        SignalProtocolAddress remoteAddress,
+                        SignedPreKeyVerificationCache verificationCache)
   {
     this.sessionStore      = sessionStore;
     this.preKeyStore       = preKeyStore;
     this.signedPreKeyStore = signedPreKeyStore;
     this.identityKeyStore  = identityKeyStore;
     this.remoteAddress     = remoteAddress;
+    this.sessionLock       = SessionCipher.getSessionLock(remoteAddress);
+    this.verificationCache = verificationCache;
   }
 
   /**
@@ -116,16 +142,8 @@ public class SessionBuilder {
     }
 
     ECKeyPair ourSignedPreKey = signedPreKeyStore.loadSignedPreKey(message.getSignedPreKeyId()).getKeyPair();
-    ECKeyPair ourOneTimePreKey;
     IdentityKeyPair ourIdentityKey = identityKeyStore.getIdentityKeyPair();
 
-    if(message.getPreKeyId().isPresent()) {
-      ourOneTimePreKey = preKeyStore.loadPreKey(message.getPreKeyId().get()).getKeyPair();
-    }
-    else {
-      ourOneTimePreKey = Curve.generateKeyPair();
-    }
-
     BobSignalProtocolParameters.Builder parameters = BobSignalProtocolParameters.newBuilder();
 
     parameters.setTheirBaseKey(message.getBaseKey())
@@ -135,14 +153,14 @@ public class SessionBuilder {
               .setOurRatchetKey(ourSignedPreKey);
 
     if (message.getPreKeyId().isPresent()) {
-      parameters.setOurOneTimePreKey(Optional.of(ourOneTimePreKey));
+      parameters.setOurOneTimePreKey(Optional.of(preKeyStore.loadPreKey(message.getPreKeyId().get()).getKeyPair()));
     } else {
       parameters.setOurOneTimePreKey(Optional.<ECKeyPair>absent());
     }
 
     if (!sessionRecord.isFresh()) sessionRecord.archiveCurrentState();
 
-    RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
+    RatchetingSession.initializeSession(sessionRecord.getSessionState(), message.getMessageVersion(), parameters.create());
 
     sessionRecord.getSessionState().setLocalRegistrationId(identityKeyStore.getLocalRegistrationId());
     sessionRecord.getSessionState().setRemoteRegistrationId(message.getRegistrationId());
@@ -158,6 +176,15 @@ public class SessionBuilder {
   /**
    * Build a new session from a {@link org.whispersystems.modusa.state.PreKeyBundle} retrieved from
    * a server.
+   * <p>
+   * The session version is the lower of the bundle's version and
+   * {@link CiphertextMessage#CURRENT_VERSION}.  The bundle's version is not covered by the
+   * signed PreKey signature, so whoever serves the bundle can lower it, and a session that
+   * could have been version 4 is then built as version 3 without any error.  A version 3
+   * session is still a complete, authenticated session; it only gives up AES-GCM for
+   * AES-CBC with HMAC-SHA256.  Clients that must not accept that should compare
+   * {@link org.whispersystems.modusa.state.SessionState#getSessionVersion()} of the stored
+   * session with the version they expect.
    *
    * @param preKey A PreKey for the destination recipient, retrieved from a server.
    * @throws InvalidKeyException when the {@link org.whispersystems.modusa.state.PreKeyBundle} is
@@ -167,25 +194,24 @@ public class SessionBuilder {
    *                                                                  trusted.
    */
   public void process(PreKeyBundle preKey) throws InvalidKeyException, UntrustedIdentityException, NoSuchAlgorithmException {
-    synchronized (SessionCipher.SESSION_LOCK) {
+    sessionLock.lock();
+    try {
       if (!identityKeyStore.isTrustedIdentity(remoteAddress, preKey.getIdentityKey(), IdentityKeyStore.Direction.SENDING)) {
         throw new UntrustedIdentityException(remoteAddress.getName(), preKey.getIdentityKey());
       }
 
-      if (preKey.getSignedPreKey() != null &&
-          !Curve.verifySignature(preKey.getIdentityKey().getPublicKey(),
-                                 preKey.getSignedPreKey().serialize(),
-                                 preKey.getSignedPreKeySignature()))
-      {
-        throw new InvalidKeyException("Invalid signature on device key!");
-      }
-
       if (preKey.getSignedPreKey() == null) {
         throw new InvalidKeyException("No signed prekey!");
       }
 
+      verifySignedPreKey(preKey);
+
+      if (preKey.getVersion() < CiphertextMessage.MIN_VERSION) {
+        throw new InvalidKeyException("Unsupported PreKeyBundle version: " + preKey.getVersion());
+      }
+
       SessionRecord         sessionRecord        = sessionStore.loadSession(remoteAddress);
-      ECKeyPair             ourBaseKey           = Curve.generateKeyPair();
+      ECKeyPair             ourBaseKey           = Curve.generateEphemeralKeyPair();
       ECPublicKey           theirSignedPreKey    = preKey.getSignedPreKey();
       Optional<ECPublicKey> theirOneTimePreKey   = Optional.fromNullable(preKey.getPreKey());
       Optional<Integer>     theirOneTimePreKeyId = theirOneTimePreKey.isPresent() ? Optional.of(preKey.getPreKeyId()) :
@@ -202,15 +228,42 @@ public class SessionBuilder {
 
       if (!sessionRecord.isFresh()) sessionRecord.archiveCurrentState();
 
-      RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
+      int sessionVersion = Math.min(preKey.getVersion(), CiphertextMessage.CURRENT_VERSION);
+
+      RatchetingSession.initializeSession(sessionRecord.getSessionState(), sessionVersion, parameters.create());
 
       sessionRecord.getSessionState().setUnacknowledgedPreKeyMessage(theirOneTimePreKeyId, preKey.getSignedPreKeyId(), ourBaseKey.getPublicKey());
       sessionRecord.getSessionState().setLocalRegistrationId(identityKeyStore.getLocalRegistrationId());
       sessionRecord.getSessionState().setRemoteRegistrationId(preKey.getRegistrationId());
       sessionRecord.getSessionState().setAliceBaseKey(ourBaseKey.getPublicKey().serialize());
 
+      // Only the public half of the base key is kept once the session exists.
+      Curve.zeroize(ourBaseKey);
+
       identityKeyStore.saveIdentity(remoteAddress, preKey.getIdentityKey());
       sessionStore.storeSession(remoteAddress, sessionRecord);
+    } finally {
+      sessionLock.unlock();
     }
   }
+
+  private void verifySignedPreKey(PreKeyBundle preKey) throws InvalidKeyException {
+    IdentityKey identityKey  = preKey.getIdentityKey();
+    ECPublicKey signedPreKey = preKey.getSignedPreKey();
+    byte[]      signature    = preKey.getSignedPreKeySignature();
+
+    if (signature == null) {
+      throw new InvalidKeyException("No signed prekey signature!");
+    }
+
+    if (verificationCache.isVerified(identityKey, signedPreKey, signature)) {
+      return;
+    }
+
+    if (!Curve.verifySignature(identityKey.getPublicKey(), signedPreKey.serialize(), signature)) {
+      throw new InvalidKeyException("Invalid signature on device key!");
+    }
+
+    verificationCache.setVerified(identityKey, signedPreKey, signature);
+  }
 }
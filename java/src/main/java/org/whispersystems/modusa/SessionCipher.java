@@ -5,6 +5,11 @@
  */
 package org.whispersystems.modusa;
 
+import com.google.protobuf.ByteString;
+
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+import org.whispersystems.modusa.crypto.DecryptingInputStream;
+import org.whispersystems.modusa.crypto.EncryptingOutputStream;
 import org.whispersystems.modusa.ecc.Curve;
 import org.whispersystems.modusa.ecc.ECKeyPair;
 import org.whispersystems.modusa.ecc.ECPublicKey;
@@ -14,6 +19,7 @@ import org.whispersystems.modusa.protocol.SignalMessage;
 import org.whispersystems.modusa.ratchet.*;
 import org.whispersystems.modusa.state.SignalProtocolStore;
 import org.whispersystems.modusa.state.IdentityKeyStore;
+import org.whispersystems.modusa.state.PartialSessionStore;
 import org.whispersystems.modusa.state.PreKeyStore;
 import org.whispersystems.modusa.state.SessionRecord;
 import org.whispersystems.modusa.state.SessionState;
@@ -22,18 +28,27 @@ import org.whispersystems.modusa.state.SignedPreKeyStore;
 import org.whispersystems.modusa.state.impl.InMemorySignalProtocolStore;
 import org.whispersystems.modusa.util.ByteUtil;
 import org.whispersystems.modusa.util.KeyHelper;
+import org.whispersystems.modusa.util.StripedLock;
 import org.whispersystems.modusa.util.Triplet;
 import org.whispersystems.modusa.util.guava.Optional;
 
-import java.security.InvalidAlgorithmParameterException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -50,13 +65,42 @@ import static org.whispersystems.modusa.state.SessionState.UnacknowledgedPreKeyM
  */
 public class SessionCipher {
 
+  /**
+   * @deprecated No longer used.  Session operations are serialized per remote address,
+   *             so synchronizing on this object does not exclude them.  Hold the lock
+   *             returned by {@link #getSessionLock(SignalProtocolAddress)} instead.
+   */
+  @Deprecated
   public static final Object SESSION_LOCK = new Object();
 
+  static final StripedLock<SignalProtocolAddress> SESSION_LOCKS = new StripedLock<>(1024);
+
+  private static final int STREAM_KEYS_LENGTH = 32 + 32 + 16;
+
+  // Thread-safe, and seeded once rather than for every streamed payload.
+  private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+  private static final int AEAD_NONCE_LENGTH = 12;
+  private static final int AEAD_TAG_LENGTH   = 16;
+
+  // Returned internally in place of a plaintext that was written to a caller's buffer.
+  private static final byte[] WRITTEN_TO_OUTPUT = new byte[0];
+
+  // Version byte, ratchet key, counter, previous counter, ciphertext header and truncated MAC.
+  private static final int SIGNAL_MESSAGE_OVERHEAD = 1 + (2 + 33) + (1 + 5) + (1 + 5) + (1 + 5) + 8;
+
+  // Version byte, registration ID, PreKey IDs, base key, identity key and SignalMessage header.
+  private static final int PREKEY_MESSAGE_OVERHEAD = 1 + (1 + 5) + (1 + 5) + (1 + 5) + (2 + 33) + (2 + 33) + (1 + 5);
+
   private final SessionStore          sessionStore;
   private final IdentityKeyStore      identityKeyStore;
   private final SessionBuilder        sessionBuilder;
   private final PreKeyStore           preKeyStore;
   private final SignalProtocolAddress remoteAddress;
+  private final Lock                  sessionLock;
+
+  private volatile boolean         checkpointSkippedKeys;
+  private volatile SessionIdentity sessionIdentity;
 
   /**
    * Construct a SessionCipher for encrypt/decrypt operations on a session.
@@ -74,6 +118,7 @@ public class SessionCipher {
     this.preKeyStore      = preKeyStore;
     this.identityKeyStore = identityKeyStore;
     this.remoteAddress    = remoteAddress;
+    this.sessionLock      = getSessionLock(remoteAddress);
     this.sessionBuilder   = new SessionBuilder(sessionStore, preKeyStore, signedPreKeyStore,
                                                identityKeyStore, remoteAddress);
   }
@@ -82,6 +127,37 @@ public class SessionCipher {
     this(store, store, store, store, remoteAddress);
   }
 
+  /**
+   * Choose how this cipher stores the keys of skipped messages.
+   * <p>
+   * By default every skipped message key is derived and stored.  With checkpoints
+   * enabled, only the chain key at every 64th skipped counter is stored, along with a
+   * bitmap of consumed counters, and a late message's keys are derived from the nearest
+   * checkpoint when it arrives.  This makes large skips much cheaper and records much
+   * smaller, but checkpointed sessions can not be read by versions of this library that
+   * predate checkpoints.  Sessions stored in either form can always be read.
+   *
+   * @param enabled Whether newly skipped message keys are stored as checkpoints.
+   */
+  public void setSkippedKeyCheckpoints(boolean enabled) {
+    this.checkpointSkippedKeys = enabled;
+  }
+
+  /**
+   * Return the lock that serializes all session operations for a remote address.
+   * <p>
+   * Sessions for different addresses never share state, so each address is guarded
+   * independently and operations on different sessions can run in parallel.  Clients
+   * that need to modify a session outside of this class (for instance, to archive or
+   * delete it) should hold this lock while doing so.
+   *
+   * @param remoteAddress The remote address of the session.
+   * @return The lock guarding that session.
+   */
+  public static Lock getSessionLock(SignalProtocolAddress remoteAddress) {
+    return SESSION_LOCKS.get(remoteAddress);
+  }
+
   /**
    * Encrypt a message.
    *
@@ -89,44 +165,241 @@ public class SessionCipher {
    * @return A ciphertext message encrypted to the recipient+device tuple.
    */
   public CiphertextMessage encrypt(byte[] paddedMessage) throws UntrustedIdentityException {
-    synchronized (SESSION_LOCK) {
-      SessionRecord sessionRecord   = sessionStore.loadSession(remoteAddress);
-      SessionState  sessionState    = sessionRecord.getSessionState();
-      ChainKey      chainKey        = sessionState.getSenderChainKey();
-      MessageKeys   messageKeys     = chainKey.getMessageKeys();
-      ECPublicKey   senderEphemeral = sessionState.getSenderRatchetKey();
-      int           previousCounter = sessionState.getPreviousCounter();
-      int           sessionVersion  = sessionState.getSessionVersion();
-
-      byte[]            ciphertextBody    = getCiphertext(messageKeys, paddedMessage);
-      CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
-                                                              senderEphemeral, chainKey.getIndex(),
-                                                              previousCounter, ciphertextBody,
-                                                              sessionState.getLocalIdentityKey(),
-                                                              sessionState.getRemoteIdentityKey());
-
-      if (sessionState.hasUnacknowledgedPreKeyMessage()) {
-        UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
-        int localRegistrationId = sessionState.getLocalRegistrationId();
-
-        ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
-                                                    items.getSignedPreKeyId(), items.getBaseKey(),
-                                                    sessionState.getLocalIdentityKey(),
-                                                    (SignalMessage) ciphertextMessage);
+    return encrypt(Collections.singletonList(paddedMessage)).get(0);
+  }
+
+  /**
+   * Encrypt a burst of messages to the same recipient+device tuple.
+   * <p>
+   * The session is loaded and stored only once for the whole list, and the sender
+   * chain is advanced once per message, so this is considerably cheaper than calling
+   * {@link #encrypt(byte[])} in a loop.  The resulting messages are in the same order
+   * as the plaintexts, and must be delivered in that order to avoid skipped keys on
+   * the receiving side.
+   *
+   * @param  paddedMessages The plaintext message bytes, optionally padded to a constant multiple.
+   * @return The ciphertext messages, one for each plaintext.
+   */
+  public List<CiphertextMessage> encrypt(List<byte[]> paddedMessages) throws UntrustedIdentityException {
+    List<ByteBuffer> buffers = new ArrayList<>(paddedMessages.size());
+
+    for (byte[] paddedMessage : paddedMessages) {
+      buffers.add(ByteBuffer.wrap(paddedMessage));
+    }
+
+    List<CiphertextMessage> results = new ArrayList<>(buffers.size());
+    encryptAll(buffers, results, null);
+
+    return results;
+  }
+
+  /**
+   * Encrypt a message from one buffer into another.
+   * <p>
+   * The plaintext is consumed from paddedMessage's position to its limit, and the
+   * serialized {@link CiphertextMessage} is written at ciphertext's position.  The message
+   * is encrypted straight into ciphertext, without an intermediate copy, and either buffer
+   * may be direct.
+   *
+   * @param  paddedMessage The plaintext message bytes, optionally padded to a constant multiple.
+   * @param  ciphertext    The buffer to write the serialized message to.  It must have at least
+   *                       {@link #getMaxCiphertextSize(int)} bytes remaining.
+   * @return The {@link CiphertextMessage} type of the message written.
+   * @throws java.nio.BufferOverflowException if ciphertext is too small.  The session is
+   *                                          not advanced in that case.
+   */
+  public int encrypt(ByteBuffer paddedMessage, ByteBuffer ciphertext) throws UntrustedIdentityException {
+    if (ciphertext.remaining() < getMaxCiphertextSize(paddedMessage.remaining())) {
+      throw new BufferOverflowException();
+    }
+
+    int position = ciphertext.position();
+
+    try {
+      return encryptAll(Collections.singletonList(paddedMessage), null, ciphertext);
+    } catch (UntrustedIdentityException e) {
+      ciphertext.position(position);
+      throw e;
+    }
+  }
+
+  /**
+   * @param  plaintextLength The length of a padded plaintext.
+   * @return An upper bound on the size of the serialized {@link CiphertextMessage} that
+   *         encrypting it will produce.
+   */
+  public static int getMaxCiphertextSize(int plaintextLength) {
+    // CBC padding and the GCM tag each add at most one block.
+    int bodyLength = plaintextLength + 16;
+    return bodyLength + SIGNAL_MESSAGE_OVERHEAD + PREKEY_MESSAGE_OVERHEAD;
+  }
+
+  /**
+   * Encrypt each message, adding it to results, or writing it to output if output is not null.
+   *
+   * @return The {@link CiphertextMessage} type of the messages.
+   */
+  private int encryptAll(List<ByteBuffer> paddedMessages, List<CiphertextMessage> results, ByteBuffer output)
+      throws UntrustedIdentityException
+  {
+    sessionLock.lock();
+    try {
+      SessionRecord   sessionRecord       = sessionStore.loadSession(remoteAddress);
+      SessionState    sessionState        = sessionRecord.getSessionState();
+      ChainKey        chainKey            = sessionState.getSenderChainKey();
+      ECPublicKey     senderEphemeral     = sessionState.getSenderRatchetKey();
+      int             previousCounter     = sessionState.getPreviousCounter();
+      int             sessionVersion      = sessionState.getSessionVersion();
+      SessionIdentity identity            = getSessionIdentity(sessionState);
+      IdentityKey     localIdentityKey    = identity.localIdentityKey;
+      IdentityKey     remoteIdentityKey   = identity.remoteIdentityKey;
+      int             localRegistrationId = sessionState.getLocalRegistrationId();
+
+      if (!identityKeyStore.isTrustedIdentity(remoteAddress, remoteIdentityKey, IdentityKeyStore.Direction.SENDING)) {
+        throw new UntrustedIdentityException(remoteAddress.getName(), remoteIdentityKey);
       }
 
-      sessionState.setSenderChainKey(chainKey.getNextChainKey());
+      UnacknowledgedPreKeyMessageItems items = sessionState.hasUnacknowledgedPreKeyMessage() ?
+                                               sessionState.getUnacknowledgedPreKeyMessageItems() : null;
 
-      if (!identityKeyStore.isTrustedIdentity(remoteAddress, sessionState.getRemoteIdentityKey(), IdentityKeyStore.Direction.SENDING)) {
-        throw new UntrustedIdentityException(remoteAddress.getName(), sessionState.getRemoteIdentityKey());
+      for (ByteBuffer paddedMessage : paddedMessages) {
+        MessageKeys messageKeys = chainKey.getMessageKeys();
+        Cipher      cipher;
+
+        if (sessionVersion >= CiphertextMessage.AEAD_VERSION) {
+          byte[] associatedData = SignalMessage.getAssociatedData(identity.sendingMacPrefix, sessionVersion,
+                                                                  senderEphemeral, chainKey.getIndex(),
+                                                                  previousCounter);
+          cipher = getAeadCipher(Cipher.ENCRYPT_MODE, messageKeys, associatedData);
+        } else {
+          cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
+        }
+
+        if (output != null) {
+          int bodyLength    = cipher.getOutputSize(paddedMessage.remaining());
+          int messageLength = SignalMessage.getSerializedLength(sessionVersion, senderEphemeral, chainKey.getIndex(),
+                                                                previousCounter, bodyLength);
+
+          if (items != null) {
+            PreKeySignalMessage.writeHeader(output, sessionVersion, items.getPreKeyId(), items.getBaseKey(),
+                                            localIdentityKey, messageLength);
+          }
+
+          int messageOffset = output.position();
+
+          SignalMessage.writeHeader(output, sessionVersion, senderEphemeral, chainKey.getIndex(),
+                                    previousCounter, bodyLength);
+          writeCiphertext(cipher, paddedMessage, output, bodyLength);
+
+          if (sessionVersion < CiphertextMessage.AEAD_VERSION) {
+            SignalMessage.writeMac(output, messageOffset, identity.sendingMacPrefix, messageKeys.getMacKey());
+          }
+
+          if (items != null) {
+            PreKeySignalMessage.writeTrailer(output, localRegistrationId, items.getSignedPreKeyId());
+          }
+        } else {
+          byte[]            ciphertextBody = getCiphertext(cipher, paddedMessage);
+          CiphertextMessage ciphertextMessage;
+
+          if (sessionVersion >= CiphertextMessage.AEAD_VERSION) {
+            ciphertextMessage = new SignalMessage(sessionVersion, senderEphemeral, chainKey.getIndex(),
+                                                  previousCounter, ciphertextBody);
+          } else {
+            ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
+                                                  senderEphemeral, chainKey.getIndex(),
+                                                  previousCounter, ciphertextBody,
+                                                  identity.sendingMacPrefix);
+          }
+
+          if (items != null) {
+            ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
+                                                        items.getSignedPreKeyId(), items.getBaseKey(),
+                                                        localIdentityKey, (SignalMessage) ciphertextMessage);
+          }
+
+          results.add(ciphertextMessage);
+        }
+
+        chainKey = chainKey.getNextChainKey();
       }
 
-      identityKeyStore.saveIdentity(remoteAddress, sessionState.getRemoteIdentityKey());
-      sessionStore.storeSession(remoteAddress, sessionRecord);
-      return ciphertextMessage;
+      sessionState.setSenderChainKey(chainKey);
+      identityKeyStore.saveIdentity(remoteAddress, remoteIdentityKey);
+      storeSession(sessionRecord);
+
+      return items != null ? CiphertextMessage.PREKEY_TYPE : CiphertextMessage.WHISPER_TYPE;
+    } finally {
+      sessionLock.unlock();
     }
   }
 
+  /**
+   * Encrypt a payload that is too large to hold in memory.
+   * <p>
+   * The payload is encrypted with a new random set of stream keys as it is read from
+   * plaintext, and written to ciphertext followed by a MAC, so memory use does not depend
+   * on its size.  The returned message carries the stream keys, and is encrypted to the
+   * recipient like any other message.  It must be delivered along with the ciphertext,
+   * and both passed to the recipient's
+   * {@link #decrypt(SignalMessage, InputStream, OutputStream)}.
+   *
+   * @param  plaintext  The payload to encrypt.  It is read to its end, but not closed.
+   * @param  ciphertext The stream to write the encrypted payload to.  It is not closed.
+   * @return The message carrying the stream keys.
+   */
+  public CiphertextMessage encrypt(InputStream plaintext, OutputStream ciphertext)
+      throws UntrustedIdentityException, IOException
+  {
+    byte[] streamKeys = new byte[STREAM_KEYS_LENGTH];
+    SECURE_RANDOM.nextBytes(streamKeys);
+
+    CiphertextMessage      message = encrypt(streamKeys);
+    EncryptingOutputStream out     = new EncryptingOutputStream(ciphertext, getStreamKeys(streamKeys));
+
+    copy(plaintext, out);
+    out.finish();
+
+    return message;
+  }
+
+  /**
+   * Decrypt a payload encrypted by {@link #encrypt(InputStream, OutputStream)}.
+   * <p>
+   * Plaintext is written out before the trailing MAC has been verified.  If this method
+   * throws, everything written to plaintext must be discarded.
+   *
+   * @param  header     The {@link PreKeySignalMessage} that carries the stream keys.
+   * @param  ciphertext The encrypted payload.  It is read to its end, but not closed.
+   * @param  plaintext  The stream to write the decrypted payload to.  It is not closed.
+   * @throws InvalidMessageException if the header or the payload is not valid ciphertext.
+   */
+  public void decrypt(PreKeySignalMessage header, InputStream ciphertext, OutputStream plaintext)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
+             InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException,
+             NoSuchAlgorithmException, IOException
+  {
+    decryptStream(decrypt(header), ciphertext, plaintext);
+  }
+
+  /**
+   * Decrypt a payload encrypted by {@link #encrypt(InputStream, OutputStream)}.
+   * <p>
+   * Plaintext is written out before the trailing MAC has been verified.  If this method
+   * throws, everything written to plaintext must be discarded.
+   *
+   * @param  header     The {@link SignalMessage} that carries the stream keys.
+   * @param  ciphertext The encrypted payload.  It is read to its end, but not closed.
+   * @param  plaintext  The stream to write the decrypted payload to.  It is not closed.
+   * @throws InvalidMessageException if the header or the payload is not valid ciphertext.
+   */
+  public void decrypt(SignalMessage header, InputStream ciphertext, OutputStream plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, UntrustedIdentityException, NoSuchAlgorithmException, IOException
+  {
+    decryptStream(decrypt(header), ciphertext, plaintext);
+  }
+
   /**
    * Decrypt a message.
    *
@@ -174,20 +447,55 @@ public class SessionCipher {
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
              InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException, NoSuchAlgorithmException
   {
-    synchronized (SESSION_LOCK) {
+    return decrypt(ciphertext, callback, null);
+  }
+
+  /**
+   * Decrypt a message into a buffer.
+   * <p>
+   * The plaintext is written at plaintext's position, which is advanced past it.  If
+   * decryption fails, the buffer's position is left unchanged.
+   *
+   * @param  ciphertext The {@link PreKeySignalMessage} to decrypt.
+   * @param  plaintext  The buffer to write the plaintext to.  It must have at least
+   *                    {@link #getMaxPlaintextSize(SignalMessage)} bytes remaining.
+   * @return The length of the plaintext.
+   * @throws java.nio.BufferOverflowException if plaintext is too small.
+   */
+  public int decrypt(PreKeySignalMessage ciphertext, ByteBuffer plaintext)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
+             InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException, NoSuchAlgorithmException
+  {
+    if (plaintext.remaining() < getMaxPlaintextSize(ciphertext.getWhisperMessage())) {
+      throw new BufferOverflowException();
+    }
+
+    int position = plaintext.position();
+    decrypt(ciphertext, new NullDecryptionCallback(), plaintext);
+    return plaintext.position() - position;
+  }
+
+  private byte[] decrypt(PreKeySignalMessage ciphertext, DecryptionCallback callback, ByteBuffer output)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
+             InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException, NoSuchAlgorithmException
+  {
+    sessionLock.lock();
+    try {
       SessionRecord     sessionRecord    = sessionStore.loadSession(remoteAddress);
       Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, ciphertext);
-      byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage());
+      byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage(), output);
 
       callback.handlePlaintext(plaintext);
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      storeSession(sessionRecord);
 
       if (unsignedPreKeyId.isPresent()) {
         preKeyStore.removePreKey(unsignedPreKeyId.get());
       }
 
       return plaintext;
+    } finally {
+      sessionLock.unlock();
     }
   }
 
@@ -232,16 +540,59 @@ public class SessionCipher {
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
              NoSessionException, UntrustedIdentityException, NoSuchAlgorithmException
   {
-    synchronized (SESSION_LOCK) {
+    return decrypt(ciphertext, callback, null);
+  }
+
+  /**
+   * Decrypt a message into a buffer.
+   * <p>
+   * The plaintext is written at plaintext's position, which is advanced past it.  If
+   * decryption fails, the buffer's position is left unchanged.
+   *
+   * @param  ciphertext The {@link SignalMessage} to decrypt.
+   * @param  plaintext  The buffer to write the plaintext to.  It must have at least
+   *                    {@link #getMaxPlaintextSize(SignalMessage)} bytes remaining.
+   * @return The length of the plaintext.
+   * @throws java.nio.BufferOverflowException if plaintext is too small.
+   */
+  public int decrypt(SignalMessage ciphertext, ByteBuffer plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, UntrustedIdentityException, NoSuchAlgorithmException
+  {
+    if (plaintext.remaining() < getMaxPlaintextSize(ciphertext)) {
+      throw new BufferOverflowException();
+    }
+
+    int position = plaintext.position();
+    decrypt(ciphertext, new NullDecryptionCallback(), plaintext);
+    return plaintext.position() - position;
+  }
+
+  /**
+   * @param  ciphertext A received message.
+   * @return An upper bound on the length of its plaintext.
+   */
+  public static int getMaxPlaintextSize(SignalMessage ciphertext) {
+    return ciphertext.getBodyLength();
+  }
+
+  private byte[] decrypt(SignalMessage ciphertext, DecryptionCallback callback, ByteBuffer output)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, UntrustedIdentityException, NoSuchAlgorithmException
+  {
+    sessionLock.lock();
+    try {
 
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new NoSessionException("No session for: " + remoteAddress);
       }
 
       SessionRecord sessionRecord = sessionStore.loadSession(remoteAddress);
-      byte[]        plaintext     = decrypt(sessionRecord, ciphertext);
+      int           position      = output != null ? output.position() : 0;
+      byte[]        plaintext     = decrypt(sessionRecord, ciphertext, output);
 
       if (!identityKeyStore.isTrustedIdentity(remoteAddress, sessionRecord.getSessionState().getRemoteIdentityKey(), IdentityKeyStore.Direction.RECEIVING)) {
+        if (output != null) output.position(position);
         throw new UntrustedIdentityException(remoteAddress.getName(), sessionRecord.getSessionState().getRemoteIdentityKey());
       }
 
@@ -249,48 +600,170 @@ public class SessionCipher {
 
       callback.handlePlaintext(plaintext);
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      storeSession(sessionRecord);
 
       return plaintext;
+    } finally {
+      sessionLock.unlock();
     }
   }
 
-  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext)
-      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException
+  /**
+   * Decrypt a batch of messages from the same session.
+   *
+   * @param  ciphertexts The {@link SignalMessage}s to decrypt, in the order they were received.
+   *
+   * @return One {@link DecryptionResult} per message, in the same order as the input.
+   * @throws NoSessionException if there is no established session for this contact.
+   */
+  public List<DecryptionResult> decrypt(List<SignalMessage> ciphertexts)
+      throws NoSessionException
   {
-    synchronized (SESSION_LOCK) {
-      Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStates().iterator();
-      List<Exception>        exceptions     = new LinkedList<>();
+    return decrypt(ciphertexts, new NullDecryptionCallback());
+  }
 
-      try {
-        SessionState sessionState = new SessionState(sessionRecord.getSessionState());
-        byte[]       plaintext    = decrypt(sessionState, ciphertext);
+  /**
+   * Decrypt a batch of messages from the same session.
+   * <p>
+   * The session is loaded once, every message is decrypted against that single in-memory
+   * record, and the record is committed once at the end.  A message that fails to decrypt
+   * is reported in its {@link DecryptionResult} and leaves the session as it was before
+   * that message, so it never undoes the messages that succeeded.
+   *
+   * @param  ciphertexts The {@link SignalMessage}s to decrypt, in the order they were received.
+   * @param  callback    A callback that is triggered once with every result after decryption is
+   *                     complete, but before the updated session state has been committed to the
+   *                     session DB.
+   *
+   * @return One {@link DecryptionResult} per message, in the same order as the input.
+   * @throws NoSessionException if there is no established session for this contact.
+   */
+  public List<DecryptionResult> decrypt(List<SignalMessage> ciphertexts, BatchDecryptionCallback callback)
+      throws NoSessionException
+  {
+    sessionLock.lock();
+    try {
 
-        sessionRecord.setState(sessionState);
-        return plaintext;
-      } catch (InvalidMessageException e) {
-        exceptions.add(e);
+      if (!sessionStore.containsSession(remoteAddress)) {
+        throw new NoSessionException("No session for: " + remoteAddress);
       }
 
-      while (previousStates.hasNext()) {
-        try {
-          SessionState promotedState = new SessionState(previousStates.next());
-          byte[]       plaintext     = decrypt(promotedState, ciphertext);
+      SessionRecord          sessionRecord   = sessionStore.loadSession(remoteAddress);
+      List<DecryptionResult> results         = new ArrayList<>(ciphertexts.size());
+      IdentityKey            trustedIdentity = null;
 
-          previousStates.remove();
-          sessionRecord.promoteState(promotedState);
+      for (SignalMessage ciphertext : ciphertexts) {
+        SessionState       currentState   = sessionRecord.getSessionState();
+        List<SessionState> previousStates = new ArrayList<>(sessionRecord.getPreviousSessionStates());
 
-          return plaintext;
-        } catch (InvalidMessageException e) {
-          exceptions.add(e);
+        try {
+          byte[]      plaintext      = decrypt(sessionRecord, ciphertext, null);
+          IdentityKey remoteIdentity = sessionRecord.getSessionState().getRemoteIdentityKey();
+
+          if (!remoteIdentity.equals(trustedIdentity) &&
+              !identityKeyStore.isTrustedIdentity(remoteAddress, remoteIdentity, IdentityKeyStore.Direction.RECEIVING))
+          {
+            sessionRecord.setState(currentState);
+            sessionRecord.getPreviousSessionStates().clear();
+            sessionRecord.getPreviousSessionStates().addAll(previousStates);
+
+            throw new UntrustedIdentityException(remoteAddress.getName(), remoteIdentity);
+          }
+
+          trustedIdentity = remoteIdentity;
+          results.add(new DecryptionResult(plaintext));
+        } catch (InvalidMessageException | DuplicateMessageException | LegacyMessageException |
+                 UntrustedIdentityException | NoSuchAlgorithmException e)
+        {
+          results.add(new DecryptionResult(e));
         }
       }
 
-      throw new InvalidMessageException("No valid sessions.", exceptions);
+      if (trustedIdentity != null) {
+        identityKeyStore.saveIdentity(remoteAddress, trustedIdentity);
+      }
+
+      callback.handlePlaintexts(results);
+
+      if (trustedIdentity != null) {
+        storeSession(sessionRecord);
+      }
+
+      return results;
+    } finally {
+      sessionLock.unlock();
     }
   }
 
-  private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage)
+  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext, ByteBuffer output)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException
+  {
+    List<Exception> exceptions = new LinkedList<>();
+
+    try {
+      SessionState sessionState = new SessionState(sessionRecord.getSessionState());
+      byte[]       plaintext    = decrypt(sessionState, ciphertext, output);
+
+      sessionRecord.setState(sessionState);
+      return plaintext;
+    } catch (InvalidMessageException e) {
+      exceptions.add(e);
+    }
+
+    // Archived states that already have a chain for this ratchet key are by far the
+    // likeliest match, so try those before walking the rest of the archive.
+    List<SessionState> candidates = sessionRecord.getPreviousSessionStates(ciphertext.getSenderRatchetKey());
+    List<SessionState> attempted  = new ArrayList<>(candidates.size());
+
+    for (SessionState candidate : candidates) {
+      byte[] plaintext = decryptPreviousState(sessionRecord, candidate, ciphertext, output, exceptions);
+      if (plaintext != null) return plaintext;
+
+      attempted.add(candidate);
+    }
+
+    for (SessionState previousState : new ArrayList<>(sessionRecord.getPreviousSessionStates())) {
+      if (attempted.contains(previousState)) continue;
+
+      byte[] plaintext = decryptPreviousState(sessionRecord, previousState, ciphertext, output, exceptions);
+      if (plaintext != null) return plaintext;
+    }
+
+    throw new InvalidMessageException("No valid sessions.", exceptions);
+  }
+
+  private byte[] decryptPreviousState(SessionRecord sessionRecord, SessionState previousState,
+                                      SignalMessage ciphertext, ByteBuffer output,
+                                      List<Exception> exceptions)
+      throws DuplicateMessageException, LegacyMessageException, NoSuchAlgorithmException
+  {
+    if (!previousState.hasSenderChain()) {
+      exceptions.add(new InvalidMessageException("Uninitialized session!"));
+      return null;
+    }
+
+    if (ciphertext.getMessageVersion() != previousState.getSessionVersion()) {
+      exceptions.add(new InvalidMessageException(String.format("Message version %d, but session version %d",
+                                                               ciphertext.getMessageVersion(),
+                                                               previousState.getSessionVersion())));
+      return null;
+    }
+
+    try {
+      SessionState promotedState = new SessionState(previousState);
+      byte[]       plaintext     = decrypt(promotedState, ciphertext, output);
+
+      sessionRecord.getPreviousSessionStates().remove(previousState);
+      sessionRecord.promoteState(promotedState);
+
+      return plaintext;
+    } catch (InvalidMessageException e) {
+      exceptions.add(e);
+      return null;
+    }
+  }
+
+  private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage, ByteBuffer output)
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException, NoSuchAlgorithmException
   {
     if (!sessionState.hasSenderChain()) {
@@ -309,11 +782,18 @@ public class SessionCipher {
     MessageKeys    messageKeys       = getOrCreateMessageKeys(sessionState, theirEphemeral,
                                                               chainKey, counter);
 
-    ciphertextMessage.verifyMac(sessionState.getRemoteIdentityKey(),
-                                sessionState.getLocalIdentityKey(),
-                                messageKeys.getMacKey());
+    byte[] macPrefix = getSessionIdentity(sessionState).receivingMacPrefix;
+    Cipher cipher;
+
+    if (ciphertextMessage.getMessageVersion() >= CiphertextMessage.AEAD_VERSION) {
+      cipher = getAeadCipher(Cipher.DECRYPT_MODE, messageKeys, ciphertextMessage.getAssociatedData(macPrefix));
+    } else {
+      ciphertextMessage.verifyMac(macPrefix, messageKeys.getMacKey());
+      cipher = getCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
+    }
 
-    byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBody());
+    byte[] plaintext = getPlaintext(cipher, ciphertextMessage.getBodyBuffer(),
+                                    ciphertextMessage.getBodyOffset(), ciphertextMessage.getBodyLength(), output);
 
     sessionState.clearUnacknowledgedPreKeyMessage();
 
@@ -321,20 +801,26 @@ public class SessionCipher {
   }
 
   public int getRemoteRegistrationId() {
-    synchronized (SESSION_LOCK) {
+    sessionLock.lock();
+    try {
       SessionRecord record = sessionStore.loadSession(remoteAddress);
       return record.getSessionState().getRemoteRegistrationId();
+    } finally {
+      sessionLock.unlock();
     }
   }
 
   public int getSessionVersion() {
-    synchronized (SESSION_LOCK) {
+    sessionLock.lock();
+    try {
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new IllegalStateException(String.format("No session for (%s)!", remoteAddress));
       }
 
       SessionRecord record = sessionStore.loadSession(remoteAddress);
       return record.getSessionState().getSessionVersion();
+    } finally {
+      sessionLock.unlock();
     }
   }
 
@@ -348,7 +834,7 @@ public class SessionCipher {
         RootKey                 rootKey         = sessionState.getRootKey();
         ECKeyPair               ourEphemeral    = sessionState.getSenderRatchetKeyPair();
         Triplet<RootKey, ChainKey, AuthKey> receiverChain   = rootKey.createChain(theirEphemeral, ourEphemeral);
-        ECKeyPair               ourNewEphemeral = Curve.generateKeyPair();
+        ECKeyPair               ourNewEphemeral = Curve.generateEphemeralKeyPair();
         Triplet<RootKey, ChainKey, AuthKey> senderChain     = receiverChain.first().createChain(theirEphemeral, ourNewEphemeral);
 
         sessionState.setRootKey(senderChain.first());
@@ -388,58 +874,176 @@ public class SessionCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
-    while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionState.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
-    }
+    chainKey = sessionState.skipMessageKeys(theirEphemeral, chainKey, counter, checkpointSkippedKeys);
 
     sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
     return chainKey.getMessageKeys();
   }
 
-  private byte[] getCiphertext(MessageKeys messageKeys, byte[] plaintext) {
+  private void decryptStream(byte[] streamKeys, InputStream ciphertext, OutputStream plaintext)
+      throws InvalidMessageException, IOException
+  {
+    if (streamKeys.length != STREAM_KEYS_LENGTH) {
+      throw new InvalidMessageException("Not a stream header: " + streamKeys.length);
+    }
+
+    try {
+      copy(new DecryptingInputStream(ciphertext, getStreamKeys(streamKeys)), plaintext);
+    } catch (IOException e) {
+      if (e.getCause() instanceof InvalidMessageException) {
+        throw (InvalidMessageException)e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+  private MessageKeys getStreamKeys(byte[] streamKeys) {
+    try {
+      byte[][] parts = ByteUtil.split(streamKeys, 32, 32, 16);
+
+      return new MessageKeys(new SecretKeySpec(parts[0], "AES"),
+                             new SecretKeySpec(parts[1], "HmacSHA256"),
+                             new IvParameterSpec(parts[2]), 0);
+    } catch (ParseException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private void storeSession(SessionRecord sessionRecord) {
+    SessionRecord.Modification modification = sessionRecord.getModification();
+
+    if (modification == SessionRecord.Modification.CURRENT_STATE && sessionStore instanceof PartialSessionStore) {
+      ((PartialSessionStore)sessionStore).storeCurrentSessionState(remoteAddress, sessionRecord);
+    } else if (modification != SessionRecord.Modification.NONE) {
+      sessionStore.storeSession(remoteAddress, sessionRecord);
+    }
+  }
+
+  private byte[] getCiphertext(Cipher cipher, ByteBuffer plaintext) {
     try {
-      Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
-      return cipher.doFinal(plaintext);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      byte[] ciphertext = new byte[cipher.getOutputSize(plaintext.remaining())];
+      int    length     = cipher.doFinal(plaintext, ByteBuffer.wrap(ciphertext));
+
+      if (length == ciphertext.length) return ciphertext;
+      else                             return Arrays.copyOf(ciphertext, length);
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
-  private byte[] getPlaintext(MessageKeys messageKeys, byte[] cipherText)
+  private void writeCiphertext(Cipher cipher, ByteBuffer plaintext, ByteBuffer output, int length) {
+    try {
+      if (cipher.doFinal(plaintext, output) != length) {
+        throw new AssertionError("Ciphertext length differs from its output size");
+      }
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private byte[] getPlaintext(Cipher cipher, byte[] cipherText, int offset, int length, ByteBuffer output)
       throws InvalidMessageException
   {
+    if (output == null) {
+      try {
+        return cipher.doFinal(cipherText, offset, length);
+      } catch (IllegalBlockSizeException | BadPaddingException e) {
+        throw new InvalidMessageException(e);
+      }
+    }
+
+    int position = output.position();
+
     try {
-      Cipher cipher = getCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
-      return cipher.doFinal(cipherText);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      cipher.doFinal(ByteBuffer.wrap(cipherText, offset, length), output);
+      return WRITTEN_TO_OUTPUT;
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      output.position(position);
       throw new InvalidMessageException(e);
     }
   }
 
   private byte[] advanceHash(byte[] hash, byte[] rcpk) throws NoSuchAlgorithmException {
-    MessageDigest digest = MessageDigest.getInstance("SHA-512");
-    byte[] combined = ByteUtil.combine(hash, rcpk);
+    MessageDigest digest = CryptoPrimitives.getSha512();
+    digest.update(hash);
 
-    return digest.digest(combined);
+    return digest.digest(rcpk);
+  }
+
+  private SessionIdentity getSessionIdentity(SessionState sessionState) {
+    SessionIdentity identity = sessionIdentity;
+
+    if (identity == null || !identity.matches(sessionState)) {
+      identity = new SessionIdentity(sessionState);
+      sessionIdentity = identity;
+    }
+
+    return identity;
   }
 
   private Cipher getCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
-    try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(mode, key, iv);
-      return cipher;
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
-    {
-      throw new AssertionError(e);
+    return CryptoPrimitives.getAesCbcCipher(mode, key, iv);
+  }
+
+  /**
+   * AEAD sessions use the message key as the AES-256-GCM key, and the first 96 bits of
+   * the message IV as the nonce.  Every message key is used for a single message, so a
+   * nonce is never repeated under a key.
+   */
+  private Cipher getAeadCipher(int mode, MessageKeys messageKeys, byte[] associatedData) {
+    GCMParameterSpec parameters = new GCMParameterSpec(AEAD_TAG_LENGTH * 8, messageKeys.getIv().getIV(),
+                                                       0, AEAD_NONCE_LENGTH);
+    Cipher           cipher     = CryptoPrimitives.getAesGcmCipher(mode, messageKeys.getCipherKey(), parameters);
+
+    cipher.updateAAD(associatedData);
+    return cipher;
+  }
+
+  /**
+   * The identity keys of a remote address's session, with the MAC prefixes derived
+   * from them.  A session's identity keys are fixed and an address rarely changes
+   * identity, so each SessionCipher keeps the last one it used.  That saves decoding
+   * and re-serializing both keys for every message.
+   */
+  private static class SessionIdentity {
+    private final ByteString  localIdentityBytes;
+    private final ByteString  remoteIdentityBytes;
+    private final IdentityKey localIdentityKey;
+    private final IdentityKey remoteIdentityKey;
+    private final byte[]      sendingMacPrefix;
+    private final byte[]      receivingMacPrefix;
+
+    private SessionIdentity(SessionState sessionState) {
+      this.localIdentityBytes  = sessionState.getLocalIdentityKeyBytes();
+      this.remoteIdentityBytes = sessionState.getRemoteIdentityKeyBytes();
+      this.localIdentityKey    = sessionState.getLocalIdentityKey();
+      this.remoteIdentityKey   = sessionState.getRemoteIdentityKey();
+      this.sendingMacPrefix    = SignalMessage.getMacPrefix(localIdentityKey, remoteIdentityKey);
+      this.receivingMacPrefix  = SignalMessage.getMacPrefix(remoteIdentityKey, localIdentityKey);
+    }
+
+    private boolean matches(SessionState sessionState) {
+      return remoteIdentityBytes.equals(sessionState.getRemoteIdentityKeyBytes()) &&
+             localIdentityBytes.equals(sessionState.getLocalIdentityKeyBytes());
     }
   }
 
-  private static class NullDecryptionCallback implements DecryptionCallback {
+  private static class NullDecryptionCallback implements DecryptionCallback, BatchDecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
+
+    @Override
+    public void handlePlaintexts(List<DecryptionResult> results) {}
   }
 
   private static class TestInMemorySignalProtocolStore extends InMemorySignalProtocolStore {
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.crypto;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The single source of the JCA primitives used by the protocol.
+ * <p>
+ * Looking up and constructing a {@link Mac}, {@link Cipher} or {@link MessageDigest}
+ * is expensive compared to the small inputs the ratchet feeds them, so each thread
+ * keeps one instance of each and re-initializes it on every call.  An instance returned
+ * from this class is only valid until the next call for the same primitive on the same
+ * thread, so it must be used to completion before anything else is derived, and must
+ * never be stored or handed to another thread.
+ * <p>
+ * All primitives come from the default JCA providers unless a specific {@link Provider}
+ * is installed with {@link #setProvider(Provider)}, in which case any primitive it does
+ * not implement still comes from the defaults.
+ */
+public class CryptoPrimitives {
+
+  private static final String HMAC_SHA256 = "HmacSHA256";
+  private static final String AES_CBC     = "AES/CBC/PKCS5Padding";
+  private static final String AES_GCM     = "AES/GCM/NoPadding";
+  private static final String SHA512      = "SHA-512";
+
+  private static volatile Provider provider;
+  private static volatile int      generation;
+
+  private static final ThreadLocal<Instances> instances = new ThreadLocal<Instances>() {
+    @Override
+    protected Instances initialValue() {
+      return new Instances();
+    }
+  };
+
+  /**
+   * Select the JCA provider every primitive is obtained from.
+   *
+   * @param provider The provider to use, or null to use the default JCA provider lookup.
+   */
+  public static synchronized void setProvider(Provider provider) {
+    CryptoPrimitives.provider   = provider;
+    CryptoPrimitives.generation = generation + 1;
+  }
+
+  public static Provider getProvider() {
+    return provider;
+  }
+
+  /**
+   * @param  key The HMAC key.
+   * @return This thread's HmacSHA256 instance, initialized with key.
+   */
+  public static Mac getHmacSha256(byte[] key) {
+    return getHmacSha256(new SecretKeySpec(key, HMAC_SHA256));
+  }
+
+  /**
+   * @param  key The HMAC key.
+   * @return This thread's HmacSHA256 instance, initialized with key.
+   */
+  public static Mac getHmacSha256(SecretKeySpec key) {
+    try {
+      Mac mac = getInstances().getHmacSha256();
+      mac.init(key);
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param  mode Either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @return This thread's AES/CBC/PKCS5Padding instance, initialized with key and iv.
+   */
+  public static Cipher getAesCbcCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
+    try {
+      Cipher cipher = getInstances().getAesCbc();
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException |
+             InvalidKeyException | InvalidAlgorithmParameterException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * GCM must never encrypt two different messages with the same key and nonce.  Some
+   * providers refuse to re-initialize an instance for encryption with the key and nonce
+   * it last used, for instance when a session state was rolled back and the same message
+   * key is used again.  That refusal is passed on rather than worked around.
+   *
+   * @param  mode Either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @return This thread's AES/GCM/NoPadding instance, initialized with key and parameters.
+   * @throws IllegalStateException if the provider refuses to encrypt again with key and
+   *                               parameters.
+   */
+  public static Cipher getAesGcmCipher(int mode, SecretKeySpec key, GCMParameterSpec parameters) {
+    try {
+      Cipher cipher = getInstances().getAesGcm();
+      cipher.init(mode, key, parameters);
+      return cipher;
+    } catch (InvalidAlgorithmParameterException e) {
+      if (mode == Cipher.ENCRYPT_MODE) throw new IllegalStateException("Refusing to reuse a GCM key and nonce", e);
+      throw new AssertionError(e);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param  key The HMAC key.
+   * @return A new HmacSHA256 instance, initialized with key, that belongs to the caller.
+   *         For long-lived uses, such as streams, that can't meet the restrictions on
+   *         per-thread instances.
+   */
+  public static Mac newHmacSha256(SecretKeySpec key) {
+    try {
+      Mac mac = createHmacSha256(provider);
+      mac.init(key);
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param  mode Either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @return A new AES/CBC/PKCS5Padding instance, initialized with key and iv, that belongs
+   *         to the caller.
+   */
+  public static Cipher newAesCbcCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
+    try {
+      Cipher cipher = createAesCbc(provider);
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException |
+             InvalidKeyException | InvalidAlgorithmParameterException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return This thread's SHA-512 instance, reset.
+   */
+  public static MessageDigest getSha512() {
+    try {
+      MessageDigest digest = getInstances().getSha512();
+      digest.reset();
+      return digest;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Mac createHmacSha256(Provider provider) throws NoSuchAlgorithmException {
+    try {
+      return provider != null ? Mac.getInstance(HMAC_SHA256, provider) : Mac.getInstance(HMAC_SHA256);
+    } catch (NoSuchAlgorithmException e) {
+      return Mac.getInstance(HMAC_SHA256);
+    }
+  }
+
+  private static Cipher createAesCbc(Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    try {
+      return provider != null ? Cipher.getInstance(AES_CBC, provider) : Cipher.getInstance(AES_CBC);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      return Cipher.getInstance(AES_CBC);
+    }
+  }
+
+  private static Cipher createAesGcm(Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    try {
+      return provider != null ? Cipher.getInstance(AES_GCM, provider) : Cipher.getInstance(AES_GCM);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      return Cipher.getInstance(AES_GCM);
+    }
+  }
+
+  private static Instances getInstances() {
+    Instances current = instances.get();
+
+    if (current.generation != generation) {
+      current = new Instances();
+      instances.set(current);
+    }
+
+    return current;
+  }
+
+  private static class Instances {
+    private final int      generation;
+    private final Provider provider;
+
+    private Mac           hmacSha256;
+    private Cipher        aesCbc;
+    private Cipher        aesGcm;
+    private MessageDigest sha512;
+
+    private Instances() {
+      this.generation = CryptoPrimitives.generation;
+      this.provider   = CryptoPrimitives.provider;
+    }
+
+    Mac getHmacSha256() throws NoSuchAlgorithmException {
+      if (hmacSha256 == null) {
+        hmacSha256 = createHmacSha256(provider);
+      }
+
+      return hmacSha256;
+    }
+
+    Cipher getAesCbc() throws NoSuchAlgorithmException, NoSuchPaddingException {
+      if (aesCbc == null) {
+        aesCbc = createAesCbc(provider);
+      }
+
+      return aesCbc;
+    }
+
+    Cipher getAesGcm() throws NoSuchAlgorithmException, NoSuchPaddingException {
+      if (aesGcm == null) {
+        aesGcm = createAesGcm(provider);
+      }
+
+      return aesGcm;
+    }
+
+    MessageDigest getSha512() throws NoSuchAlgorithmException {
+      if (sha512 == null) {
+        try {
+          sha512 = provider != null ? MessageDigest.getInstance(SHA512, provider) : MessageDigest.getInstance(SHA512);
+        } catch (NoSuchAlgorithmException e) {
+          sha512 = MessageDigest.getInstance(SHA512);
+        }
+      }
+
+      return sha512;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.crypto;
+
+import org.whispersystems.modusa.InvalidMessageException;
+import org.whispersystems.modusa.ratchet.MessageKeys;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import static org.whispersystems.modusa.crypto.EncryptingOutputStream.CHUNK_SIZE;
+import static org.whispersystems.modusa.crypto.EncryptingOutputStream.MAC_LENGTH;
+
+/**
+ * An InputStream that decrypts the output of an {@link EncryptingOutputStream}.
+ * <p>
+ * Ciphertext is decrypted in chunks as it is read, holding back only the trailing
+ * MAC, so memory use does not depend on the size of the payload.  This means that
+ * plaintext is returned before the MAC has been checked.  The MAC is verified when
+ * the end of the stream is reached, and a mismatch is reported as an IOException
+ * caused by an {@link InvalidMessageException}.  Callers must discard everything they
+ * have read if the stream does not reach its end cleanly.
+ */
+public class DecryptingInputStream extends InputStream {
+
+  private final InputStream in;
+  private final Cipher      cipher;
+  private final Mac         mac;
+  private final byte[]      single = new byte[1];
+  private final byte[]      input  = new byte[CHUNK_SIZE + MAC_LENGTH];
+  private final byte[]      output = new byte[CHUNK_SIZE + MAC_LENGTH + 16];
+
+  private int     inputLength;
+  private int     outputOffset;
+  private int     outputLength;
+  private boolean done;
+
+  /**
+   * @param in   The stream to read ciphertext and MAC from.
+   * @param keys The cipher key, MAC key and IV the stream was encrypted with.
+   */
+  public DecryptingInputStream(InputStream in, MessageKeys keys) {
+    this.in     = in;
+    this.cipher = CryptoPrimitives.newAesCbcCipher(Cipher.DECRYPT_MODE, keys.getCipherKey(), keys.getIv());
+    this.mac    = CryptoPrimitives.newHmacSha256(keys.getMacKey());
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(single, 0, 1);
+
+    if (read == -1) return -1;
+    else            return single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    while (outputOffset == outputLength) {
+      if (done) return -1;
+      fill();
+    }
+
+    int read = Math.min(length, outputLength - outputOffset);
+    System.arraycopy(output, outputOffset, buffer, offset, read);
+    outputOffset += read;
+
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private void fill() throws IOException {
+    int read = in.read(input, inputLength, input.length - inputLength);
+
+    outputOffset = 0;
+    outputLength = 0;
+
+    try {
+      if (read == -1) {
+        if (inputLength != MAC_LENGTH) {
+          throw new IOException(new InvalidMessageException("Stream too short: " + inputLength));
+        }
+
+        byte[] ourMac = mac.doFinal();
+
+        if (!MessageDigest.isEqual(ourMac, trailingMac())) {
+          throw new IOException(new InvalidMessageException("Bad MAC"));
+        }
+
+        try {
+          outputLength = cipher.doFinal(output, 0);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+          throw new IOException(new InvalidMessageException(e));
+        }
+
+        done = true;
+        return;
+      }
+
+      inputLength += read;
+
+      // Everything except the last MAC_LENGTH bytes is known to be ciphertext.
+      int ciphertextLength = inputLength - MAC_LENGTH;
+
+      if (ciphertextLength > 0) {
+        mac.update(input, 0, ciphertextLength);
+        outputLength = cipher.update(input, 0, ciphertextLength, output, 0);
+
+        System.arraycopy(input, ciphertextLength, input, 0, MAC_LENGTH);
+        inputLength = MAC_LENGTH;
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private byte[] trailingMac() {
+    byte[] theirMac = new byte[MAC_LENGTH];
+    System.arraycopy(input, 0, theirMac, 0, MAC_LENGTH);
+    return theirMac;
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.crypto;
+
+import org.whispersystems.modusa.ratchet.MessageKeys;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * An OutputStream that encrypts everything written to it with AES-CBC, and appends
+ * an HMAC-SHA256 of the ciphertext once it is finished.
+ * <p>
+ * Plaintext is encrypted and written through in chunks as it arrives, so memory use
+ * does not depend on the size of the payload.  The output can be read back with a
+ * {@link DecryptingInputStream} constructed from the same {@link MessageKeys}.  A set of
+ * MessageKeys must never be used to encrypt more than one stream.
+ */
+public class EncryptingOutputStream extends OutputStream {
+
+  static final int MAC_LENGTH = 32;
+  static final int CHUNK_SIZE = 8192;
+
+  private final OutputStream out;
+  private final Cipher       cipher;
+  private final Mac          mac;
+  private final byte[]       single = new byte[1];
+  private final byte[]       output = new byte[CHUNK_SIZE + 16];
+
+  private boolean finished;
+
+  /**
+   * @param out  The stream to write the ciphertext and MAC to.
+   * @param keys The cipher key, MAC key and IV to encrypt with.
+   */
+  public EncryptingOutputStream(OutputStream out, MessageKeys keys) {
+    this.out    = out;
+    this.cipher = CryptoPrimitives.newAesCbcCipher(Cipher.ENCRYPT_MODE, keys.getCipherKey(), keys.getIv());
+    this.mac    = CryptoPrimitives.newHmacSha256(keys.getMacKey());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte)b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) throw new IOException("Stream already finished");
+
+    try {
+      while (length > 0) {
+        int chunk   = Math.min(length, CHUNK_SIZE);
+        int written = cipher.update(buffer, offset, chunk, output, 0);
+
+        mac.update(output, 0, written);
+        out.write(output, 0, written);
+
+        offset += chunk;
+        length -= chunk;
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Write the final ciphertext block and the MAC, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (finished) return;
+
+    try {
+      int written = cipher.doFinal(output, 0);
+
+      mac.update(output, 0, written);
+      out.write(output, 0, written);
+      out.write(mac.doFinal());
+
+      finished = true;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -16,6 +16,8 @@ public class Curve {
 
   public  static final int DJB_TYPE   = 0x05;
 
+  private static volatile KeyPairPool ephemeralKeyPool;
+
   public static boolean isNative() {
     return Curve25519.getInstance(BEST).isNative();
   }
@@ -27,6 +29,34 @@ public class Curve {
                          new DjbECPrivateKey(keyPair.getPrivateKey()));
   }
 
+  /**
+   * Install a pool that {@link #generateEphemeralKeyPair()} draws from, or remove it
+   * by passing null.  The previous pool, if any, is not shut down.
+   */
+  public static void setEphemeralKeyPool(KeyPairPool pool) {
+    ephemeralKeyPool = pool;
+  }
+
+  /**
+   * Generate a key pair for one-off use as a ratchet or base key, taking it from the
+   * installed {@link KeyPairPool} when there is one.
+   */
+  public static ECKeyPair generateEphemeralKeyPair() {
+    KeyPairPool pool = ephemeralKeyPool;
+
+    if (pool != null) return pool.take();
+    else              return generateKeyPair();
+  }
+
+  /**
+   * Overwrite the private half of a key pair that is no longer needed.
+   */
+  public static void zeroize(ECKeyPair keyPair) {
+    if (keyPair.getPrivateKey() instanceof DjbECPrivateKey) {
+      ((DjbECPrivateKey)keyPair.getPrivateKey()).zeroize();
+    }
+  }
+
   public static ECPublicKey decodePoint(byte[] bytes, int offset)
       throws InvalidKeyException
   {
@@ -6,6 +6,8 @@
 
 package org.whispersystems.modusa.ecc;
 
+import java.util.Arrays;
+
 public class DjbECPrivateKey implements ECPrivateKey {
 
   private final byte[] privateKey;
@@ -27,4 +29,8 @@ public class DjbECPrivateKey implements ECPrivateKey {
   public byte[] getPrivateKey() {
     return privateKey;
   }
+
+  void zeroize() {
+    Arrays.fill(privateKey, (byte)0);
+  }
 }
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.ecc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of pre-generated {@link ECKeyPair}s, refilled on a background thread.
+ * <p>
+ * Generating a key pair costs a scalar multiplication, which otherwise happens inline
+ * every time a session takes a DH ratchet step or is built from a PreKeyBundle.  Install
+ * a pool with {@link Curve#setEphemeralKeyPool(KeyPairPool)} to move that work off the
+ * encrypt and decrypt paths.  Each key pair is handed out exactly once, and falls back to
+ * inline generation whenever the pool has run dry.
+ * <p>
+ * Key pairs that are never handed out have their private keys zeroized when the pool
+ * is shut down.
+ */
+public class KeyPairPool {
+
+  private final BlockingQueue<ECKeyPair> keyPairs;
+  private final Thread                   refiller;
+
+  private volatile boolean shutdown;
+
+  /**
+   * @param capacity The number of key pairs to keep ready.
+   */
+  public KeyPairPool(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+
+    this.keyPairs = new ArrayBlockingQueue<>(capacity);
+    this.refiller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        refill();
+      }
+    }, "KeyPairPool");
+
+    this.refiller.setDaemon(true);
+    this.refiller.setPriority(Thread.MIN_PRIORITY);
+    this.refiller.start();
+  }
+
+  /**
+   * @return A key pair that has not been handed out before, generated inline if none
+   *         are ready.
+   */
+  public ECKeyPair take() {
+    ECKeyPair keyPair = shutdown ? null : keyPairs.poll();
+
+    if (keyPair == null) {
+      return Curve.generateKeyPair();
+    }
+
+    return keyPair;
+  }
+
+  /**
+   * @return The number of key pairs that are ready to be handed out.
+   */
+  public int size() {
+    return keyPairs.size();
+  }
+
+  /**
+   * Stop the background thread and zeroize every key pair that was not handed out.
+   * Subsequent calls to {@link #take()} generate inline.
+   */
+  public void shutdown() {
+    shutdown = true;
+    refiller.interrupt();
+
+    try {
+      refiller.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    drain();
+  }
+
+  private void refill() {
+    try {
+      while (!shutdown) {
+        keyPairs.put(Curve.generateKeyPair());
+      }
+    } catch (InterruptedException e) {
+      // shutting down
+    } finally {
+      drain();
+    }
+  }
+
+  private void drain() {
+    ECKeyPair keyPair;
+
+    while ((keyPair = keyPairs.poll()) != null) {
+      Curve.zeroize(keyPair);
+    }
+  }
+}
@@ -6,16 +6,13 @@
 package org.whispersystems.modusa.fingerprint;
 
 import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
 import org.whispersystems.modusa.ratchet.AuthKey;
 import org.whispersystems.modusa.util.ByteUtil;
 import org.whispersystems.modusa.util.IdentityKeyComparator;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
-import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -97,23 +94,15 @@ public class NumericFingerprintGenerator implements FingerprintGenerator {
   }
 
   private byte[] getFingerprint(int iterations, byte[] authKey, byte[] chainedHash) {
-    try {
-      MessageDigest digest    = MessageDigest.getInstance("SHA-512");
-      byte[]        hash      = ByteUtil.combine(authKey, chainedHash, ByteUtil.shortToByteArray(FINGERPRINT_VERSION));
+    MessageDigest digest    = CryptoPrimitives.getSha512();
+    byte[]        hash      = ByteUtil.combine(authKey, chainedHash, ByteUtil.shortToByteArray(FINGERPRINT_VERSION));
 
-      for (int i=0;i<iterations;i++) {
-        digest.update(hash);
-        hash = digest.digest(authKey);
-      }
-
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(authKey, "HmacSHA256"));
-
-      return mac.doFinal(hash);
-
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
+    for (int i=0;i<iterations;i++) {
+      digest.update(hash);
+      hash = digest.digest(authKey);
     }
+
+    return CryptoPrimitives.getHmacSha256(authKey).doFinal(hash);
   }
 
   private byte[] getLogicalKeyBytes(List<IdentityKey> identityKeys) {
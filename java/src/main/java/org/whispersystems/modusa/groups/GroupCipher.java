@@ -5,26 +5,41 @@
  */
 package org.whispersystems.modusa.groups;
 
+import org.whispersystems.modusa.BatchDecryptionCallback;
 import org.whispersystems.modusa.DecryptionCallback;
+import org.whispersystems.modusa.DecryptionResult;
 import org.whispersystems.modusa.DuplicateMessageException;
 import org.whispersystems.modusa.InvalidKeyIdException;
 import org.whispersystems.modusa.InvalidMessageException;
 import org.whispersystems.modusa.LegacyMessageException;
 import org.whispersystems.modusa.NoSessionException;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.groups.ratchet.SenderChainKey;
 import org.whispersystems.modusa.groups.ratchet.SenderMessageKey;
 import org.whispersystems.modusa.groups.state.SenderKeyRecord;
 import org.whispersystems.modusa.groups.state.SenderKeyState;
 import org.whispersystems.modusa.groups.state.SenderKeyStore;
 import org.whispersystems.modusa.protocol.SenderKeyMessage;
-
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.modusa.util.SharedPool;
+import org.whispersystems.modusa.util.StripedLock;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -40,14 +55,35 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class GroupCipher {
 
-  static final Object LOCK = new Object();
+  static final StripedLock<SenderKeyName> SENDER_KEY_LOCKS = new StripedLock<>(1024);
+
+  // Version byte, key ID, iteration, ciphertext header and signature.
+  private static final int SENDER_KEY_MESSAGE_OVERHEAD = 1 + (1 + 5) + (1 + 5) + (1 + 5) + 64;
 
   private final SenderKeyStore senderKeyStore;
-  private final SenderKeyName senderKeyId;
+  private final SenderKeyName  senderKeyId;
+  private final Lock           senderKeyLock;
 
   public GroupCipher(SenderKeyStore senderKeyStore, SenderKeyName senderKeyId) {
     this.senderKeyStore = senderKeyStore;
     this.senderKeyId    = senderKeyId;
+    this.senderKeyLock  = getSenderKeyLock(senderKeyId);
+  }
+
+  /**
+   * Return the lock that serializes all operations on the sender key for a
+   * (groupId, senderId, deviceId) tuple.
+   * <p>
+   * Each sender's chain is independent, so different groups, and different senders
+   * within a group, can be encrypted to and decrypted from in parallel.  Clients that
+   * modify a sender key outside of this class and {@link GroupSessionBuilder} should
+   * hold this lock while doing so.
+   *
+   * @param senderKeyName The sender key's (groupId, senderId, deviceId) tuple.
+   * @return The lock guarding that sender key.
+   */
+  public static Lock getSenderKeyLock(SenderKeyName senderKeyName) {
+    return SENDER_KEY_LOCKS.get(senderKeyName);
   }
 
   /**
@@ -58,26 +94,91 @@ public class GroupCipher {
    * @throws NoSessionException
    */
   public byte[] encrypt(byte[] paddedPlaintext) throws NoSessionException {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
-        SenderKeyState   senderKeyState = record.getSenderKeyState();
-        SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
-        byte[]           ciphertext     = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintext);
+    return encrypt(ByteBuffer.wrap(paddedPlaintext)).serialize();
+  }
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyState.getKeyId(),
-                                                                 senderKey.getIteration(),
-                                                                 ciphertext,
-                                                                 senderKeyState.getSigningKeyPrivate());
+  /**
+   * Encrypt a message from one buffer into another.
+   * <p>
+   * The plaintext is consumed from paddedPlaintext's position to its limit, and the
+   * serialized {@link SenderKeyMessage} is written at ciphertext's position.  Either
+   * buffer may be direct.
+   *
+   * @param paddedPlaintext The plaintext message bytes, optionally padded.
+   * @param ciphertext      The buffer to write the ciphertext to.  It must have at least
+   *                        {@link #getMaxCiphertextSize(int)} bytes remaining.
+   * @return The length of the ciphertext.
+   * @throws java.nio.BufferOverflowException if ciphertext is too small.  The sender key
+   *                                          is not advanced in that case.
+   * @throws NoSessionException
+   */
+  public int encrypt(ByteBuffer paddedPlaintext, ByteBuffer ciphertext) throws NoSessionException {
+    if (ciphertext.remaining() < getMaxCiphertextSize(paddedPlaintext.remaining())) {
+      throw new BufferOverflowException();
+    }
 
-        senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
+    senderKeyLock.lock();
+    try {
+      SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
+      SenderKeyState   senderKeyState = record.getSenderKeyState();
+      SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
+      Cipher           cipher         = getCipher(senderKey.getIv(), senderKey.getCipherKey());
+      int              bodyLength     = cipher.getOutputSize(paddedPlaintext.remaining());
+      int              offset         = ciphertext.position();
 
-        senderKeyStore.storeSenderKey(senderKeyId, record);
+      SenderKeyMessage.writeHeader(ciphertext, senderKeyState.getKeyId(), senderKey.getIteration(), bodyLength);
 
-        return senderKeyMessage.serialize();
-      } catch (InvalidKeyIdException e) {
-        throw new NoSessionException(e);
+      if (cipher.doFinal(paddedPlaintext, ciphertext) != bodyLength) {
+        throw new AssertionError("Unexpected ciphertext length");
       }
+
+      SenderKeyMessage.writeSignature(ciphertext, offset, senderKeyState.getSigningKeyPrivate());
+
+      senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
+
+      senderKeyStore.storeSenderKey(senderKeyId, record);
+
+      return ciphertext.position() - offset;
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    } finally {
+      senderKeyLock.unlock();
+    }
+  }
+
+  /**
+   * @param  plaintextLength The length of a padded plaintext.
+   * @return An upper bound on the size of the ciphertext that encrypting it will produce.
+   */
+  public static int getMaxCiphertextSize(int plaintextLength) {
+    int bodyLength = plaintextLength + 16 - (plaintextLength % 16);
+    return bodyLength + SENDER_KEY_MESSAGE_OVERHEAD;
+  }
+
+  private SenderKeyMessage encrypt(ByteBuffer paddedPlaintext) throws NoSessionException {
+    senderKeyLock.lock();
+    try {
+      SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
+      SenderKeyState   senderKeyState = record.getSenderKeyState();
+      SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
+      byte[]           ciphertext     = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintext);
+
+      SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyState.getKeyId(),
+                                                               senderKey.getIteration(),
+                                                               ciphertext,
+                                                               senderKeyState.getSigningKeyPrivate());
+
+      senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
+
+      senderKeyStore.storeSenderKey(senderKeyId, record);
+
+      return senderKeyMessage;
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } finally {
+      senderKeyLock.unlock();
     }
   }
 
@@ -115,31 +216,230 @@ public class GroupCipher {
       throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
              NoSessionException
   {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+    return decrypt(new SenderKeyMessage(senderKeyMessageBytes), callback, null);
+  }
+
+  /**
+   * Decrypt a SenderKey group message from one buffer into another.
+   * <p>
+   * The message is read from senderKeyMessage's position to its limit, and the plaintext
+   * is written at plaintext's position.  If decryption fails, plaintext's position is left
+   * unchanged.
+   *
+   * @param senderKeyMessage The received ciphertext.
+   * @param plaintext        The buffer to write the plaintext to.  It must have at least as
+   *                         many bytes remaining as the ciphertext.
+   * @return The length of the plaintext.
+   * @throws java.nio.BufferOverflowException if plaintext is too small.
+   * @throws LegacyMessageException
+   * @throws InvalidMessageException
+   * @throws DuplicateMessageException
+   */
+  public int decrypt(ByteBuffer senderKeyMessage, ByteBuffer plaintext)
+      throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
+             NoSessionException
+  {
+    if (plaintext.remaining() < senderKeyMessage.remaining()) {
+      throw new BufferOverflowException();
+    }
+
+    int position = plaintext.position();
+    decrypt(new SenderKeyMessage(senderKeyMessage), new NullDecryptionCallback(), plaintext);
+    return plaintext.position() - position;
+  }
+
+  /**
+   * Decrypt a batch of SenderKey group messages from this sender, verifying their
+   * signatures on the {@link SharedPool}.
+   *
+   * @param senderKeyMessages The received messages, in the order they were received.
+   * @return One {@link DecryptionResult} per message, in the same order as the input.
+   * @throws NoSessionException if there is no sender key for this sender.
+   */
+  public List<DecryptionResult> decrypt(List<SenderKeyMessage> senderKeyMessages)
+      throws NoSessionException
+  {
+    return decrypt(senderKeyMessages, SharedPool.get(), new NullDecryptionCallback());
+  }
+
+  /**
+   * Decrypt a batch of SenderKey group messages from this sender.
+   * <p>
+   * The signatures on all messages are verified in parallel on the given executor,
+   * without holding the sender key lock.  Only advancing the chain and decrypting then
+   * run under the lock, one message at a time, against a single loaded record that is
+   * stored once at the end.  A message that fails is reported in its
+   * {@link DecryptionResult} and does not affect the others.
+   *
+   * @param senderKeyMessages The received messages, in the order they were received.
+   * @param executor          The executor to verify signatures on.  Signatures it
+   *                          rejects are verified on the calling thread instead.
+   * @param callback          A callback that is triggered once with every result after
+   *                          decryption is complete, but before the updated sender key
+   *                          state has been committed to the store.
+   * @return One {@link DecryptionResult} per message, in the same order as the input.
+   * @throws NoSessionException if there is no sender key for this sender.
+   */
+  public List<DecryptionResult> decrypt(List<SenderKeyMessage> senderKeyMessages, Executor executor,
+                                        BatchDecryptionCallback callback)
+      throws NoSessionException
+  {
+    ECPublicKey[] signingKeys = new ECPublicKey[senderKeyMessages.size()];
+    Exception[]   failures    = new Exception[senderKeyMessages.size()];
+
+    senderKeyLock.lock();
+    try {
+      SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+
+      if (record.isEmpty()) {
+        throw new NoSessionException("No sender key for: " + senderKeyId);
+      }
 
-        if (record.isEmpty()) {
-          throw new NoSessionException("No sender key for: " + senderKeyId);
+      for (int i=0;i<signingKeys.length;i++) {
+        try {
+          signingKeys[i] = record.getSenderKeyState(senderKeyMessages.get(i).getKeyId()).getSigningKeyPublic();
+        } catch (org.whispersystems.modusa.InvalidKeyException | InvalidKeyIdException e) {
+          failures[i] = new InvalidMessageException(e);
         }
+      }
+    } finally {
+      senderKeyLock.unlock();
+    }
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
-        SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
+    verifySignatures(senderKeyMessages, signingKeys, failures, executor);
 
-        senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+    senderKeyLock.lock();
+    try {
+      SenderKeyRecord        record  = senderKeyStore.loadSenderKey(senderKeyId);
+      List<DecryptionResult> results = new ArrayList<>(signingKeys.length);
 
-        SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+      for (int i=0;i<signingKeys.length;i++) {
+        if (failures[i] != null) {
+          results.add(new DecryptionResult(failures[i]));
+          continue;
+        }
 
-        byte[] plaintext = getPlainText(senderKey.getIv(), senderKey.getCipherKey(), senderKeyMessage.getCipherText());
+        try {
+          SenderKeyMessage senderKeyMessage = senderKeyMessages.get(i);
+          SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
+
+          // The sender key may have been replaced while the lock was released.
+          if (!senderKeyState.getSigningKeyPublic().equals(signingKeys[i])) {
+            senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+          }
+
+          // Once the signature is verified the iteration is authentic, so the chain may
+          // advance even if the ciphertext then fails to decrypt.
+          SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+
+          results.add(new DecryptionResult(getPlainText(senderKey.getIv(), senderKey.getCipherKey(),
+                                                        senderKeyMessage.serialize(),
+                                                        senderKeyMessage.getCipherTextOffset(),
+                                                        senderKeyMessage.getCipherTextLength(),
+                                                        null)));
+        } catch (org.whispersystems.modusa.InvalidKeyException | InvalidKeyIdException e) {
+          results.add(new DecryptionResult(new InvalidMessageException(e)));
+        } catch (InvalidMessageException | DuplicateMessageException e) {
+          results.add(new DecryptionResult(e));
+        }
+      }
 
-        callback.handlePlaintext(plaintext);
+      callback.handlePlaintexts(results);
 
-        senderKeyStore.storeSenderKey(senderKeyId, record);
+      senderKeyStore.storeSenderKey(senderKeyId, record);
 
-        return plaintext;
-      } catch (org.whispersystems.modusa.InvalidKeyException | InvalidKeyIdException e) {
-        throw new InvalidMessageException(e);
+      return results;
+    } finally {
+      senderKeyLock.unlock();
+    }
+  }
+
+  private void verifySignatures(final List<SenderKeyMessage> senderKeyMessages, final ECPublicKey[] signingKeys,
+                                Exception[] failures, Executor executor)
+  {
+    List<FutureTask<Void>> tasks = new ArrayList<>(signingKeys.length);
+
+    for (int i=0;i<signingKeys.length;i++) {
+      if (failures[i] != null) {
+        tasks.add(null);
+        continue;
+      }
+
+      final int        index = i;
+      FutureTask<Void> task  = new FutureTask<>(new Callable<Void>() {
+        @Override
+        public Void call() throws InvalidMessageException {
+          senderKeyMessages.get(index).verifySignature(signingKeys[index]);
+          return null;
+        }
+      });
+
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+
+      tasks.add(task);
+    }
+
+    boolean interrupted = false;
+
+    for (int i=0;i<tasks.size();i++) {
+      FutureTask<Void> task = tasks.get(i);
+
+      if (task == null) continue;
+
+      while (true) {
+        try {
+          task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof InvalidMessageException) failures[i] = (Exception)e.getCause();
+          else                                                 failures[i] = new InvalidMessageException(e.getCause());
+          break;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private byte[] decrypt(SenderKeyMessage senderKeyMessage, DecryptionCallback callback, ByteBuffer output)
+      throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
+             NoSessionException
+  {
+    senderKeyLock.lock();
+    try {
+      SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+
+      if (record.isEmpty()) {
+        throw new NoSessionException("No sender key for: " + senderKeyId);
       }
+
+      SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
+
+      senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+
+      SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+
+      byte[] plaintext = getPlainText(senderKey.getIv(), senderKey.getCipherKey(), senderKeyMessage.serialize(),
+                                      senderKeyMessage.getCipherTextOffset(), senderKeyMessage.getCipherTextLength(),
+                                      output);
+
+      callback.handlePlaintext(plaintext);
+
+      senderKeyStore.storeSenderKey(senderKeyId, record);
+
+      return plaintext;
+    } catch (org.whispersystems.modusa.InvalidKeyException | InvalidKeyIdException e) {
+      throw new InvalidMessageException(e);
+    } finally {
+      senderKeyLock.unlock();
     }
   }
 
@@ -161,52 +461,63 @@ public class GroupCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
-    while (senderChainKey.getIteration() < iteration) {
-      senderKeyState.addSenderMessageKey(senderChainKey.getSenderMessageKey());
-      senderChainKey = senderChainKey.getNext();
+    if (senderChainKey.getIteration() < iteration) {
+      senderChainKey = senderKeyState.skipSenderMessageKeys(senderChainKey, iteration);
     }
 
     senderKeyState.setSenderChainKey(senderChainKey.getNext());
     return senderChainKey.getSenderMessageKey();
   }
 
-  private byte[] getPlainText(byte[] iv, byte[] key, byte[] ciphertext)
+  private byte[] getPlainText(byte[] iv, byte[] key, byte[] ciphertext, int offset, int length, ByteBuffer output)
       throws InvalidMessageException
   {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Cipher cipher = CryptoPrimitives.getAesCbcCipher(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                                                     new IvParameterSpec(iv));
 
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+    if (output == null) {
+      try {
+        return cipher.doFinal(ciphertext, offset, length);
+      } catch (IllegalBlockSizeException | BadPaddingException e) {
+        throw new InvalidMessageException(e);
+      }
+    }
 
-      return cipher.doFinal(ciphertext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
-    {
-      throw new AssertionError(e);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+    int position = output.position();
+
+    try {
+      cipher.doFinal(ByteBuffer.wrap(ciphertext, offset, length), output);
+      return null;
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      output.position(position);
       throw new InvalidMessageException(e);
     }
   }
 
-  private byte[] getCipherText(byte[] iv, byte[] key, byte[] plaintext) {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
+  private Cipher getCipher(byte[] iv, byte[] key) {
+    return CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                                            new IvParameterSpec(iv));
+  }
 
-      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+  private byte[] getCipherText(byte[] iv, byte[] key, ByteBuffer plaintext) {
+    try {
+      Cipher cipher     = getCipher(iv, key);
+      byte[] ciphertext = new byte[cipher.getOutputSize(plaintext.remaining())];
+      int    length     = cipher.doFinal(plaintext, ByteBuffer.wrap(ciphertext));
 
-      return cipher.doFinal(plaintext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException |
-             IllegalBlockSizeException | BadPaddingException | java.security.InvalidKeyException e)
-    {
+      if (length == ciphertext.length) return ciphertext;
+      else                             return Arrays.copyOf(ciphertext, length);
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
-  private static class NullDecryptionCallback implements DecryptionCallback {
+  private static class NullDecryptionCallback implements DecryptionCallback, BatchDecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
+
+    @Override
+    public void handlePlaintexts(List<DecryptionResult> results) {}
   }
 
 }
@@ -5,11 +5,8 @@
  */
 package org.whispersystems.modusa.groups.ratchet;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+import org.whispersystems.modusa.ratchet.ChainWalker;
 
 /**
  * Each SenderKey is a "chain" of keys, each derived from the previous.
@@ -50,15 +47,15 @@ public class SenderChainKey {
     return chainKey;
   }
 
-  private byte[] getDerivative(byte[] seed, byte[] key) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+  /**
+   * @return A {@link ChainWalker} positioned at this chain key.
+   */
+  public ChainWalker walker() {
+    return new ChainWalker(chainKey, iteration);
+  }
 
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+  private byte[] getDerivative(byte[] seed, byte[] key) {
+    return CryptoPrimitives.getHmacSha256(key).doFinal(seed);
   }
 
 }
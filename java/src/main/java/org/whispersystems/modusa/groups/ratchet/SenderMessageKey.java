@@ -7,7 +7,8 @@
 package org.whispersystems.modusa.groups.ratchet;
 
 import org.whispersystems.modusa.kdf.HKDFv3;
-import org.whispersystems.modusa.util.ByteUtil;
+
+import java.util.Arrays;
 
 /**
  * The final symmetric material (IV and Cipher Key) used for encrypting
@@ -17,19 +18,20 @@ import org.whispersystems.modusa.util.ByteUtil;
  */
 public class SenderMessageKey {
 
+  private static final byte[] GROUP_INFO = "WhisperGroup".getBytes();
+
   private final int    iteration;
   private final byte[] iv;
   private final byte[] cipherKey;
   private final byte[] seed;
 
   public SenderMessageKey(int iteration, byte[] seed) {
-    byte[] derivative = new HKDFv3().deriveSecrets(seed, "WhisperGroup".getBytes(), 48);
-    byte[][] parts    = ByteUtil.split(derivative, 16, 32);
+    byte[] derivative = new HKDFv3().deriveSecrets(seed, GROUP_INFO, 48);
 
     this.iteration = iteration;
     this.seed      = seed;
-    this.iv        = parts[0];
-    this.cipherKey = parts[1];
+    this.iv        = Arrays.copyOfRange(derivative, 0, 16);
+    this.cipherKey = Arrays.copyOfRange(derivative, 16, 48);
   }
 
   public int getIteration() {
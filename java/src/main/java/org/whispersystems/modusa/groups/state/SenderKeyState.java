@@ -14,8 +14,10 @@ import org.whispersystems.modusa.ecc.ECPrivateKey;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.groups.ratchet.SenderChainKey;
 import org.whispersystems.modusa.groups.ratchet.SenderMessageKey;
+import org.whispersystems.modusa.ratchet.ChainWalker;
 import org.whispersystems.modusa.util.guava.Optional;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -128,6 +130,44 @@ public class SenderKeyState {
     this.senderKeyStateStructure = builder.build();
   }
 
+  /**
+   * Store the message keys for every iteration from chainKey up to, but not including,
+   * iteration, keeping at most the newest {@link #MAX_MESSAGE_KEYS}.  The state is
+   * rebuilt once for the whole run rather than once per key.
+   *
+   * @return The chain key at iteration.
+   */
+  public SenderChainKey skipSenderMessageKeys(SenderChainKey chainKey, int iteration) {
+    final SenderKeyStateStructure.Builder builder = this.senderKeyStateStructure.toBuilder();
+    ChainWalker                           walker  = chainKey.walker();
+
+    walker.advance(Math.max(0, iteration - MAX_MESSAGE_KEYS - walker.getIndex()));
+    walker.walk(iteration, new ChainWalker.Callback() {
+      @Override
+      public void onMessageKeySeed(int index, byte[] seed) {
+        builder.addSenderMessageKeys(SenderKeyStateStructure.SenderMessageKey.newBuilder()
+                                                                             .setIteration(index)
+                                                                             .setSeed(ByteString.copyFrom(seed)));
+      }
+    });
+
+    int count = builder.getSenderMessageKeysCount();
+
+    if (count > MAX_MESSAGE_KEYS) {
+      List<SenderKeyStateStructure.SenderMessageKey> keys =
+          new ArrayList<>(builder.getSenderMessageKeysList().subList(count - MAX_MESSAGE_KEYS, count));
+
+      builder.clearSenderMessageKeys().addAllSenderMessageKeys(keys);
+    }
+
+    this.senderKeyStateStructure = builder.build();
+
+    SenderChainKey result = new SenderChainKey(iteration, walker.getChainKey());
+    walker.clear();
+
+    return result;
+  }
+
   public SenderMessageKey removeSenderMessageKey(int iteration) {
     List<SenderKeyStateStructure.SenderMessageKey>     keys     = new LinkedList<>(senderKeyStateStructure.getSenderMessageKeysList());
     Iterator<SenderKeyStateStructure.SenderMessageKey> iterator = keys.iterator();
@@ -6,10 +6,6 @@
 
 package org.whispersystems.modusa.kdf;
 
-import org.whispersystems.modusa.util.ByteUtil;
-
-import java.text.ParseException;
-
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -25,15 +21,13 @@ public class DerivedMessageSecrets {
   private final IvParameterSpec iv;
 
   public DerivedMessageSecrets(byte[] okm) {
-    try {
-      byte[][] keys = ByteUtil.split(okm, CIPHER_KEY_LENGTH, MAC_KEY_LENGTH, IV_LENGTH);
-
-      this.cipherKey = new SecretKeySpec(keys[0], "AES");
-      this.macKey    = new SecretKeySpec(keys[1], "HmacSHA256");
-      this.iv        = new IvParameterSpec(keys[2]);
-    } catch (ParseException e) {
-      throw new AssertionError(e);
+    if (okm.length != SIZE) {
+      throw new AssertionError("Bad key material length: " + okm.length);
     }
+
+    this.cipherKey = new SecretKeySpec(okm, 0, CIPHER_KEY_LENGTH, "AES");
+    this.macKey    = new SecretKeySpec(okm, CIPHER_KEY_LENGTH, MAC_KEY_LENGTH, "HmacSHA256");
+    this.iv        = new IvParameterSpec(okm, CIPHER_KEY_LENGTH + MAC_KEY_LENGTH, IV_LENGTH);
   }
 
   public SecretKeySpec getCipherKey() {
@@ -5,9 +5,7 @@
  */
 package org.whispersystems.modusa.kdf;
 
-import org.whispersystems.modusa.util.ByteUtil;
-
-import java.text.ParseException;
+import java.util.Arrays;
 
 public class DerivedRootSecrets {
 
@@ -18,16 +16,11 @@ public class DerivedRootSecrets {
   private final byte[] authKey;
 
   public DerivedRootSecrets(byte[] okm) {
-    byte[][] keys;
-    try {
-      keys = ByteUtil.split(okm, 32, 32, 32);
-    } catch(ParseException e) {
-      keys = ByteUtil.split(okm, 32, 32);
-    }
-    this.rootKey  = keys[0];
-    this.chainKey = keys[1];
-    if(keys.length > 2) {
-      this.authKey = keys[2];
+    this.rootKey  = Arrays.copyOfRange(okm, 0, 32);
+    this.chainKey = Arrays.copyOfRange(okm, 32, 64);
+
+    if (okm.length >= SIZE) {
+      this.authKey = Arrays.copyOfRange(okm, 64, 96);
     } else {
       this.authKey = new byte[] {};
     }
@@ -6,73 +6,117 @@
 
 package org.whispersystems.modusa.kdf;
 
-import java.io.ByteArrayOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+
+import java.nio.ByteBuffer;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public abstract class HKDF {
 
   private static final int HASH_OUTPUT_SIZE  = 32;
 
+  private static final SecretKeySpec ZERO_SALT = new SecretKeySpec(new byte[HASH_OUTPUT_SIZE], "HmacSHA256");
+
   public static HKDF createFor(int messageVersion) {
     switch (messageVersion) {
       case 2:  return new HKDFv2();
       case 3:  return new HKDFv3();
+      case 4:  return new HKDFv3();
       default: throw new AssertionError("Unknown version: " + messageVersion);
     }
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] info, int outputLength) {
-    byte[] salt = new byte[HASH_OUTPUT_SIZE];
-    return deriveSecrets(inputKeyMaterial, salt, info, outputLength);
+    byte[] output = new byte[outputLength];
+    expand(extract(ZERO_SALT, inputKeyMaterial), info, output, 0, outputLength);
+    return output;
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, int outputLength) {
-    byte[] prk = extract(salt, inputKeyMaterial);
-    return expand(prk, info, outputLength);
+    byte[] output = new byte[outputLength];
+    deriveSecrets(inputKeyMaterial, salt, info, output, 0, outputLength);
+    return output;
   }
 
-  private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(salt, "HmacSHA256"));
-      return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
+  /**
+   * Derive outputLength bytes into output at offset, without intermediate buffers.
+   *
+   * @param salt The salt, or null for the all-zero salt.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info,
+                            byte[] output, int offset, int outputLength)
+  {
+    SecretKeySpec saltKey = salt == null ? ZERO_SALT : new SecretKeySpec(salt, "HmacSHA256");
+    expand(extract(saltKey, inputKeyMaterial), info, output, offset, outputLength);
+  }
+
+  /**
+   * Derive outputLength bytes into output at its position, advancing it.
+   *
+   * @param salt The salt, or null for the all-zero salt.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, ByteBuffer output, int outputLength) {
+    if (output.hasArray()) {
+      deriveSecrets(inputKeyMaterial, salt, info, output.array(), output.arrayOffset() + output.position(), outputLength);
+      output.position(output.position() + outputLength);
+    } else {
+      output.put(deriveSecrets(inputKeyMaterial, salt, info, outputLength));
     }
   }
 
-  private byte[] expand(byte[] prk, byte[] info, int outputSize) {
+  /**
+   * @return The cipher key, MAC key and IV derived with info, as used for each message.
+   */
+  public DerivedMessageSecrets deriveMessageSecrets(byte[] inputKeyMaterial, byte[] info) {
+    return new DerivedMessageSecrets(deriveSecrets(inputKeyMaterial, info, DerivedMessageSecrets.SIZE));
+  }
+
+  /**
+   * @return The root, chain and auth keys derived with salt and info, as used for each ratchet step.
+   */
+  public DerivedRootSecrets deriveRootSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info) {
+    return new DerivedRootSecrets(deriveSecrets(inputKeyMaterial, salt, info, DerivedRootSecrets.SIZE));
+  }
+
+  private SecretKeySpec extract(SecretKeySpec salt, byte[] inputKeyMaterial) {
+    return new SecretKeySpec(CryptoPrimitives.getHmacSha256(salt).doFinal(inputKeyMaterial), "HmacSHA256");
+  }
+
+  private void expand(SecretKeySpec prk, byte[] info, byte[] output, int offset, int outputSize) {
+    int    iterations = (outputSize + HASH_OUTPUT_SIZE - 1) / HASH_OUTPUT_SIZE;
+    int    start      = getIterationStartOffset();
+    Mac    mac        = CryptoPrimitives.getHmacSha256(prk);
+    byte[] partial    = null;
+
     try {
-      int                   iterations     = (int) Math.ceil((double) outputSize / (double) HASH_OUTPUT_SIZE);
-      byte[]                mixin          = new byte[0];
-      ByteArrayOutputStream results        = new ByteArrayOutputStream();
-      int                   remainingBytes = outputSize;
+      for (int i=0;i<iterations;i++) {
+        int blockOffset = offset + i * HASH_OUTPUT_SIZE;
+        int remaining   = outputSize - i * HASH_OUTPUT_SIZE;
 
-      for (int i= getIterationStartOffset();i<iterations + getIterationStartOffset();i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        // The previous block has already been written to output, so it is read back from there.
+        if (i > 0) {
+          mac.update(output, blockOffset - HASH_OUTPUT_SIZE, HASH_OUTPUT_SIZE);
+        }
 
-        mac.update(mixin);
         if (info != null) {
           mac.update(info);
         }
-        mac.update((byte)i);
 
-        byte[] stepResult = mac.doFinal();
-        int    stepSize   = Math.min(remainingBytes, stepResult.length);
+        mac.update((byte)(i + start));
 
-        results.write(stepResult, 0, stepSize);
+        if (remaining >= HASH_OUTPUT_SIZE) {
+          mac.doFinal(output, blockOffset);
+        } else {
+          if (partial == null) partial = new byte[HASH_OUTPUT_SIZE];
 
-        mixin          = stepResult;
-        remainingBytes -= stepSize;
+          mac.doFinal(partial, 0);
+          System.arraycopy(partial, 0, output, blockOffset, remaining);
+        }
       }
-
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
@@ -7,7 +7,16 @@ package org.whispersystems.modusa.protocol;
 
 public interface CiphertextMessage {
 
-  public static final int CURRENT_VERSION     = 3;
+  public static final int CURRENT_VERSION     = 4;
+
+  // The oldest session version that can still be created and used.
+  public static final int MIN_VERSION         = 3;
+
+  // Group messages are unchanged by version 4 sessions.
+  public static final int SENDER_KEY_VERSION  = 3;
+
+  // Session versions from this one on encrypt messages with AES-GCM instead of AES-CBC and HMAC.
+  public static final int AEAD_VERSION        = 4;
 
   public static final int WHISPER_TYPE                = 2;
   public static final int PREKEY_TYPE                 = 3;
@@ -5,22 +5,26 @@
  */
 package org.whispersystems.modusa.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.modusa.IdentityKey;
-import org.whispersystems.modusa.InvalidKeyException;
 import org.whispersystems.modusa.InvalidMessageException;
 import org.whispersystems.modusa.InvalidVersionException;
 import org.whispersystems.modusa.LegacyMessageException;
-import org.whispersystems.modusa.ecc.Curve;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.util.ByteUtil;
 import org.whispersystems.modusa.util.guava.Optional;
 
+import java.nio.ByteBuffer;
+
 
 public class PreKeySignalMessage implements CiphertextMessage {
 
+  private static final int PRE_KEY_ID_FIELD        = 1;
+  private static final int BASE_KEY_FIELD          = 2;
+  private static final int IDENTITY_KEY_FIELD      = 3;
+  private static final int MESSAGE_FIELD           = 4;
+  private static final int REGISTRATION_ID_FIELD   = 5;
+  private static final int SIGNED_PRE_KEY_ID_FIELD = 6;
+
   private final int               version;
   private final int               registrationId;
   private final Optional<Integer> preKeyId;
@@ -40,30 +44,73 @@ public class PreKeySignalMessage implements CiphertextMessage {
         throw new InvalidVersionException("Unknown version: " + this.version);
       }
 
-      if (this.version < CiphertextMessage.CURRENT_VERSION) {
+      if (this.version < CiphertextMessage.MIN_VERSION) {
         throw new LegacyMessageException("Legacy version: " + this.version);
       }
 
-      SignalProtos.PreKeySignalMessage preKeyWhisperMessage
-          = SignalProtos.PreKeySignalMessage.parseFrom(ByteString.copyFrom(serialized, 1,
-                                                                           serialized.length-1));
+      WireCodec.Reader reader = new WireCodec.Reader(serialized, 1, serialized.length - 1);
+
+      int     registrationId    = 0;
+      Integer preKeyId          = null;
+      int     signedPreKeyId    = -1;
+      boolean hasSignedPreKeyId = false;
+      int     baseKeyOffset     = -1;
+      int     baseKeyLength     = 0;
+      int     identityKeyOffset = -1;
+      int     identityKeyLength = 0;
+      int     messageOffset     = -1;
+      int     messageLength     = 0;
+
+      while (reader.hasRemaining()) {
+        int tag = reader.readTag();
+
+        switch (tag >>> 3) {
+          case REGISTRATION_ID_FIELD:
+            registrationId = reader.readUInt32(tag);
+            break;
+          case PRE_KEY_ID_FIELD:
+            preKeyId = reader.readUInt32(tag);
+            break;
+          case SIGNED_PRE_KEY_ID_FIELD:
+            signedPreKeyId    = reader.readUInt32(tag);
+            hasSignedPreKeyId = true;
+            break;
+          case BASE_KEY_FIELD:
+            reader.readBytes(tag);
+            baseKeyOffset = reader.getFieldOffset();
+            baseKeyLength = reader.getFieldLength();
+            break;
+          case IDENTITY_KEY_FIELD:
+            reader.readBytes(tag);
+            identityKeyOffset = reader.getFieldOffset();
+            identityKeyLength = reader.getFieldLength();
+            break;
+          case MESSAGE_FIELD:
+            reader.readBytes(tag);
+            messageOffset = reader.getFieldOffset();
+            messageLength = reader.getFieldLength();
+            break;
+          default:
+            reader.skipField(tag);
+        }
+      }
 
-      if (!preKeyWhisperMessage.hasSignedPreKeyId()  ||
-          !preKeyWhisperMessage.hasBaseKey()         ||
-          !preKeyWhisperMessage.hasIdentityKey()     ||
-          !preKeyWhisperMessage.hasMessage())
+      if (!hasSignedPreKeyId      ||
+          baseKeyOffset == -1     ||
+          identityKeyOffset == -1 ||
+          messageOffset == -1)
       {
         throw new InvalidMessageException("Incomplete message.");
       }
 
       this.serialized     = serialized;
-      this.registrationId = preKeyWhisperMessage.getRegistrationId();
-      this.preKeyId       = preKeyWhisperMessage.hasPreKeyId() ? Optional.of(preKeyWhisperMessage.getPreKeyId()) : Optional.<Integer>absent();
-      this.signedPreKeyId = preKeyWhisperMessage.hasSignedPreKeyId() ? preKeyWhisperMessage.getSignedPreKeyId() : -1;
-      this.baseKey        = Curve.decodePoint(preKeyWhisperMessage.getBaseKey().toByteArray(), 0);
-      this.identityKey    = new IdentityKey(Curve.decodePoint(preKeyWhisperMessage.getIdentityKey().toByteArray(), 0));
-      this.message        = new SignalMessage(preKeyWhisperMessage.getMessage().toByteArray());
-    } catch (InvalidProtocolBufferException | InvalidKeyException | LegacyMessageException e) {
+      this.registrationId = registrationId;
+      this.preKeyId       = Optional.fromNullable(preKeyId);
+      this.signedPreKeyId = signedPreKeyId;
+      this.baseKey        = WireCodec.decodePoint(serialized, baseKeyOffset, baseKeyLength);
+      this.identityKey    = new IdentityKey(WireCodec.decodePoint(serialized, identityKeyOffset, identityKeyLength));
+      this.message        = new SignalMessage(serialized, messageOffset, messageLength);
+    } catch (LegacyMessageException e) {
       throw new InvalidMessageException(e);
     }
   }
@@ -80,22 +127,64 @@ public class PreKeySignalMessage implements CiphertextMessage {
     this.identityKey    = identityKey;
     this.message        = message;
 
-    SignalProtos.PreKeySignalMessage.Builder builder =
-        SignalProtos.PreKeySignalMessage.newBuilder()
-                                        .setSignedPreKeyId(signedPreKeyId)
-                                        .setBaseKey(ByteString.copyFrom(baseKey.serialize()))
-                                        .setIdentityKey(ByteString.copyFrom(identityKey.serialize()))
-                                        .setMessage(ByteString.copyFrom(message.serialize()))
-                                        .setRegistrationId(registrationId);
+    byte[] baseKeyBytes     = baseKey.serialize();
+    byte[] identityKeyBytes = identityKey.serialize();
+    byte[] messageBytes     = message.serialize();
+    int    bodyLength       = WireCodec.bytesFieldSize(BASE_KEY_FIELD, baseKeyBytes.length)         +
+                              WireCodec.bytesFieldSize(IDENTITY_KEY_FIELD, identityKeyBytes.length) +
+                              WireCodec.bytesFieldSize(MESSAGE_FIELD, messageBytes.length)          +
+                              WireCodec.uint32FieldSize(REGISTRATION_ID_FIELD, registrationId)      +
+                              WireCodec.uint32FieldSize(SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
+
+    if (preKeyId.isPresent()) {
+      bodyLength += WireCodec.uint32FieldSize(PRE_KEY_ID_FIELD, preKeyId.get());
+    }
+
+    byte[] serialized = new byte[1 + bodyLength];
+    int    position   = 1;
+
+    serialized[0] = ByteUtil.intsToByteHighAndLow(this.version, CURRENT_VERSION);
 
     if (preKeyId.isPresent()) {
-      builder.setPreKeyId(preKeyId.get());
+      position = WireCodec.writeUInt32Field(serialized, position, PRE_KEY_ID_FIELD, preKeyId.get());
     }
 
-    byte[] versionBytes = {ByteUtil.intsToByteHighAndLow(this.version, CURRENT_VERSION)};
-    byte[] messageBytes = builder.build().toByteArray();
+    position = WireCodec.writeBytesField(serialized, position, BASE_KEY_FIELD, baseKeyBytes, 0, baseKeyBytes.length);
+    position = WireCodec.writeBytesField(serialized, position, IDENTITY_KEY_FIELD, identityKeyBytes, 0, identityKeyBytes.length);
+    position = WireCodec.writeBytesField(serialized, position, MESSAGE_FIELD, messageBytes, 0, messageBytes.length);
+    position = WireCodec.writeUInt32Field(serialized, position, REGISTRATION_ID_FIELD, registrationId);
+    WireCodec.writeUInt32Field(serialized, position, SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
+
+    this.serialized = serialized;
+  }
+
+  /**
+   * Write the start of a serialized message into a buffer, up to its {@link SignalMessage},
+   * so that the SignalMessage can be written straight into the same buffer with
+   * {@link SignalMessage#writeHeader(ByteBuffer, int, ECPublicKey, int, int, int)}.  The
+   * caller must then write exactly messageLength bytes of SignalMessage, followed by
+   * {@link #writeTrailer(ByteBuffer, int, int)}.
+   */
+  public static void writeHeader(ByteBuffer output, int messageVersion, Optional<Integer> preKeyId,
+                                 ECPublicKey baseKey, IdentityKey identityKey, int messageLength)
+  {
+    output.put(ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION));
+
+    if (preKeyId.isPresent()) {
+      WireCodec.writeUInt32Field(output, PRE_KEY_ID_FIELD, preKeyId.get());
+    }
+
+    WireCodec.writeBytesField(output, BASE_KEY_FIELD, baseKey.serialize());
+    WireCodec.writeBytesField(output, IDENTITY_KEY_FIELD, identityKey.serialize());
+    WireCodec.writeBytesFieldHeader(output, MESSAGE_FIELD, messageLength);
+  }
 
-    this.serialized = ByteUtil.combine(versionBytes, messageBytes);
+  /**
+   * Finish a message written with {@link #writeHeader(ByteBuffer, int, Optional, ECPublicKey, IdentityKey, int)}.
+   */
+  public static void writeTrailer(ByteBuffer output, int registrationId, int signedPreKeyId) {
+    WireCodec.writeUInt32Field(output, REGISTRATION_ID_FIELD, registrationId);
+    WireCodec.writeUInt32Field(output, SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
   }
 
   public int getMessageVersion() {
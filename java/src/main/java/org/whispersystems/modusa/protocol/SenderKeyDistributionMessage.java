@@ -24,7 +24,7 @@ public class SenderKeyDistributionMessage implements CiphertextMessage {
   private final byte[]      serialized;
 
   public SenderKeyDistributionMessage(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION)};
+    byte[] version = {ByteUtil.intsToByteHighAndLow(SENDER_KEY_VERSION, SENDER_KEY_VERSION)};
     byte[] protobuf = SignalProtos.SenderKeyDistributionMessage.newBuilder()
                                                                .setId(id)
                                                                .setIteration(iteration)
@@ -45,11 +45,11 @@ public class SenderKeyDistributionMessage implements CiphertextMessage {
       byte     version      = messageParts[0][0];
       byte[]   message      = messageParts[1];
 
-      if (ByteUtil.highBitsToInt(version) < CiphertextMessage.CURRENT_VERSION) {
+      if (ByteUtil.highBitsToInt(version) < SENDER_KEY_VERSION) {
         throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
       }
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
+      if (ByteUtil.highBitsToInt(version) > SENDER_KEY_VERSION) {
         throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
       }
 
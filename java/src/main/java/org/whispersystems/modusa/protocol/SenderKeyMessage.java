@@ -5,9 +5,6 @@
  */
 package org.whispersystems.modusa.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.modusa.InvalidKeyException;
 import org.whispersystems.modusa.InvalidMessageException;
 import org.whispersystems.modusa.LegacyMessageException;
@@ -16,67 +13,141 @@ import org.whispersystems.modusa.ecc.ECPrivateKey;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.util.ByteUtil;
 
-import java.text.ParseException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class SenderKeyMessage implements CiphertextMessage {
 
   private static final int SIGNATURE_LENGTH = 64;
 
+  private static final int ID_FIELD         = 1;
+  private static final int ITERATION_FIELD  = 2;
+  private static final int CIPHERTEXT_FIELD = 3;
+
   private final int         messageVersion;
   private final int         keyId;
   private final int         iteration;
-  private final byte[]      ciphertext;
+  private final int         ciphertextOffset;
+  private final int         ciphertextLength;
   private final byte[]      serialized;
 
+  private byte[] ciphertext;
+
   public SenderKeyMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
-    try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   signature    = messageParts[2];
+    if (serialized.length < 1 + SIGNATURE_LENGTH) {
+      throw new InvalidMessageException("Input too small: " + serialized.length);
+    }
 
-      if (ByteUtil.highBitsToInt(version) < 3) {
-        throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
-      }
+    int version = ByteUtil.highBitsToInt(serialized[0]);
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
-        throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
-      }
+    if (version < 3) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
 
-      SignalProtos.SenderKeyMessage senderKeyMessage = SignalProtos.SenderKeyMessage.parseFrom(message);
+    if (version > SENDER_KEY_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
 
-      if (!senderKeyMessage.hasId() ||
-          !senderKeyMessage.hasIteration() ||
-          !senderKeyMessage.hasCiphertext())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    WireCodec.Reader reader = new WireCodec.Reader(serialized, 1, serialized.length - 1 - SIGNATURE_LENGTH);
+
+    int     keyId            = 0;
+    boolean hasKeyId         = false;
+    int     iteration        = 0;
+    boolean hasIteration     = false;
+    int     ciphertextOffset = -1;
+    int     ciphertextLength = 0;
+
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+
+      switch (tag >>> 3) {
+        case ID_FIELD:
+          keyId    = reader.readUInt32(tag);
+          hasKeyId = true;
+          break;
+        case ITERATION_FIELD:
+          iteration    = reader.readUInt32(tag);
+          hasIteration = true;
+          break;
+        case CIPHERTEXT_FIELD:
+          reader.readBytes(tag);
+          ciphertextOffset = reader.getFieldOffset();
+          ciphertextLength = reader.getFieldLength();
+          break;
+        default:
+          reader.skipField(tag);
       }
+    }
 
-      this.serialized     = serialized;
-      this.messageVersion = ByteUtil.highBitsToInt(version);
-      this.keyId          = senderKeyMessage.getId();
-      this.iteration      = senderKeyMessage.getIteration();
-      this.ciphertext     = senderKeyMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | ParseException e) {
-      throw new InvalidMessageException(e);
+    if (!hasKeyId || !hasIteration || ciphertextOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
     }
+
+    this.serialized       = serialized;
+    this.messageVersion   = version;
+    this.keyId            = keyId;
+    this.iteration        = iteration;
+    this.ciphertextOffset = ciphertextOffset;
+    this.ciphertextLength = ciphertextLength;
+  }
+
+  /**
+   * Parse a message from a buffer's position to its limit, advancing its position to the limit.
+   */
+  public SenderKeyMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    this(ByteUtil.getRemaining(serialized));
   }
 
   public SenderKeyMessage(int keyId, int iteration, byte[] ciphertext, ECPrivateKey signatureKey) {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SenderKeyMessage.newBuilder()
-                                                  .setId(keyId)
-                                                  .setIteration(iteration)
-                                                  .setCiphertext(ByteString.copyFrom(ciphertext))
-                                                  .build().toByteArray();
+    int    bodyLength = WireCodec.uint32FieldSize(ID_FIELD, keyId)             +
+                        WireCodec.uint32FieldSize(ITERATION_FIELD, iteration)  +
+                        WireCodec.bytesFieldSize(CIPHERTEXT_FIELD, ciphertext.length);
+    byte[] message    = new byte[1 + bodyLength];
+    int    position   = 1;
+
+    message[0] = ByteUtil.intsToByteHighAndLow(SENDER_KEY_VERSION, SENDER_KEY_VERSION);
+
+    position = WireCodec.writeUInt32Field(message, position, ID_FIELD, keyId);
+    position = WireCodec.writeUInt32Field(message, position, ITERATION_FIELD, iteration);
+    position = WireCodec.writeBytesField(message, position, CIPHERTEXT_FIELD, ciphertext, 0, ciphertext.length);
 
-    byte[] signature = getSignature(signatureKey, ByteUtil.combine(version, message));
+    byte[] signature  = getSignature(signatureKey, message);
+    byte[] serialized = Arrays.copyOf(message, message.length + SIGNATURE_LENGTH);
+    System.arraycopy(signature, 0, serialized, message.length, SIGNATURE_LENGTH);
 
-    this.serialized       = ByteUtil.combine(version, message, signature);
-    this.messageVersion   = CURRENT_VERSION;
+    this.serialized       = serialized;
+    this.messageVersion   = SENDER_KEY_VERSION;
     this.keyId            = keyId;
     this.iteration        = iteration;
     this.ciphertext       = ciphertext;
+    this.ciphertextOffset = position - ciphertext.length;
+    this.ciphertextLength = ciphertext.length;
+  }
+
+  /**
+   * Write the start of a serialized message into a buffer, up to its encrypted body, so that
+   * the body can be encrypted straight into the same buffer.  The caller must then write
+   * exactly bodyLength bytes of body, followed by
+   * {@link #writeSignature(ByteBuffer, int, ECPrivateKey)}.
+   */
+  public static void writeHeader(ByteBuffer output, int keyId, int iteration, int bodyLength) {
+    output.put(ByteUtil.intsToByteHighAndLow(SENDER_KEY_VERSION, SENDER_KEY_VERSION));
+    WireCodec.writeUInt32Field(output, ID_FIELD, keyId);
+    WireCodec.writeUInt32Field(output, ITERATION_FIELD, iteration);
+    WireCodec.writeBytesFieldHeader(output, CIPHERTEXT_FIELD, bodyLength);
+  }
+
+  /**
+   * Finish a message written with {@link #writeHeader(ByteBuffer, int, int, int)} by
+   * appending the signature of everything written since messageOffset.  Signing takes the
+   * message as an array of its own, so that much is copied out of the buffer.
+   */
+  public static void writeSignature(ByteBuffer output, int messageOffset, ECPrivateKey signatureKey) {
+    ByteBuffer message = output.duplicate();
+    message.limit(output.position());
+    message.position(messageOffset);
+
+    output.put(getSignature(signatureKey, ByteUtil.getRemaining(message)));
   }
 
   public int getKeyId() {
@@ -88,16 +159,36 @@ public class SenderKeyMessage implements CiphertextMessage {
   }
 
   public byte[] getCipherText() {
+    if (ciphertext == null) {
+      ciphertext = Arrays.copyOfRange(serialized, ciphertextOffset, ciphertextOffset + ciphertextLength);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return The offset of the ciphertext in {@link #serialize()}.
+   */
+  public int getCipherTextOffset() {
+    return ciphertextOffset;
+  }
+
+  /**
+   * @return The length of the ciphertext.
+   */
+  public int getCipherTextLength() {
+    return ciphertextLength;
+  }
+
   public void verifySignature(ECPublicKey signatureKey)
       throws InvalidMessageException
   {
     try {
-      byte[][] parts    = ByteUtil.split(serialized, serialized.length - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+      int    messageLength = serialized.length - SIGNATURE_LENGTH;
+      byte[] message       = Arrays.copyOf(serialized, messageLength);
+      byte[] signature     = Arrays.copyOfRange(serialized, messageLength, serialized.length);
 
-      if (!Curve.verifySignature(signatureKey, parts[0], parts[1])) {
+      if (!Curve.verifySignature(signatureKey, message, signature)) {
         throw new InvalidMessageException("Invalid signature!");
       }
 
@@ -106,7 +197,7 @@ public class SenderKeyMessage implements CiphertextMessage {
     }
   }
 
-  private byte[] getSignature(ECPrivateKey signatureKey, byte[] serialized) {
+  private static byte[] getSignature(ECPrivateKey signatureKey, byte[] serialized) {
     try {
       return Curve.calculateSignature(signatureKey, serialized);
     } catch (InvalidKeyException e) {
@@ -5,20 +5,15 @@
  */
 package org.whispersystems.modusa.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.modusa.IdentityKey;
-import org.whispersystems.modusa.InvalidKeyException;
 import org.whispersystems.modusa.InvalidMessageException;
 import org.whispersystems.modusa.LegacyMessageException;
-import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.util.ByteUtil;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -27,68 +22,187 @@ public class SignalMessage implements CiphertextMessage {
 
   private static final int MAC_LENGTH = 8;
 
+  private static final int RATCHET_KEY_FIELD      = 1;
+  private static final int COUNTER_FIELD          = 2;
+  private static final int PREVIOUS_COUNTER_FIELD = 3;
+  private static final int CIPHERTEXT_FIELD       = 4;
+
   private final int         messageVersion;
   private final ECPublicKey senderRatchetKey;
   private final int         counter;
   private final int         previousCounter;
-  private final byte[]      ciphertext;
-  private final byte[]      serialized;
+  private final byte[]      buffer;
+  private final int         offset;
+  private final int         length;
+  private final int         ciphertextOffset;
+  private final int         ciphertextLength;
+
+  private byte[] ciphertext;
+  private byte[] serialized;
 
   public SignalMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
-    try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - MAC_LENGTH, MAC_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   mac          = messageParts[2];
-
-      if (ByteUtil.highBitsToInt(version) < CURRENT_VERSION) {
-        throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
-      }
+    this(serialized, 0, serialized.length);
+  }
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
-        throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
-      }
+  /**
+   * Parse a message from a region of a larger array, without copying it.  The array must
+   * not be modified while the message is in use.
+   */
+  SignalMessage(byte[] buffer, int offset, int length)
+      throws InvalidMessageException, LegacyMessageException
+  {
+    if (length < 1) {
+      throw new InvalidMessageException("Input too small: " + length);
+    }
 
-      SignalProtos.SignalMessage whisperMessage = SignalProtos.SignalMessage.parseFrom(message);
+    int version = ByteUtil.highBitsToInt(buffer[offset]);
 
-      if (!whisperMessage.hasCiphertext() ||
-          !whisperMessage.hasCounter() ||
-          !whisperMessage.hasRatchetKey())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    if (version < MIN_VERSION) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    int macLength = getMacLength(version);
+
+    if (length < 1 + macLength) {
+      throw new InvalidMessageException("Input too small: " + length);
+    }
+
+    WireCodec.Reader reader = new WireCodec.Reader(buffer, offset + 1, length - 1 - macLength);
+
+    int     ratchetKeyOffset = -1;
+    int     ratchetKeyLength = 0;
+    int     counter          = 0;
+    boolean hasCounter       = false;
+    int     previousCounter  = 0;
+    int     ciphertextOffset = -1;
+    int     ciphertextLength = 0;
+
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+
+      switch (tag >>> 3) {
+        case RATCHET_KEY_FIELD:
+          reader.readBytes(tag);
+          ratchetKeyOffset = reader.getFieldOffset();
+          ratchetKeyLength = reader.getFieldLength();
+          break;
+        case COUNTER_FIELD:
+          counter    = reader.readUInt32(tag);
+          hasCounter = true;
+          break;
+        case PREVIOUS_COUNTER_FIELD:
+          previousCounter = reader.readUInt32(tag);
+          break;
+        case CIPHERTEXT_FIELD:
+          reader.readBytes(tag);
+          ciphertextOffset = reader.getFieldOffset();
+          ciphertextLength = reader.getFieldLength();
+          break;
+        default:
+          reader.skipField(tag);
       }
+    }
+
+    if (ciphertextOffset == -1 || !hasCounter || ratchetKeyOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
 
-      this.serialized       = serialized;
-      this.senderRatchetKey = Curve.decodePoint(whisperMessage.getRatchetKey().toByteArray(), 0);
-      this.messageVersion   = ByteUtil.highBitsToInt(version);
-      this.counter          = whisperMessage.getCounter();
-      this.previousCounter  = whisperMessage.getPreviousCounter();
-      this.ciphertext       = whisperMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | InvalidKeyException | ParseException e) {
-      throw new InvalidMessageException(e);
+    this.buffer           = buffer;
+    this.offset           = offset;
+    this.length           = length;
+    this.senderRatchetKey = WireCodec.decodePoint(buffer, ratchetKeyOffset, ratchetKeyLength);
+    this.messageVersion   = version;
+    this.counter          = counter;
+    this.previousCounter  = previousCounter;
+    this.ciphertextOffset = ciphertextOffset;
+    this.ciphertextLength = ciphertextLength;
+
+    if (offset == 0 && length == buffer.length) {
+      this.serialized = buffer;
     }
   }
 
+  /**
+   * Parse a message from a buffer's position to its limit, advancing its position to the limit.
+   * <p>
+   * A message in a heap buffer is parsed in place, without copying it, so the buffer's
+   * contents must not be modified while the message is in use.  A message in a direct
+   * buffer is copied out first.
+   */
+  public SignalMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    this(serialized.hasArray() ? serialized.array() : ByteUtil.getRemaining(serialized.duplicate()),
+         serialized.hasArray() ? serialized.arrayOffset() + serialized.position() : 0,
+         serialized.remaining());
+
+    serialized.position(serialized.limit());
+  }
+
   public SignalMessage(int messageVersion, SecretKeySpec macKey, ECPublicKey senderRatchetKey,
                        int counter, int previousCounter, byte[] ciphertext,
                        IdentityKey senderIdentityKey,
                        IdentityKey receiverIdentityKey)
   {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SignalMessage.newBuilder()
-                                               .setRatchetKey(ByteString.copyFrom(senderRatchetKey.serialize()))
-                                               .setCounter(counter)
-                                               .setPreviousCounter(previousCounter)
-                                               .setCiphertext(ByteString.copyFrom(ciphertext))
-                                               .build().toByteArray();
+    this(messageVersion, macKey, senderRatchetKey, counter, previousCounter, ciphertext,
+         getMacPrefix(senderIdentityKey, receiverIdentityKey));
+  }
 
-    byte[] mac     = getMac(senderIdentityKey, receiverIdentityKey, macKey, ByteUtil.combine(version, message));
+  /**
+   * Construct a message, authenticating it with a MAC prefix computed ahead of time.
+   *
+   * @param macPrefix The result of {@link #getMacPrefix(IdentityKey, IdentityKey)} for the
+   *                  sender and receiver identity keys.
+   */
+  public SignalMessage(int messageVersion, SecretKeySpec macKey, ECPublicKey senderRatchetKey,
+                       int counter, int previousCounter, byte[] ciphertext, byte[] macPrefix)
+  {
+    this(messageVersion, senderRatchetKey, counter, previousCounter, ciphertext, macKey, macPrefix);
+  }
 
-    this.serialized       = ByteUtil.combine(version, message, mac);
+  /**
+   * Construct a message for an AEAD session version, which has no MAC of its own.  The
+   * ciphertext must already authenticate {@link #getAssociatedData(byte[], int, ECPublicKey, int, int)}
+   * for the same header values.
+   */
+  public SignalMessage(int messageVersion, ECPublicKey senderRatchetKey,
+                       int counter, int previousCounter, byte[] ciphertext)
+  {
+    this(messageVersion, senderRatchetKey, counter, previousCounter, ciphertext, null, null);
+  }
+
+  private SignalMessage(int messageVersion, ECPublicKey senderRatchetKey,
+                        int counter, int previousCounter, byte[] ciphertext,
+                        SecretKeySpec macKey, byte[] macPrefix)
+  {
+    byte[] ratchetKey = senderRatchetKey.serialize();
+    int    macLength  = getMacLength(messageVersion);
+    int    bodyLength = getHeaderLength(ratchetKey, counter, previousCounter) +
+                        WireCodec.bytesFieldSize(CIPHERTEXT_FIELD, ciphertext.length);
+    byte[] serialized = new byte[1 + bodyLength + macLength];
+
+    serialized[0] = ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION);
+
+    int position = writeHeader(serialized, 1, ratchetKey, counter, previousCounter);
+    position = WireCodec.writeBytesField(serialized, position, CIPHERTEXT_FIELD, ciphertext, 0, ciphertext.length);
+
+    if (macLength > 0) {
+      byte[] mac = getMac(macPrefix, macKey, serialized, 0, position);
+      System.arraycopy(mac, 0, serialized, position, macLength);
+    }
+
+    this.buffer           = serialized;
+    this.offset           = 0;
+    this.length           = serialized.length;
+    this.serialized       = serialized;
     this.senderRatchetKey = senderRatchetKey;
     this.counter          = counter;
     this.previousCounter  = previousCounter;
     this.ciphertext       = ciphertext;
+    this.ciphertextOffset = position - ciphertext.length;
+    this.ciphertextLength = ciphertext.length;
     this.messageVersion   = messageVersion;
   }
 
@@ -105,41 +219,185 @@ public class SignalMessage implements CiphertextMessage {
   }
 
   public byte[] getBody() {
+    if (ciphertext == null) {
+      ciphertext = Arrays.copyOfRange(buffer, ciphertextOffset, ciphertextOffset + ciphertextLength);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return The array holding the encrypted body, which is the array returned by
+   *         {@link #serialize()} or the PreKeySignalMessage this message was parsed from.
+   */
+  public byte[] getBodyBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return The offset of the encrypted body in {@link #getBodyBuffer()}.
+   */
+  public int getBodyOffset() {
+    return ciphertextOffset;
+  }
+
+  /**
+   * @return The length of the encrypted body.
+   */
+  public int getBodyLength() {
+    return ciphertextLength;
+  }
+
   public void verifyMac(IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey, SecretKeySpec macKey)
       throws InvalidMessageException
   {
-    byte[][] parts    = ByteUtil.split(serialized, serialized.length - MAC_LENGTH, MAC_LENGTH);
-    byte[]   ourMac   = getMac(senderIdentityKey, receiverIdentityKey, macKey, parts[0]);
-    byte[]   theirMac = parts[1];
+    verifyMac(getMacPrefix(senderIdentityKey, receiverIdentityKey), macKey);
+  }
+
+  /**
+   * Verify this message's MAC with a MAC prefix computed ahead of time.
+   *
+   * @param macPrefix The result of {@link #getMacPrefix(IdentityKey, IdentityKey)} for the
+   *                  sender and receiver identity keys.
+   */
+  public void verifyMac(byte[] macPrefix, SecretKeySpec macKey)
+      throws InvalidMessageException
+  {
+    if (getMacLength(messageVersion) == 0) {
+      throw new InvalidMessageException("Version " + messageVersion + " messages have no MAC");
+    }
 
-    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+    int    macOffset = offset + length - MAC_LENGTH;
+    byte[] ourMac    = getMac(macPrefix, macKey, buffer, offset, length - MAC_LENGTH);
+
+    if (!WireCodec.isEqual(ourMac, 0, buffer, macOffset, MAC_LENGTH)) {
       throw new InvalidMessageException("Bad Mac!");
     }
   }
 
-  private byte[] getMac(IdentityKey senderIdentityKey,
-                        IdentityKey receiverIdentityKey,
-                        SecretKeySpec macKey, byte[] serialized)
+  /**
+   * @param  macPrefix The result of {@link #getMacPrefix(IdentityKey, IdentityKey)} for the
+   *                   sender and receiver identity keys.
+   * @return The associated data an AEAD session version authenticates with this message's
+   *         ciphertext: the identity keys, the version byte and the encoded header fields.
+   */
+  public byte[] getAssociatedData(byte[] macPrefix) {
+    return getAssociatedData(macPrefix, buffer[offset], senderRatchetKey, counter, previousCounter);
+  }
+
+  /**
+   * @return The associated data of a message that is about to be constructed with
+   *         {@link #SignalMessage(int, ECPublicKey, int, int, byte[])}.
+   */
+  public static byte[] getAssociatedData(byte[] macPrefix, int messageVersion, ECPublicKey senderRatchetKey,
+                                         int counter, int previousCounter)
+  {
+    return getAssociatedData(macPrefix, ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION),
+                             senderRatchetKey, counter, previousCounter);
+  }
+
+  private static byte[] getAssociatedData(byte[] macPrefix, byte version, ECPublicKey senderRatchetKey,
+                                          int counter, int previousCounter)
   {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
+    byte[] ratchetKey     = senderRatchetKey.serialize();
+    byte[] associatedData = new byte[macPrefix.length + 1 + getHeaderLength(ratchetKey, counter, previousCounter)];
 
-      mac.update(senderIdentityKey.getPublicKey().serialize());
-      mac.update(receiverIdentityKey.getPublicKey().serialize());
+    System.arraycopy(macPrefix, 0, associatedData, 0, macPrefix.length);
+    associatedData[macPrefix.length] = version;
+    writeHeader(associatedData, macPrefix.length + 1, ratchetKey, counter, previousCounter);
 
-      byte[] fullMac = mac.doFinal(serialized);
-      return ByteUtil.trim(fullMac, MAC_LENGTH);
-    } catch (NoSuchAlgorithmException | java.security.InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return associatedData;
+  }
+
+  /**
+   * @return The serialized length of a message with these header values and an encrypted
+   *         body of bodyLength bytes.
+   */
+  public static int getSerializedLength(int messageVersion, ECPublicKey senderRatchetKey,
+                                        int counter, int previousCounter, int bodyLength)
+  {
+    return 1 + getHeaderLength(senderRatchetKey.serialize(), counter, previousCounter) +
+           WireCodec.bytesFieldSize(CIPHERTEXT_FIELD, bodyLength) + getMacLength(messageVersion);
+  }
+
+  /**
+   * Write the start of a serialized message into a buffer, up to its encrypted body, so that
+   * the body can be encrypted straight into the same buffer.  The caller must then write
+   * exactly bodyLength bytes of body, followed by {@link #writeMac(ByteBuffer, int, byte[], SecretKeySpec)}
+   * for session versions that have a MAC.
+   */
+  public static void writeHeader(ByteBuffer output, int messageVersion, ECPublicKey senderRatchetKey,
+                                 int counter, int previousCounter, int bodyLength)
+  {
+    output.put(ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION));
+    WireCodec.writeBytesField(output, RATCHET_KEY_FIELD, senderRatchetKey.serialize());
+    WireCodec.writeUInt32Field(output, COUNTER_FIELD, counter);
+    WireCodec.writeUInt32Field(output, PREVIOUS_COUNTER_FIELD, previousCounter);
+    WireCodec.writeBytesFieldHeader(output, CIPHERTEXT_FIELD, bodyLength);
+  }
+
+  /**
+   * Finish a message written with {@link #writeHeader(ByteBuffer, int, ECPublicKey, int, int, int)}
+   * by appending the MAC of everything written since messageOffset.
+   *
+   * @param macPrefix The result of {@link #getMacPrefix(IdentityKey, IdentityKey)} for the
+   *                  sender and receiver identity keys.
+   */
+  public static void writeMac(ByteBuffer output, int messageOffset, byte[] macPrefix, SecretKeySpec macKey) {
+    ByteBuffer message = output.duplicate();
+    message.limit(output.position());
+    message.position(messageOffset);
+
+    Mac mac = CryptoPrimitives.getHmacSha256(macKey);
+    mac.update(macPrefix);
+    mac.update(message);
+
+    output.put(mac.doFinal(), 0, MAC_LENGTH);
+  }
+
+  private static int getHeaderLength(byte[] ratchetKey, int counter, int previousCounter) {
+    return WireCodec.bytesFieldSize(RATCHET_KEY_FIELD, ratchetKey.length) +
+           WireCodec.uint32FieldSize(COUNTER_FIELD, counter)               +
+           WireCodec.uint32FieldSize(PREVIOUS_COUNTER_FIELD, previousCounter);
+  }
+
+  private static int writeHeader(byte[] output, int position, byte[] ratchetKey, int counter, int previousCounter) {
+    position = WireCodec.writeBytesField(output, position, RATCHET_KEY_FIELD, ratchetKey, 0, ratchetKey.length);
+    position = WireCodec.writeUInt32Field(output, position, COUNTER_FIELD, counter);
+    return WireCodec.writeUInt32Field(output, position, PREVIOUS_COUNTER_FIELD, previousCounter);
+  }
+
+  private static int getMacLength(int messageVersion) {
+    return messageVersion >= AEAD_VERSION ? 0 : MAC_LENGTH;
+  }
+
+  /**
+   * Every MAC in a session starts with the same two identity keys, as does the associated
+   * data of AEAD session versions.  Callers that authenticate many messages can compute
+   * them once with this method.
+   *
+   * @return The identity keys that begin the MAC input, in the order they are hashed.
+   */
+  public static byte[] getMacPrefix(IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey) {
+    return ByteUtil.combine(senderIdentityKey.getPublicKey().serialize(),
+                            receiverIdentityKey.getPublicKey().serialize());
+  }
+
+  private byte[] getMac(byte[] macPrefix, SecretKeySpec macKey, byte[] serialized, int offset, int length) {
+    Mac mac = CryptoPrimitives.getHmacSha256(macKey);
+
+    mac.update(macPrefix);
+    mac.update(serialized, offset, length);
+
+    return mac.doFinal();
   }
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      serialized = Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
     return serialized;
   }
 
@@ -150,7 +408,7 @@ public class SignalMessage implements CiphertextMessage {
 
   public static boolean isLegacy(byte[] message) {
     return message != null && message.length >= 1 &&
-        ByteUtil.highBitsToInt(message[0]) != CiphertextMessage.CURRENT_VERSION;
+        ByteUtil.highBitsToInt(message[0]) < CiphertextMessage.MIN_VERSION;
   }
 
 }
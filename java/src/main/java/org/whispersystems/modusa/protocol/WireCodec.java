@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.protocol;
+
+import org.whispersystems.modusa.InvalidKeyException;
+import org.whispersystems.modusa.InvalidMessageException;
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the protobuf wire encoding of the messages in WhisperTextProtocol.proto
+ * directly against offset/length regions of a byte array, or at the position of a
+ * {@link ByteBuffer}.
+ * <p>
+ * Only what those messages use is supported: uint32 fields and bytes fields.  Unknown
+ * fields are skipped, and a repeated field replaces the earlier value, as the generated
+ * parsers do.  Fields are written in field number order, which makes the output
+ * byte-for-byte identical to the generated serializers.
+ */
+final class WireCodec {
+
+  static final int WIRETYPE_VARINT           = 0;
+  static final int WIRETYPE_FIXED64          = 1;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  static final int WIRETYPE_FIXED32          = 5;
+
+  private static final int PUBLIC_KEY_LENGTH = 33;
+
+  private WireCodec() {}
+
+  static int uint32FieldSize(int field, int value) {
+    return varint32Size(field << 3) + varint32Size(value);
+  }
+
+  static int bytesFieldSize(int field, int length) {
+    return varint32Size(field << 3) + varint32Size(length) + length;
+  }
+
+  static int writeUInt32Field(byte[] output, int offset, int field, int value) {
+    offset = writeVarint32(output, offset, (field << 3) | WIRETYPE_VARINT);
+    return writeVarint32(output, offset, value);
+  }
+
+  static int writeBytesField(byte[] output, int offset, int field, byte[] value, int valueOffset, int length) {
+    offset = writeVarint32(output, offset, (field << 3) | WIRETYPE_LENGTH_DELIMITED);
+    offset = writeVarint32(output, offset, length);
+    System.arraycopy(value, valueOffset, output, offset, length);
+    return offset + length;
+  }
+
+  static void writeUInt32Field(ByteBuffer output, int field, int value) {
+    writeVarint32(output, (field << 3) | WIRETYPE_VARINT);
+    writeVarint32(output, value);
+  }
+
+  static void writeBytesField(ByteBuffer output, int field, byte[] value) {
+    writeBytesFieldHeader(output, field, value.length);
+    output.put(value);
+  }
+
+  /**
+   * Write the tag and length of a bytes field, leaving its value for the caller to write.
+   */
+  static void writeBytesFieldHeader(ByteBuffer output, int field, int length) {
+    writeVarint32(output, (field << 3) | WIRETYPE_LENGTH_DELIMITED);
+    writeVarint32(output, length);
+  }
+
+  static int varint32Size(int value) {
+    if ((value & (0xffffffff <<  7)) == 0) return 1;
+    if ((value & (0xffffffff << 14)) == 0) return 2;
+    if ((value & (0xffffffff << 21)) == 0) return 3;
+    if ((value & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  static int writeVarint32(byte[] output, int offset, int value) {
+    while ((value & ~0x7F) != 0) {
+      output[offset++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    output[offset++] = (byte)value;
+    return offset;
+  }
+
+  static void writeVarint32(ByteBuffer output, int value) {
+    while ((value & ~0x7F) != 0) {
+      output.put((byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    output.put((byte)value);
+  }
+
+  /**
+   * Decode a public key that must fill at least the given region, rather than reading
+   * past it into whatever follows.
+   */
+  static ECPublicKey decodePoint(byte[] input, int offset, int length) throws InvalidMessageException {
+    try {
+      if (length < PUBLIC_KEY_LENGTH) {
+        throw new InvalidKeyException("Bad key length: " + length);
+      }
+
+      return Curve.decodePoint(input, offset);
+    } catch (InvalidKeyException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  /**
+   * Constant time comparison of two regions of the same length.
+   */
+  static boolean isEqual(byte[] first, int firstOffset, byte[] second, int secondOffset, int length) {
+    int result = 0;
+
+    for (int i=0;i<length;i++) {
+      result |= first[firstOffset + i] ^ second[secondOffset + i];
+    }
+
+    return result == 0;
+  }
+
+  /**
+   * A cursor over the encoded fields of one message.
+   */
+  static class Reader {
+
+    private final byte[] input;
+    private final int    limit;
+
+    private int position;
+    private int fieldOffset;
+    private int fieldLength;
+
+    Reader(byte[] input, int offset, int length) {
+      this.input    = input;
+      this.position = offset;
+      this.limit    = offset + length;
+    }
+
+    boolean hasRemaining() {
+      return position < limit;
+    }
+
+    /**
+     * @return The tag of the next field, with the field number in the high bits and the
+     *         wire type in the low three bits.
+     */
+    int readTag() throws InvalidMessageException {
+      int tag = readVarint32();
+
+      if ((tag >>> 3) == 0) {
+        throw new InvalidMessageException("Invalid tag: " + tag);
+      }
+
+      return tag;
+    }
+
+    int readUInt32(int tag) throws InvalidMessageException {
+      if ((tag & 0x7) != WIRETYPE_VARINT) {
+        throw new InvalidMessageException("Bad wire type for field: " + (tag >>> 3));
+      }
+
+      return readVarint32();
+    }
+
+    /**
+     * Read a bytes field, leaving its location in {@link #getFieldOffset()} and
+     * {@link #getFieldLength()}.
+     */
+    void readBytes(int tag) throws InvalidMessageException {
+      if ((tag & 0x7) != WIRETYPE_LENGTH_DELIMITED) {
+        throw new InvalidMessageException("Bad wire type for field: " + (tag >>> 3));
+      }
+
+      int length = readVarint32();
+
+      if (length < 0 || length > limit - position) {
+        throw new InvalidMessageException("Truncated field: " + (tag >>> 3));
+      }
+
+      fieldOffset  = position;
+      fieldLength  = length;
+      position    += length;
+    }
+
+    int getFieldOffset() {
+      return fieldOffset;
+    }
+
+    int getFieldLength() {
+      return fieldLength;
+    }
+
+    void skipField(int tag) throws InvalidMessageException {
+      switch (tag & 0x7) {
+        case WIRETYPE_VARINT:           readVarint64();    break;
+        case WIRETYPE_LENGTH_DELIMITED: readBytes(tag);    break;
+        case WIRETYPE_FIXED64:          skipRawBytes(8);   break;
+        case WIRETYPE_FIXED32:          skipRawBytes(4);   break;
+        default: throw new InvalidMessageException("Unsupported wire type: " + (tag & 0x7));
+      }
+    }
+
+    private int readVarint32() throws InvalidMessageException {
+      int result = 0;
+
+      for (int shift=0;shift<32;shift+=7) {
+        byte b = readRawByte();
+        result |= (b & 0x7F) << shift;
+        if (b >= 0) return result;
+      }
+
+      // Wider varints are truncated to their low 32 bits.
+      for (int i=0;i<5;i++) {
+        if (readRawByte() >= 0) return result;
+      }
+
+      throw new InvalidMessageException("Malformed varint");
+    }
+
+    private void readVarint64() throws InvalidMessageException {
+      for (int i=0;i<10;i++) {
+        if (readRawByte() >= 0) return;
+      }
+
+      throw new InvalidMessageException("Malformed varint");
+    }
+
+    private byte readRawByte() throws InvalidMessageException {
+      if (position >= limit) {
+        throw new InvalidMessageException("Truncated message");
+      }
+
+      return input[position++];
+    }
+
+    private void skipRawBytes(int count) throws InvalidMessageException {
+      if (count > limit - position) {
+        throw new InvalidMessageException("Truncated message");
+      }
+
+      position += count;
+    }
+  }
+}
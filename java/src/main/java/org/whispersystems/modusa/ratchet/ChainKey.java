@@ -6,20 +6,19 @@
 package org.whispersystems.modusa.ratchet;
 
 
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
 import org.whispersystems.modusa.kdf.DerivedMessageSecrets;
 import org.whispersystems.modusa.kdf.HKDF;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 public class ChainKey {
 
   private static final byte[] MESSAGE_KEY_SEED = {0x01};
   private static final byte[] CHAIN_KEY_SEED   = {0x02};
 
+  private static final byte[] MESSAGE_KEYS_INFO = "WhisperMessageKeys".getBytes();
+
   private final HKDF   kdf;
   private final byte[] key;
   private final int    index;
@@ -44,21 +43,28 @@ public class ChainKey {
   }
 
   public MessageKeys getMessageKeys() {
-    byte[]                inputKeyMaterial = getBaseMaterial(MESSAGE_KEY_SEED);
-    byte[]                keyMaterialBytes = kdf.deriveSecrets(inputKeyMaterial, "WhisperMessageKeys".getBytes(), DerivedMessageSecrets.SIZE);
-    DerivedMessageSecrets keyMaterial      = new DerivedMessageSecrets(keyMaterialBytes);
+    return getMessageKeys(kdf, getBaseMaterial(MESSAGE_KEY_SEED), index);
+  }
+
+  /**
+   * @return A {@link ChainWalker} positioned at this chain key.
+   */
+  public ChainWalker walker() {
+    return new ChainWalker(key, index);
+  }
 
+  /**
+   * Derive the message keys for a seed produced by a {@link ChainWalker}.
+   *
+   * @param seed  The message key seed for index.
+   * @param index The chain index the seed was derived at.
+   */
+  public static MessageKeys getMessageKeys(HKDF kdf, byte[] seed, int index) {
+    DerivedMessageSecrets keyMaterial = kdf.deriveMessageSecrets(seed, MESSAGE_KEYS_INFO);
     return new MessageKeys(keyMaterial.getCipherKey(), keyMaterial.getMacKey(), keyMaterial.getIv(), index);
   }
 
   private byte[] getBaseMaterial(byte[] seed) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return CryptoPrimitives.getHmacSha256(key).doFinal(seed);
   }
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.ratchet;
+
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Advances a symmetric key chain in place.
+ * <p>
+ * Both the session receiver chains ({@link ChainKey}) and the group sender chains
+ * ({@link org.whispersystems.modusa.groups.ratchet.SenderChainKey}) step the same way:
+ * the next chain key is HMAC(key, 0x02) and the seed for the current message key is
+ * HMAC(key, 0x01).  Where those classes allocate new chain key objects and a new Mac
+ * for every step, a ChainWalker re-keys this thread's pooled Mac from
+ * {@link CryptoPrimitives} and keeps the chain key in one buffer for an entire walk,
+ * so skipping over a large gap costs little more than the HMACs themselves.
+ * <p>
+ * Between calls a walker holds no key material but its current chain key.  Callers
+ * should {@link #clear()} it once they have read that key.  Instances are not thread
+ * safe.
+ */
+public class ChainWalker {
+
+  private static final String HMAC_SHA256      = "HmacSHA256";
+  private static final int    KEY_LENGTH       = 32;
+  private static final byte   MESSAGE_KEY_SEED = 0x01;
+  private static final byte   CHAIN_KEY_SEED   = 0x02;
+
+  public interface Callback {
+    /**
+     * @param index The chain index the seed was derived at.
+     * @param seed  The message key seed.  This buffer is reused for the next step, so
+     *              implementations must copy it if they keep it.
+     */
+    public void onMessageKeySeed(int index, byte[] seed);
+  }
+
+  private final byte[] seed = new byte[KEY_LENGTH];
+  private final byte[] key;
+
+  private int keyLength;
+  private int index;
+
+  /**
+   * @param chainKey The chain key to start from.  It is copied, not modified.
+   * @param index    The index of chainKey in its chain.
+   */
+  public ChainWalker(byte[] chainKey, int index) {
+    this.key       = Arrays.copyOf(chainKey, Math.max(chainKey.length, KEY_LENGTH));
+    this.keyLength = chainKey.length;
+    this.index     = index;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return A copy of the current chain key.
+   */
+  public byte[] getChainKey() {
+    return Arrays.copyOf(key, keyLength);
+  }
+
+  /**
+   * Advance the chain by steps without deriving any message key seeds.
+   */
+  public void advance(int steps) {
+    for (int i=0;i<steps;i++) {
+      step();
+    }
+  }
+
+  /**
+   * Advance the chain to target, handing the message key seed for every index passed
+   * over to the callback.  The seed for target itself is not derived.
+   */
+  public void walk(int target, Callback callback) {
+    try {
+      while (index < target) {
+        derive(MESSAGE_KEY_SEED, seed);
+
+        callback.onMessageKeySeed(index, seed);
+        step();
+      }
+    } finally {
+      Arrays.fill(seed, (byte)0);
+    }
+  }
+
+  /**
+   * Zero the current chain key.  The walker can not be used afterwards.
+   */
+  public void clear() {
+    Arrays.fill(key, (byte)0);
+    keyLength = 0;
+  }
+
+  private void step() {
+    derive(CHAIN_KEY_SEED, key);
+
+    keyLength = KEY_LENGTH;
+    index++;
+  }
+
+  /**
+   * Write HMAC(key, input) to output.  The thread's Mac is fetched for every derivation,
+   * since callbacks may use it in between.  The output may be the key buffer itself.
+   */
+  private void derive(byte input, byte[] output) {
+    try {
+      Mac mac = CryptoPrimitives.getHmacSha256(new SecretKeySpec(key, 0, keyLength, HMAC_SHA256));
+      mac.update(input);
+      mac.doFinal(output, 0);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -6,9 +6,11 @@
 package org.whispersystems.modusa.ratchet;
 
 import org.whispersystems.modusa.InvalidKeyException;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
 import org.whispersystems.modusa.ecc.Curve;
 import org.whispersystems.modusa.ecc.ECKeyPair;
 import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.kdf.DerivedRootSecrets;
 import org.whispersystems.modusa.kdf.HKDF;
 import org.whispersystems.modusa.kdf.HKDFv3;
 import org.whispersystems.modusa.protocol.CiphertextMessage;
@@ -21,13 +23,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
 import java.util.Arrays;
 
 public class RatchetingSession {
 
+  private static final byte[] TEXT_INFO = "WhisperText".getBytes();
+
   public static void initializeSession(SessionState sessionState, SymmetricSignalProtocolParameters parameters)
       throws InvalidKeyException, NoSuchAlgorithmException
+  {
+    initializeSession(sessionState, CiphertextMessage.MIN_VERSION, parameters);
+  }
+
+  public static void initializeSession(SessionState sessionState, int sessionVersion,
+                                       SymmetricSignalProtocolParameters parameters)
+      throws InvalidKeyException, NoSuchAlgorithmException
   {
     if (isAlice(parameters.getOurBaseKey().getPublicKey(), parameters.getTheirBaseKey())) {
       AliceSignalProtocolParameters.Builder aliceParameters = AliceSignalProtocolParameters.newBuilder();
@@ -39,7 +49,7 @@ public class RatchetingSession {
                      .setTheirSignedPreKey(parameters.getTheirBaseKey())
                      .setTheirOneTimePreKey(Optional.<ECPublicKey>absent());
 
-      RatchetingSession.initializeSession(sessionState, aliceParameters.create());
+      RatchetingSession.initializeSession(sessionState, sessionVersion, aliceParameters.create());
     } else {
       BobSignalProtocolParameters.Builder bobParameters = BobSignalProtocolParameters.newBuilder();
 
@@ -50,19 +60,32 @@ public class RatchetingSession {
                    .setTheirBaseKey(parameters.getTheirBaseKey())
                    .setTheirIdentityKey(parameters.getTheirIdentityKey());
 
-      RatchetingSession.initializeSession(sessionState, bobParameters.create());
+      RatchetingSession.initializeSession(sessionState, sessionVersion, bobParameters.create());
     }
   }
 
   public static void initializeSession(SessionState sessionState, AliceSignalProtocolParameters parameters)
       throws InvalidKeyException, NoSuchAlgorithmException
+  {
+    initializeSession(sessionState, CiphertextMessage.MIN_VERSION, parameters);
+  }
+
+  /**
+   * Initialize a session as the party that sends the first message.
+   *
+   * @param sessionVersion The session version both parties support, from
+   *                       {@link CiphertextMessage#MIN_VERSION} to {@link CiphertextMessage#CURRENT_VERSION}.
+   */
+  public static void initializeSession(SessionState sessionState, int sessionVersion,
+                                       AliceSignalProtocolParameters parameters)
+      throws InvalidKeyException, NoSuchAlgorithmException
   {
     try {
-      sessionState.setSessionVersion(CiphertextMessage.CURRENT_VERSION);
+      sessionState.setSessionVersion(checkVersion(sessionVersion));
       sessionState.setRemoteIdentityKey(parameters.getTheirIdentityKey());
       sessionState.setLocalIdentityKey(parameters.getOurIdentityKey().getPublicKey());
 
-      ECKeyPair             sendingRatchetKey = Curve.generateKeyPair();
+      ECKeyPair             sendingRatchetKey = Curve.generateEphemeralKeyPair();
       ByteArrayOutputStream secrets           = new ByteArrayOutputStream();
 
       secrets.write(getDiscontinuityBytes());
@@ -112,9 +135,21 @@ public class RatchetingSession {
   public static void initializeSession(SessionState sessionState, BobSignalProtocolParameters parameters)
       throws InvalidKeyException, NoSuchAlgorithmException
   {
+    initializeSession(sessionState, CiphertextMessage.MIN_VERSION, parameters);
+  }
 
+  /**
+   * Initialize a session as the party that receives the first message.
+   *
+   * @param sessionVersion The version of the first message, from
+   *                       {@link CiphertextMessage#MIN_VERSION} to {@link CiphertextMessage#CURRENT_VERSION}.
+   */
+  public static void initializeSession(SessionState sessionState, int sessionVersion,
+                                       BobSignalProtocolParameters parameters)
+      throws InvalidKeyException, NoSuchAlgorithmException
+  {
     try {
-      sessionState.setSessionVersion(CiphertextMessage.CURRENT_VERSION);
+      sessionState.setSessionVersion(checkVersion(sessionVersion));
       sessionState.setRemoteIdentityKey(parameters.getTheirIdentityKey());
       sessionState.setLocalIdentityKey(parameters.getOurIdentityKey().getPublicKey());
 
@@ -161,6 +196,14 @@ public class RatchetingSession {
     }
   }
 
+  private static int checkVersion(int sessionVersion) {
+    if (sessionVersion < CiphertextMessage.MIN_VERSION || sessionVersion > CiphertextMessage.CURRENT_VERSION) {
+      throw new IllegalArgumentException("Unsupported session version: " + sessionVersion);
+    }
+
+    return sessionVersion;
+  }
+
   private static byte[] getDiscontinuityBytes() {
     byte[] discontinuity = new byte[32];
     Arrays.fill(discontinuity, (byte) 0xFF);
@@ -168,36 +211,30 @@ public class RatchetingSession {
   }
 
   private static DerivedKeys calculateDerivedKeys(byte[] masterSecret, byte[] lastAuthKey) throws InvalidKeyException {
-    HKDF     kdf                = new HKDFv3();
-    byte[]   derivedSecretBytes = kdf.deriveSecrets(masterSecret, "WhisperText".getBytes(), 96);
-    byte[][] derivedSecrets;
-    try {
-      derivedSecrets = ByteUtil.split(derivedSecretBytes, 32, 32, 32);
-    } catch(ParseException e) {
-      throw new InvalidKeyException();
-    }
+    HKDF               kdf            = new HKDFv3();
+    DerivedRootSecrets derivedSecrets = kdf.deriveRootSecrets(masterSecret, null, TEXT_INFO);
 
-    return new DerivedKeys(new RootKey(kdf, derivedSecrets[0]),
-                           new ChainKey(kdf, derivedSecrets[1], 0),
-                           new AuthKey(derivedSecrets[2], lastAuthKey, 0));
+    return new DerivedKeys(new RootKey(kdf, derivedSecrets.getRootKey()),
+                           new ChainKey(kdf, derivedSecrets.getChainKey(), 0),
+                           new AuthKey(derivedSecrets.getAuthKey(), lastAuthKey, 0));
   }
 
   private static byte[] genInitialHash(byte[] preKey, byte[] otpk, byte[] idpkA, byte[] idpkB) throws NoSuchAlgorithmException {
-    MessageDigest digest = MessageDigest.getInstance("SHA-512");
+    MessageDigest digest = CryptoPrimitives.getSha512();
     byte[] combined = ByteUtil.combine(preKey, otpk, idpkA, idpkB);
 
     return digest.digest(combined);
   }
 
   private static byte[] genInitialHash(byte[] preKey, byte[] idpkA, byte[] idpkB) throws NoSuchAlgorithmException {
-    MessageDigest digest = MessageDigest.getInstance("SHA-512");
+    MessageDigest digest = CryptoPrimitives.getSha512();
     byte[] combined = ByteUtil.combine(preKey, idpkA, idpkB);
 
     return digest.digest(combined);
   }
 
   private static byte[] advanceHash(byte[] hash, byte[] rcpk) throws NoSuchAlgorithmException {
-    MessageDigest digest = MessageDigest.getInstance("SHA-512");
+    MessageDigest digest = CryptoPrimitives.getSha512();
     byte[] combined = ByteUtil.combine(hash, rcpk);
 
     return digest.digest(combined);
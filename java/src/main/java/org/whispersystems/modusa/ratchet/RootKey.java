@@ -15,6 +15,8 @@ import org.whispersystems.modusa.util.Triplet;
 
 public class RootKey {
 
+  private static final byte[] RATCHET_INFO = "WhisperRatchet".getBytes();
+
   private final HKDF   kdf;
   private final byte[] key;
 
@@ -31,8 +33,7 @@ public class RootKey {
       throws InvalidKeyException
   {
     byte[]             sharedSecret       = Curve.calculateAgreement(theirRatchetKey, ourRatchetKey.getPrivateKey());
-    byte[]             derivedSecretBytes = kdf.deriveSecrets(sharedSecret, key, "WhisperRatchet".getBytes(), DerivedRootSecrets.SIZE);
-    DerivedRootSecrets derivedSecrets     = new DerivedRootSecrets(derivedSecretBytes);
+    DerivedRootSecrets derivedSecrets     = kdf.deriveRootSecrets(sharedSecret, key, RATCHET_INFO);
 
     RootKey  newRootKey  = new RootKey(kdf, derivedSecrets.getRootKey());
     ChainKey newChainKey = new ChainKey(kdf, derivedSecrets.getChainKey(), 0);
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.state;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.IdentityKeyPair;
+import org.whispersystems.modusa.SignalProtocolAddress;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@link IdentityKeyStore} that remembers trust decisions and saved identities
+ * from another IdentityKeyStore.
+ * <p>
+ * {@link org.whispersystems.modusa.SessionCipher} verifies and saves the remote
+ * identity for every message it encrypts or decrypts.  Wrapping a persistent store
+ * in a CachingIdentityKeyStore answers repeated trust checks for the same
+ * (address, identity key, direction) from memory, and only passes a save through
+ * when the identity differs from the one last saved for that address.
+ * <p>
+ * Only positive trust decisions are cached.  Clients that change trust in the
+ * underlying store directly (for instance, after a user marks an identity as
+ * unverified) must call {@link #invalidate(SignalProtocolAddress)} or
+ * {@link #invalidateAll()}.
+ * <p>
+ * Lookups for different addresses do not contend.  Once more addresses are cached than
+ * the configured bound, arbitrary other addresses are dropped to make room.
+ */
+public class CachingIdentityKeyStore implements IdentityKeyStore {
+
+  private static final int DEFAULT_MAX_ADDRESSES = 10000;
+
+  private final IdentityKeyStore                                  identityKeyStore;
+  private final ConcurrentMap<SignalProtocolAddress, CachedEntry> cache = new ConcurrentHashMap<>();
+  private final int                                               maxAddresses;
+
+  public CachingIdentityKeyStore(IdentityKeyStore identityKeyStore) {
+    this(identityKeyStore, DEFAULT_MAX_ADDRESSES);
+  }
+
+  /**
+   * @param identityKeyStore The store to cache trust decisions from.
+   * @param maxAddresses     The number of remote addresses to keep cached state for.
+   */
+  public CachingIdentityKeyStore(IdentityKeyStore identityKeyStore, int maxAddresses) {
+    if (maxAddresses <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive: " + maxAddresses);
+    }
+
+    this.identityKeyStore = identityKeyStore;
+    this.maxAddresses     = maxAddresses;
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyStore.getIdentityKeyPair();
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return identityKeyStore.getLocalRegistrationId();
+  }
+
+  @Override
+  public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+    CachedEntry entry = getEntry(address);
+
+    synchronized (entry) {
+      if (identityKey.equals(entry.savedIdentity)) {
+        return false;
+      }
+    }
+
+    boolean replaced = identityKeyStore.saveIdentity(address, identityKey);
+
+    // Saving a new identity can change any trust decision for this address, other
+    // than those already made for the identity that was just saved.
+    CachedEntry updated = new CachedEntry();
+    updated.savedIdentity = identityKey;
+
+    synchronized (entry) {
+      Set<Direction> directions = entry.trusted.get(identityKey);
+
+      if (directions != null) {
+        updated.trusted.put(identityKey, EnumSet.copyOf(directions));
+      }
+    }
+
+    if (cache.put(address, updated) == null) {
+      trim(address);
+    }
+
+    return replaced;
+  }
+
+  @Override
+  public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+    CachedEntry entry = getEntry(address);
+
+    synchronized (entry) {
+      Set<Direction> directions = entry.trusted.get(identityKey);
+
+      if (directions != null && directions.contains(direction)) {
+        return true;
+      }
+    }
+
+    boolean trusted = identityKeyStore.isTrustedIdentity(address, identityKey, direction);
+
+    if (trusted) {
+      // If the entry was invalidated in the meantime it is no longer reachable,
+      // so this decision is simply dropped.
+      synchronized (entry) {
+        Set<Direction> directions = entry.trusted.get(identityKey);
+
+        if (directions == null) {
+          directions = EnumSet.noneOf(Direction.class);
+          entry.trusted.put(identityKey, directions);
+        }
+
+        directions.add(direction);
+      }
+    }
+
+    return trusted;
+  }
+
+  @Override
+  public IdentityKey getIdentity(SignalProtocolAddress address) {
+    return identityKeyStore.getIdentity(address);
+  }
+
+  /**
+   * Forget all cached trust decisions and saved identities for an address.
+   *
+   * @param address The remote address whose trust state changed.
+   */
+  public void invalidate(SignalProtocolAddress address) {
+    cache.remove(address);
+  }
+
+  /**
+   * Forget all cached trust decisions and saved identities.
+   */
+  public void invalidateAll() {
+    cache.clear();
+  }
+
+  private CachedEntry getEntry(SignalProtocolAddress address) {
+    CachedEntry entry = cache.get(address);
+
+    if (entry != null) {
+      return entry;
+    }
+
+    CachedEntry created = new CachedEntry();
+    entry = cache.putIfAbsent(address, created);
+
+    if (entry != null) {
+      return entry;
+    }
+
+    trim(address);
+    return created;
+  }
+
+  private void trim(SignalProtocolAddress added) {
+    Iterator<SignalProtocolAddress> addresses = cache.keySet().iterator();
+
+    while (cache.size() > maxAddresses && addresses.hasNext()) {
+      if (!addresses.next().equals(added)) {
+        addresses.remove();
+      }
+    }
+  }
+
+  private static class CachedEntry {
+    private final Map<IdentityKey, Set<Direction>> trusted = new HashMap<>();
+    private       IdentityKey                      savedIdentity;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.state;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.whispersystems.modusa.kdf.HKDF;
+import org.whispersystems.modusa.ratchet.ChainKey;
+import org.whispersystems.modusa.ratchet.ChainWalker;
+import org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain;
+
+/**
+ * A receiver chain key saved in place of up to {@link #INTERVAL} consecutive skipped
+ * message keys.  The message keys for any counter it covers can be derived from it on
+ * demand, and a bitmap records which of those counters have already been consumed.
+ * <p>
+ * The saved chain key is always moved past the leading consumed counters, so the keys
+ * of messages that arrived in order can not be derived again from stored state.
+ * <p>
+ * Stored as the <code>messageKeyCheckpoints</code> of <code>SessionStructure.Chain</code>.
+ */
+class MessageKeyCheckpoint {
+
+  static final int INTERVAL = 64;
+
+  private int    index;
+  private byte[] chainKey;
+  private int    count;
+  private long   consumed;
+
+  MessageKeyCheckpoint(ChainKey chainKey, int count) {
+    this(chainKey.getIndex(), chainKey.getKey(), count, 0);
+  }
+
+  private MessageKeyCheckpoint(int index, byte[] chainKey, int count, long consumed) {
+    this.index    = index;
+    this.chainKey = chainKey;
+    this.count    = count;
+    this.consumed = consumed;
+  }
+
+  static MessageKeyCheckpoint fromStructure(Chain.MessageKeyCheckpoint structure)
+      throws InvalidProtocolBufferException
+  {
+    if (!structure.hasChainKey() || structure.getCount() <= 0 || structure.getCount() > INTERVAL) {
+      throw new InvalidProtocolBufferException("Malformed message key checkpoint");
+    }
+
+    return new MessageKeyCheckpoint(structure.getIndex(), structure.getChainKey().toByteArray(),
+                                    structure.getCount(), structure.getConsumed());
+  }
+
+  Chain.MessageKeyCheckpoint toStructure() {
+    return Chain.MessageKeyCheckpoint.newBuilder()
+                                     .setIndex(index)
+                                     .setChainKey(ByteString.copyFrom(chainKey))
+                                     .setCount(count)
+                                     .setConsumed(consumed)
+                                     .build();
+  }
+
+  MessageKeyCheckpoint copy() {
+    return new MessageKeyCheckpoint(index, chainKey, count, consumed);
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The oldest counter covered that has not been consumed yet.
+   */
+  int getFirst() {
+    return index + Long.numberOfTrailingZeros(~consumed);
+  }
+
+  /**
+   * @return The number of counters covered that have not been consumed yet.
+   */
+  int getRemaining() {
+    return count - Long.bitCount(consumed);
+  }
+
+  boolean contains(int counter) {
+    int offset = counter - index;
+    return offset >= 0 && offset < count && (consumed & (1L << offset)) == 0;
+  }
+
+  /**
+   * Derive the chain key for a counter this checkpoint covers, and mark it consumed.
+   */
+  ChainKey consume(HKDF kdf, int counter) {
+    ChainWalker walker = new ChainWalker(chainKey, index);
+    walker.advance(counter - index);
+
+    ChainKey result = new ChainKey(kdf, walker.getChainKey(), counter);
+
+    consumed |= 1L << (counter - index);
+    skipConsumed(walker);
+
+    return result;
+  }
+
+  /**
+   * Drop the oldest counter this checkpoint covers that has not been consumed yet.
+   */
+  void dropFirst() {
+    ChainWalker walker = new ChainWalker(chainKey, index);
+
+    consumed |= 1L << (getFirst() - index);
+    skipConsumed(walker);
+  }
+
+  /**
+   * Move the saved chain key past any consumed counters at the start of the range, then
+   * clear the walker.
+   *
+   * @param walker A walker on this checkpoint's chain, at or after its index.
+   */
+  private void skipConsumed(ChainWalker walker) {
+    int skip = Long.numberOfTrailingZeros(~consumed);
+
+    if (skip >= count) {
+      count    = 0;
+      consumed = 0;
+    } else if (skip > 0) {
+      if (walker.getIndex() > index + skip) {
+        walker.clear();
+        walker = new ChainWalker(chainKey, index);
+      }
+
+      walker.advance(index + skip - walker.getIndex());
+
+      chainKey  = walker.getChainKey();
+      consumed >>>= skip;
+      index    += skip;
+      count    -= skip;
+    }
+
+    walker.clear();
+  }
+}
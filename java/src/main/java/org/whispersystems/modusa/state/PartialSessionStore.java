@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.state;
+
+import org.whispersystems.modusa.SignalProtocolAddress;
+
+/**
+ * A {@link SessionStore} that can commit a {@link SessionRecord}'s current session
+ * state separately from its archived session states.
+ * <p>
+ * Encrypting or decrypting a message almost always changes only the current session
+ * state.  When a record reports {@link SessionRecord.Modification#CURRENT_STATE}, the
+ * library calls {@link #storeCurrentSessionState(SignalProtocolAddress, SessionRecord)}
+ * rather than {@link #storeSession(SignalProtocolAddress, SessionRecord)}, and only
+ * {@link SessionRecord#serializeCurrentState()} needs to be written.  Records whose
+ * archived states changed are still committed with storeSession.
+ * <p>
+ * Implementations will usually keep the two parts apart, writing
+ * {@link SessionRecord#serializeCurrentState()} and
+ * {@link SessionRecord#serializePreviousStates()} from storeSession, and reassembling
+ * them in loadSession with {@link SessionRecord#SessionRecord(byte[], byte[])}.
+ */
+public interface PartialSessionStore extends SessionStore {
+
+  /**
+   * Commit to storage the current session state of a {@link SessionRecord} whose
+   * archived session states have not changed since it was loaded.
+   *
+   * @param address the address of the remote client.
+   * @param record the current SessionRecord for the remote client.
+   */
+  public void storeCurrentSessionState(SignalProtocolAddress address, SessionRecord record);
+
+}
@@ -7,6 +7,7 @@ package org.whispersystems.modusa.state;
 
 import org.whispersystems.modusa.IdentityKey;
 import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
 
 /**
  * A class that contains a remote PreKey and collection
@@ -29,9 +30,25 @@ public class PreKeyBundle {
 
   private IdentityKey identityKey;
 
+  private int         version;
+
   public PreKeyBundle(int registrationId, int deviceId, int preKeyId, ECPublicKey preKeyPublic,
                       int signedPreKeyId, ECPublicKey signedPreKeyPublic, byte[] signedPreKeySignature,
                       IdentityKey identityKey)
+  {
+    this(registrationId, deviceId, preKeyId, preKeyPublic, signedPreKeyId, signedPreKeyPublic,
+         signedPreKeySignature, identityKey, CiphertextMessage.MIN_VERSION);
+  }
+
+  /**
+   * @param version The highest session version the owner of this bundle supports.  Bundles
+   *                published without one should use {@link CiphertextMessage#MIN_VERSION}.
+   *                The version is not authenticated, so a server or network attacker can
+   *                lower it; see {@link org.whispersystems.modusa.SessionBuilder#process(PreKeyBundle)}.
+   */
+  public PreKeyBundle(int registrationId, int deviceId, int preKeyId, ECPublicKey preKeyPublic,
+                      int signedPreKeyId, ECPublicKey signedPreKeyPublic, byte[] signedPreKeySignature,
+                      IdentityKey identityKey, int version)
   {
     this.registrationId        = registrationId;
     this.deviceId              = deviceId;
@@ -41,6 +58,7 @@ public class PreKeyBundle {
     this.signedPreKeyPublic    = signedPreKeyPublic;
     this.signedPreKeySignature = signedPreKeySignature;
     this.identityKey           = identityKey;
+    this.version               = version;
   }
 
   /**
@@ -92,6 +110,13 @@ public class PreKeyBundle {
     return identityKey;
   }
 
+  /**
+   * @return the highest session version the owner of this PreKey supports.
+   */
+  public int getVersion() {
+    return version;
+  }
+
   /**
    * @return the registration ID associated with this PreKey.
    */
@@ -5,10 +5,18 @@
  */
 package org.whispersystems.modusa.state;
 
+import com.google.protobuf.ByteString;
+
+import org.whispersystems.modusa.ecc.ECPublicKey;
+
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
 import static org.whispersystems.modusa.state.StorageProtos.RecordStructure;
 import static org.whispersystems.modusa.state.StorageProtos.SessionStructure;
@@ -22,10 +30,39 @@ public class SessionRecord {
 
   private static final int ARCHIVED_STATES_MAX_LENGTH = 40;
 
+  /**
+   * The parts of a SessionRecord that have changed since it was loaded.
+   */
+  public enum Modification {
+    /** Nothing has changed. */
+    NONE,
+    /** Only the current session state has changed. */
+    CURRENT_STATE,
+    /** The archived session states have changed, and possibly the current state as well. */
+    ARCHIVED_STATES
+  }
+
   private SessionState             sessionState   = new SessionState();
   private LinkedList<SessionState> previousStates = new LinkedList<>();
   private boolean                  fresh          = false;
 
+  /**
+   * Archived states by the sender ratchet keys of their receiver chains, and by their
+   * Alice base key.  Built lazily for the archived states listed in indexedStates, and
+   * rebuilt whenever previousStates no longer matches that list, since callers may
+   * modify the list returned by {@link #getPreviousSessionStates()} directly.
+   */
+  private SessionState[]                      indexedStates;
+  private Map<ByteString, List<SessionState>> ratchetKeyIndex;
+  private Map<ByteString, List<SessionState>> aliceBaseKeyIndex;
+
+  /**
+   * The current and archived states as of the last {@link #markClean()}.  A record
+   * that has never been marked clean has no durable form, and is entirely modified.
+   */
+  private SessionState   cleanState;
+  private SessionState[] cleanPreviousStates;
+
   public SessionRecord() {
     this.fresh = true;
   }
@@ -43,6 +80,29 @@ public class SessionRecord {
     for (SessionStructure previousStructure : record.getPreviousSessionsList()) {
       previousStates.add(new SessionState(previousStructure));
     }
+
+    markClean();
+  }
+
+  /**
+   * Reassemble a SessionRecord that was stored in parts.
+   *
+   * @param serializedState          The output of {@link #serializeCurrentState()}.
+   * @param serializedPreviousStates The output of {@link #serializePreviousStates()}, or
+   *                                 null if there are no archived states.
+   * @throws IOException if either part can not be parsed.
+   */
+  public SessionRecord(byte[] serializedState, byte[] serializedPreviousStates) throws IOException {
+    this.sessionState = new SessionState(SessionStructure.parseFrom(serializedState));
+    this.fresh        = false;
+
+    if (serializedPreviousStates != null) {
+      for (SessionStructure previousStructure : RecordStructure.parseFrom(serializedPreviousStates).getPreviousSessionsList()) {
+        previousStates.add(new SessionState(previousStructure));
+      }
+    }
+
+    markClean();
   }
 
   public boolean hasSessionState(int version, byte[] aliceBaseKey) {
@@ -52,11 +112,14 @@ public class SessionRecord {
       return true;
     }
 
-    for (SessionState state : previousStates) {
-      if (state.getSessionVersion() == version &&
-          Arrays.equals(aliceBaseKey, state.getAliceBaseKey()))
-      {
-        return true;
+    List<SessionState> candidates = getAliceBaseKeyIndex().get(ByteString.copyFrom(aliceBaseKey));
+
+    if (candidates != null) {
+      for (SessionState state : candidates) {
+        if (state.getSessionVersion() == version) {
+          moveToFront(Collections.singletonList(state));
+          return true;
+        }
       }
     }
 
@@ -68,12 +131,28 @@ public class SessionRecord {
   }
 
   /**
-   * @return the list of all currently maintained "previous" session states.
+   * @return the list of all currently maintained "previous" session states, most recently
+   *         used first.
    */
   public List<SessionState> getPreviousSessionStates() {
     return previousStates;
   }
 
+  /**
+   * @param  senderRatchetKey The sender ratchet key of an incoming message.
+   * @return The "previous" session states that have a receiver chain for senderRatchetKey,
+   *         in the order of {@link #getPreviousSessionStates()}.  They are moved to the
+   *         front of the archive, keeping their relative order.
+   */
+  public List<SessionState> getPreviousSessionStates(ECPublicKey senderRatchetKey) {
+    List<SessionState> candidates = getRatchetKeyIndex().get(ByteString.copyFrom(senderRatchetKey.serialize()));
+
+    if (candidates == null) return Collections.emptyList();
+
+    moveToFront(candidates);
+    return candidates;
+  }
+
   public void removePreviousSessionStates() {
     previousStates.clear();
   }
@@ -105,8 +184,113 @@ public class SessionRecord {
   }
 
   /**
-   * @return a serialized version of the current SessionRecord.
+   * @return Which parts of this record have changed since it was loaded or last
+   *         marked clean, so that a {@link PartialSessionStore} can write only those.
+   */
+  public Modification getModification() {
+    if (cleanPreviousStates == null || !isSnapshotOf(cleanPreviousStates, previousStates)) {
+      return Modification.ARCHIVED_STATES;
+    }
+
+    for (SessionState previousState : previousStates) {
+      if (previousState.isDirty()) return Modification.ARCHIVED_STATES;
+    }
+
+    if (sessionState != cleanState || sessionState.isDirty()) {
+      return Modification.CURRENT_STATE;
+    }
+
+    return Modification.NONE;
+  }
+
+  /**
+   * Record that this SessionRecord's current contents are durable.  Stores that keep
+   * SessionRecord instances across calls should call this once they have been written.
+   */
+  public void markClean() {
+    this.cleanState          = sessionState;
+    this.cleanPreviousStates = previousStates.toArray(new SessionState[previousStates.size()]);
+
+    sessionState.markClean();
+
+    for (SessionState previousState : previousStates) {
+      previousState.markClean();
+    }
+  }
+
+  /**
+   * Move archived states to the front of previousStates, keeping their relative order.
+   * The index is rebuilt on the next lookup if that changed the order.
    */
+  private void moveToFront(List<SessionState> states) {
+    ListIterator<SessionState> iterator = states.listIterator(states.size());
+
+    while (iterator.hasPrevious()) {
+      SessionState state = iterator.previous();
+
+      if (previousStates.getFirst() != state && previousStates.remove(state)) {
+        previousStates.addFirst(state);
+      }
+    }
+  }
+
+  private Map<ByteString, List<SessionState>> getRatchetKeyIndex() {
+    updateIndex();
+    return ratchetKeyIndex;
+  }
+
+  private Map<ByteString, List<SessionState>> getAliceBaseKeyIndex() {
+    updateIndex();
+    return aliceBaseKeyIndex;
+  }
+
+  private void updateIndex() {
+    if (isIndexCurrent()) return;
+
+    indexedStates     = previousStates.toArray(new SessionState[previousStates.size()]);
+    ratchetKeyIndex   = new HashMap<>();
+    aliceBaseKeyIndex = new HashMap<>();
+
+    for (SessionState state : indexedStates) {
+      for (ByteString senderRatchetKey : state.getReceiverChainSenderRatchetKeys()) {
+        addToIndex(ratchetKeyIndex, senderRatchetKey, state);
+      }
+
+      addToIndex(aliceBaseKeyIndex, ByteString.copyFrom(state.getAliceBaseKey()), state);
+    }
+  }
+
+  private boolean isIndexCurrent() {
+    return indexedStates != null && isSnapshotOf(indexedStates, previousStates);
+  }
+
+  private static boolean isSnapshotOf(SessionState[] snapshot, List<SessionState> states) {
+    if (snapshot.length != states.size()) {
+      return false;
+    }
+
+    int i = 0;
+
+    for (SessionState state : states) {
+      if (state != snapshot[i++]) return false;
+    }
+
+    return true;
+  }
+
+  private static void addToIndex(Map<ByteString, List<SessionState>> index, ByteString key, SessionState state) {
+    List<SessionState> states = index.get(key);
+
+    if (states == null) {
+      states = new LinkedList<>();
+      index.put(key, states);
+    }
+
+    if (!states.contains(state)) {
+      states.add(state);
+    }
+  }
+
   public byte[] serialize() {
     List<SessionStructure> previousStructures = new LinkedList<>();
 
@@ -122,4 +306,24 @@ public class SessionRecord {
     return record.toByteArray();
   }
 
+  /**
+   * @return a serialized version of the current session state alone.
+   */
+  public byte[] serializeCurrentState() {
+    return sessionState.serialize();
+  }
+
+  /**
+   * @return a serialized version of the archived session states alone.
+   */
+  public byte[] serializePreviousStates() {
+    RecordStructure.Builder record = RecordStructure.newBuilder();
+
+    for (SessionState previousState : previousStates) {
+      record.addPreviousSessions(previousState.getStructure());
+    }
+
+    return record.build().toByteArray();
+  }
+
 }
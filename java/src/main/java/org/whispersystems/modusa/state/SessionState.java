@@ -8,6 +8,7 @@ package org.whispersystems.modusa.state;
 
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.whispersystems.modusa.IdentityKey;
 import org.whispersystems.modusa.IdentityKeyPair;
@@ -20,17 +21,23 @@ import org.whispersystems.modusa.kdf.HKDF;
 import org.whispersystems.modusa.logging.Log;
 import org.whispersystems.modusa.ratchet.AuthKey;
 import org.whispersystems.modusa.ratchet.ChainKey;
+import org.whispersystems.modusa.ratchet.ChainWalker;
 import org.whispersystems.modusa.ratchet.MessageKeys;
 import org.whispersystems.modusa.ratchet.RootKey;
 import org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain;
+import org.whispersystems.modusa.state.StorageProtos.SessionStructure.ChainOrBuilder;
 import org.whispersystems.modusa.state.StorageProtos.SessionStructure.PendingKeyExchange;
 import org.whispersystems.modusa.state.StorageProtos.SessionStructure.PendingPreKey;
-import org.whispersystems.modusa.util.Pair;
 import org.whispersystems.modusa.util.guava.Optional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -41,22 +48,78 @@ public class SessionState {
 
   private static final int MAX_MESSAGE_KEYS = 2000;
 
-  private SessionStructure sessionStructure;
+  /**
+   * The working copy of this session.  It is modified in place by every setter,
+   * and is only turned into an immutable {@link SessionStructure} when the state
+   * is serialized.
+   */
+  private final SessionStructure.Builder sessionStructure;
+
+  /**
+   * The position of each receiver chain, keyed by its sender ratchet key.  Built
+   * lazily, and discarded whenever the receiver chain list changes.
+   */
+  private Map<ECPublicKey, Integer> receiverChainIndex;
+
+  /**
+   * The skipped message keys of each receiver chain, by chain position.  A null entry
+   * means that chain's keys are still only in the structure's message key list.  Once
+   * loaded, the chain's message key list is cleared and the keys live here until they
+   * are written back by {@link #getStructure()}.
+   */
+  private final List<SkippedMessageKeys> skippedMessageKeys;
+
+  /**
+   * Whether this state has been modified since it was created, copied, or last
+   * marked clean by its {@link SessionRecord}.
+   */
+  private boolean dirty;
 
   public SessionState() {
-    this.sessionStructure = SessionStructure.newBuilder().build();
+    this.sessionStructure   = SessionStructure.newBuilder();
+    this.skippedMessageKeys = new ArrayList<>();
   }
 
   public SessionState(SessionStructure sessionStructure) {
-    this.sessionStructure = sessionStructure;
+    this.sessionStructure   = sessionStructure.toBuilder();
+    this.skippedMessageKeys = new ArrayList<>(Collections.nCopies(sessionStructure.getReceiverChainsCount(),
+                                                                  (SkippedMessageKeys)null));
   }
 
   public SessionState(SessionState copy) {
-    this.sessionStructure = copy.sessionStructure.toBuilder().build();
+    this.sessionStructure   = copy.sessionStructure.clone();
+    this.skippedMessageKeys = new ArrayList<>(copy.skippedMessageKeys.size());
+
+    for (SkippedMessageKeys keys : copy.skippedMessageKeys) {
+      this.skippedMessageKeys.add(keys == null ? null : keys.share());
+    }
+  }
+
+  boolean isDirty() {
+    return dirty;
+  }
+
+  void markClean() {
+    this.dirty = false;
   }
 
   public SessionStructure getStructure() {
-    return sessionStructure;
+    for (int i=0;i<skippedMessageKeys.size();i++) {
+      SkippedMessageKeys keys = skippedMessageKeys.get(i);
+
+      if (keys != null) {
+        Chain.Builder chain = sessionStructure.getReceiverChainsBuilder(i);
+        chain.addAllMessageKeys(keys.values());
+
+        for (MessageKeyCheckpoint checkpoint : keys.checkpoints()) {
+          chain.addMessageKeyCheckpoints(checkpoint.toStructure());
+        }
+
+        skippedMessageKeys.set(i, null);
+      }
+    }
+
+    return sessionStructure.build();
   }
 
   public byte[] getAliceBaseKey() {
@@ -64,15 +127,13 @@ public class SessionState {
   }
 
   public void setAliceBaseKey(byte[] aliceBaseKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setAliceBaseKey(ByteString.copyFrom(aliceBaseKey))
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setAliceBaseKey(ByteString.copyFrom(aliceBaseKey));
   }
 
   public void setSessionVersion(int version) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setSessionVersion(version)
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setSessionVersion(version);
   }
 
   public int getSessionVersion() {
@@ -83,15 +144,13 @@ public class SessionState {
   }
 
   public void setRemoteIdentityKey(IdentityKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRemoteIdentityPublic(ByteString.copyFrom(identityKey.serialize()))
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setRemoteIdentityPublic(ByteString.copyFrom(identityKey.serialize()));
   }
 
   public void setLocalIdentityKey(IdentityKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setLocalIdentityPublic(ByteString.copyFrom(identityKey.serialize()))
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setLocalIdentityPublic(ByteString.copyFrom(identityKey.serialize()));
   }
 
   public IdentityKey getRemoteIdentityKey() {
@@ -107,6 +166,20 @@ public class SessionState {
     }
   }
 
+  /**
+   * @return The serialized remote identity key, without decoding it.
+   */
+  public ByteString getRemoteIdentityKeyBytes() {
+    return this.sessionStructure.getRemoteIdentityPublic();
+  }
+
+  /**
+   * @return The serialized local identity key, without decoding it.
+   */
+  public ByteString getLocalIdentityKeyBytes() {
+    return this.sessionStructure.getLocalIdentityPublic();
+  }
+
   public IdentityKey getLocalIdentityKey() {
     try {
       return new IdentityKey(this.sessionStructure.getLocalIdentityPublic().toByteArray(), 0);
@@ -120,9 +193,8 @@ public class SessionState {
   }
 
   public void setPreviousCounter(int previousCounter) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPreviousCounter(previousCounter)
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setPreviousCounter(previousCounter);
   }
 
   public RootKey getRootKey() {
@@ -131,14 +203,13 @@ public class SessionState {
   }
 
   public void setRootKey(RootKey rootKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRootKey(ByteString.copyFrom(rootKey.getKeyBytes()))
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setRootKey(ByteString.copyFrom(rootKey.getKeyBytes()));
   }
 
   public ECPublicKey getSenderRatchetKey() {
     try {
-      return Curve.decodePoint(sessionStructure.getSenderChain().getSenderRatchetKey().toByteArray(), 0);
+      return Curve.decodePoint(sessionStructure.getSenderChainOrBuilder().getSenderRatchetKey().toByteArray(), 0);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
@@ -146,7 +217,7 @@ public class SessionState {
 
   public ECKeyPair getSenderRatchetKeyPair() {
     ECPublicKey  publicKey  = getSenderRatchetKey();
-    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getSenderChain()
+    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getSenderChainOrBuilder()
                                                                        .getSenderRatchetKeyPrivate()
                                                                        .toByteArray());
 
@@ -154,48 +225,70 @@ public class SessionState {
   }
 
   public boolean hasReceiverChain(ECPublicKey senderEphemeral) {
-    return getReceiverChain(senderEphemeral) != null;
+    return getReceiverChainIndex(senderEphemeral) != -1;
   }
 
   public boolean hasSenderChain() {
     return sessionStructure.hasSenderChain();
   }
 
-  private Pair<Chain,Integer> getReceiverChain(ECPublicKey senderEphemeral) {
-    List<Chain> receiverChains = sessionStructure.getReceiverChainsList();
-    int         index          = 0;
+  /**
+   * @return The sender ratchet keys of this state's receiver chains, in chain order.
+   */
+  List<ByteString> getReceiverChainSenderRatchetKeys() {
+    List<ByteString> senderRatchetKeys = new ArrayList<>(sessionStructure.getReceiverChainsCount());
 
-    for (Chain receiverChain : receiverChains) {
-      try {
-        ECPublicKey chainSenderRatchetKey = Curve.decodePoint(receiverChain.getSenderRatchetKey().toByteArray(), 0);
+    for (int i=0;i<sessionStructure.getReceiverChainsCount();i++) {
+      senderRatchetKeys.add(sessionStructure.getReceiverChainsOrBuilder(i).getSenderRatchetKey());
+    }
+
+    return senderRatchetKeys;
+  }
 
-        if (chainSenderRatchetKey.equals(senderEphemeral)) {
-          return new Pair<>(receiverChain,index);
+  private int getReceiverChainIndex(ECPublicKey senderEphemeral) {
+    if (receiverChainIndex == null) {
+      receiverChainIndex = new HashMap<>();
+
+      for (int i=0;i<sessionStructure.getReceiverChainsCount();i++) {
+        ECPublicKey senderRatchetKey;
+
+        try {
+          senderRatchetKey = Curve.decodePoint(sessionStructure.getReceiverChainsOrBuilder(i)
+                                                               .getSenderRatchetKey()
+                                                               .toByteArray(), 0);
+        } catch (InvalidKeyException e) {
+          Log.w("SessionState", e);
+          continue;
         }
-      } catch (InvalidKeyException e) {
-        Log.w("SessionRecordV2", e);
-      }
 
-      index++;
+        if (!receiverChainIndex.containsKey(senderRatchetKey)) {
+          receiverChainIndex.put(senderRatchetKey, i);
+        }
+      }
     }
 
-    return null;
+    Integer index = receiverChainIndex.get(senderEphemeral);
+
+    if (index == null) return -1;
+    else               return index;
   }
 
   public ChainKey getReceiverChainKey(ECPublicKey senderEphemeral) {
-    Pair<Chain,Integer> receiverChainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               receiverChain         = receiverChainAndIndex.first();
+    int index = getReceiverChainIndex(senderEphemeral);
 
-    if (receiverChain == null) {
+    if (index == -1) {
       return null;
     } else {
+      Chain.ChainKeyOrBuilder chainKey = sessionStructure.getReceiverChainsOrBuilder(index).getChainKeyOrBuilder();
+
       return new ChainKey(HKDF.createFor(getSessionVersion()),
-                          receiverChain.getChainKey().getKey().toByteArray(),
-                          receiverChain.getChainKey().getIndex());
+                          chainKey.getKey().toByteArray(),
+                          chainKey.getIndex());
     }
   }
 
   public void addReceiverChain(ECPublicKey senderRatchetKey, ChainKey chainKey) {
+    this.dirty = true;
     Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
                                                      .setKey(ByteString.copyFrom(chainKey.getKey()))
                                                      .setIndex(chainKey.getIndex())
@@ -206,16 +299,18 @@ public class SessionState {
                        .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKey.serialize()))
                        .build();
 
-    this.sessionStructure = this.sessionStructure.toBuilder().addReceiverChains(chain).build();
+    this.sessionStructure.addReceiverChains(chain);
+    this.skippedMessageKeys.add(null);
+    this.receiverChainIndex = null;
 
-    if (this.sessionStructure.getReceiverChainsList().size() > 5) {
-      this.sessionStructure = this.sessionStructure.toBuilder()
-                                                   .removeReceiverChains(0)
-                                                   .build();
+    if (this.sessionStructure.getReceiverChainsCount() > 5) {
+      this.sessionStructure.removeReceiverChains(0);
+      this.skippedMessageKeys.remove(0);
     }
   }
 
   public void setSenderChain(ECKeyPair senderRatchetKeyPair, ChainKey chainKey) {
+    this.dirty = true;
     Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
                                                      .setKey(ByteString.copyFrom(chainKey.getKey()))
                                                      .setIndex(chainKey.getIndex())
@@ -227,44 +322,41 @@ public class SessionState {
                              .setChainKey(chainKeyStructure)
                              .build();
 
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(senderChain).build();
+    this.sessionStructure.setSenderChain(senderChain);
   }
 
   public ChainKey getSenderChainKey() {
-    Chain.ChainKey chainKeyStructure = sessionStructure.getSenderChain().getChainKey();
+    Chain.ChainKeyOrBuilder chainKeyStructure = sessionStructure.getSenderChainOrBuilder().getChainKeyOrBuilder();
     return new ChainKey(HKDF.createFor(getSessionVersion()),
                         chainKeyStructure.getKey().toByteArray(), chainKeyStructure.getIndex());
   }
 
 
   public void setSenderChainKey(ChainKey nextChainKey) {
+    this.dirty = true;
     Chain.ChainKey chainKey = Chain.ChainKey.newBuilder()
                                             .setKey(ByteString.copyFrom(nextChainKey.getKey()))
                                             .setIndex(nextChainKey.getIndex())
                                             .build();
 
-    Chain chain = sessionStructure.getSenderChain().toBuilder()
-                                  .setChainKey(chainKey).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(chain).build();
+    this.sessionStructure.getSenderChainBuilder().setChainKey(chainKey);
   }
 
   public AuthKey getAuthKey() {
-    Chain.AuthKey authKey = sessionStructure.getSenderChain().getAuthKey();
+    Chain.AuthKeyOrBuilder authKey = sessionStructure.getSenderChainOrBuilder().getAuthKeyOrBuilder();
     return new AuthKey(authKey.getKey().toByteArray(),
                        authKey.getLastKey().toByteArray(),
                        authKey.getIndex());
   }
 
   public void setAuthKey(AuthKey nextAuthKey) {
+    this.dirty = true;
     Chain.AuthKey authKey = Chain.AuthKey.newBuilder()
             .setKey(ByteString.copyFrom(nextAuthKey.getKeyBytes()))
             .setLastKey(ByteString.copyFrom(nextAuthKey.getLastKeyBytes()))
             .setIndex(nextAuthKey.getIndex())
             .build();
-    Chain chain = sessionStructure.getSenderChain().toBuilder().setAuthKey(authKey).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(chain).build();
+    this.sessionStructure.getSenderChainBuilder().setAuthKey(authKey);
   }
 
   public byte[] getFprintHash() {
@@ -273,9 +365,10 @@ public class SessionState {
   }
 
   public void setFprintHash(byte[] nextFprintHash) {
+    this.dirty = true;
     ByteString nextHash = ByteString.copyFrom(nextFprintHash);
 
-    this.sessionStructure = this.sessionStructure.toBuilder().setFprintHash(nextHash).build();
+    this.sessionStructure.setFprintHash(nextHash);
   }
 
   public byte[] getLastFprintHash() {
@@ -284,103 +377,159 @@ public class SessionState {
   }
 
   public void setLastFprintHash(byte[] fprintHash) {
+    this.dirty = true;
     ByteString nextHash = ByteString.copyFrom(fprintHash);
 
-    this.sessionStructure = this.sessionStructure.toBuilder().setLastFprintHash(nextHash).build();
+    this.sessionStructure.setLastFprintHash(nextHash);
   }
 
   public boolean hasMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
+    int index = getReceiverChainIndex(senderEphemeral);
 
-    if (chain == null) {
+    if (index == -1) {
       return false;
     }
 
-    List<Chain.MessageKey> messageKeyList = chain.getMessageKeysList();
+    SkippedMessageKeys keys = getSkippedMessageKeys(index);
+    return keys.contains(counter) || keys.getCheckpoint(counter) != null;
+  }
 
-    for (Chain.MessageKey messageKey : messageKeyList) {
-      if (messageKey.getIndex() == counter) {
-        return true;
+  public MessageKeys removeMessageKeys(ECPublicKey senderEphemeral, int counter) {
+    this.dirty = true;
+    int index = getReceiverChainIndex(senderEphemeral);
+
+    if (index == -1) {
+      return null;
+    }
+
+    SkippedMessageKeys keys       = getSkippedMessageKeys(index);
+    Chain.MessageKey   messageKey = keys.remove(counter);
+
+    if (messageKey == null) {
+      MessageKeyCheckpoint checkpoint = keys.getCheckpoint(counter);
+
+      if (checkpoint == null) {
+        return null;
       }
+
+      return keys.consume(checkpoint, HKDF.createFor(getSessionVersion()), counter).getMessageKeys();
     }
 
-    return false;
+    return new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
+                           new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
+                           new IvParameterSpec(messageKey.getIv().toByteArray()),
+                           messageKey.getIndex());
   }
 
-  public MessageKeys removeMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
+  public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
+    this.dirty = true;
+    Chain.MessageKey messageKeyStructure = Chain.MessageKey.newBuilder()
+                                                           .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                                                           .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                                                           .setIndex(messageKeys.getCounter())
+                                                           .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
+                                                           .build();
+
+    getSkippedMessageKeys(getReceiverChainIndex(senderEphemeral)).add(messageKeyStructure);
+  }
+
+  /**
+   * Store the keys for every message between a receiver chain's current position and
+   * a counter, and advance past them.
+   *
+   * @param senderEphemeral The sender ratchet key of the receiver chain.
+   * @param chainKey        The receiver chain's current chain key.
+   * @param counter         The counter of the message that has arrived.
+   * @return The chain key for counter.
+   */
+  public ChainKey skipMessageKeys(ECPublicKey senderEphemeral, ChainKey chainKey, int counter) {
+    return skipMessageKeys(senderEphemeral, chainKey, counter, false);
+  }
+
+  /**
+   * Store the keys for every message between a receiver chain's current position and
+   * a counter, and advance past them.
+   * <p>
+   * With checkpoints, only the chain key at every {@link MessageKeyCheckpoint#INTERVAL}th
+   * skipped counter is stored, along with a bitmap of consumed counters, and a late
+   * message's keys are derived from the nearest checkpoint when it arrives.  This makes
+   * large skips much cheaper and records much smaller, but checkpointed sessions can not
+   * be read by versions of this library that predate checkpoints.
+   *
+   * @param senderEphemeral       The sender ratchet key of the receiver chain.
+   * @param chainKey              The receiver chain's current chain key.
+   * @param counter               The counter of the message that has arrived.
+   * @param checkpointSkippedKeys Whether to store checkpoints instead of message keys.
+   * @return The chain key for counter.
+   */
+  public ChainKey skipMessageKeys(ECPublicKey senderEphemeral, ChainKey chainKey, int counter,
+                                  boolean checkpointSkippedKeys)
+  {
+    this.dirty = true;
 
-    if (chain == null) {
-      return null;
-    }
+    final HKDF  kdf    = HKDF.createFor(getSessionVersion());
+    ChainWalker walker = chainKey.walker();
 
-    List<Chain.MessageKey>     messageKeyList     = new LinkedList<>(chain.getMessageKeysList());
-    Iterator<Chain.MessageKey> messageKeyIterator = messageKeyList.iterator();
-    MessageKeys                result             = null;
+    if (!checkpointSkippedKeys) {
+      final ECPublicKey sender = senderEphemeral;
 
-    while (messageKeyIterator.hasNext()) {
-      Chain.MessageKey messageKey = messageKeyIterator.next();
+      walker.walk(counter, new ChainWalker.Callback() {
+        @Override
+        public void onMessageKeySeed(int index, byte[] seed) {
+          setMessageKeys(sender, ChainKey.getMessageKeys(kdf, seed, index));
+        }
+      });
+    } else {
+      SkippedMessageKeys keys = getSkippedMessageKeys(getReceiverChainIndex(senderEphemeral));
 
-      if (messageKey.getIndex() == counter) {
-        result = new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
-                                 new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
-                                 new IvParameterSpec(messageKey.getIv().toByteArray()),
-                                 messageKey.getIndex());
+      while (walker.getIndex() < counter) {
+        int count = Math.min(MessageKeyCheckpoint.INTERVAL, counter - walker.getIndex());
 
-        messageKeyIterator.remove();
-        break;
+        keys.addCheckpoint(new MessageKeyCheckpoint(new ChainKey(kdf, walker.getChainKey(), walker.getIndex()), count));
+        walker.advance(count);
       }
     }
 
-    Chain updatedChain = chain.toBuilder().clearMessageKeys()
-                              .addAllMessageKeys(messageKeyList)
-                              .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
+    ChainKey result = new ChainKey(kdf, walker.getChainKey(), counter);
+    walker.clear();
 
     return result;
   }
 
-  public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first();
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                              .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                              .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                              .setIndex(messageKeys.getCounter())
-                                                              .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
-                                                              .build();
+  private SkippedMessageKeys getSkippedMessageKeys(int chainIndex) {
+    SkippedMessageKeys keys = skippedMessageKeys.get(chainIndex);
+
+    if (keys == null) {
+      Chain.Builder              chain       = sessionStructure.getReceiverChainsBuilder(chainIndex);
+      List<MessageKeyCheckpoint> checkpoints = new ArrayList<>(chain.getMessageKeyCheckpointsCount());
+
+      for (Chain.MessageKeyCheckpoint checkpoint : chain.getMessageKeyCheckpointsList()) {
+        try {
+          checkpoints.add(MessageKeyCheckpoint.fromStructure(checkpoint));
+        } catch (InvalidProtocolBufferException e) {
+          Log.w("SessionState", e);
+        }
+      }
 
-    Chain.Builder updatedChain = chain.toBuilder().addMessageKeys(messageKeyStructure);
+      keys = new SkippedMessageKeys(chain.getMessageKeysList(), checkpoints);
+      chain.clearMessageKeys();
+      chain.clearMessageKeyCheckpoints();
 
-    if (updatedChain.getMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      updatedChain.removeMessageKeys(0);
+      skippedMessageKeys.set(chainIndex, keys);
     }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(),
-                                                                    updatedChain.build())
-                                                 .build();
+    return keys;
   }
 
   public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
-
+    this.dirty = true;
     Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
                                                      .setKey(ByteString.copyFrom(chainKey.getKey()))
                                                      .setIndex(chainKey.getIndex())
                                                      .build();
 
-    Chain updatedChain = chain.toBuilder().setChainKey(chainKeyStructure).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
+    sessionStructure.getReceiverChainsBuilder(getReceiverChainIndex(senderEphemeral))
+                    .setChainKey(chainKeyStructure);
   }
 
   public void setPendingKeyExchange(int sequence,
@@ -388,6 +537,7 @@ public class SessionState {
                                     ECKeyPair ourRatchetKey,
                                     IdentityKeyPair ourIdentityKey)
   {
+    this.dirty = true;
     PendingKeyExchange structure =
         PendingKeyExchange.newBuilder()
                           .setSequence(sequence)
@@ -399,9 +549,7 @@ public class SessionState {
                           .setLocalIdentityKeyPrivate(ByteString.copyFrom(ourIdentityKey.getPrivateKey().serialize()))
                           .build();
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingKeyExchange(structure)
-                                                 .build();
+    this.sessionStructure.setPendingKeyExchange(structure);
   }
 
   public int getPendingKeyExchangeSequence() {
@@ -446,6 +594,7 @@ public class SessionState {
   }
 
   public void setUnacknowledgedPreKeyMessage(Optional<Integer> preKeyId, int signedPreKeyId, ECPublicKey baseKey) {
+    this.dirty = true;
     PendingPreKey.Builder pending = PendingPreKey.newBuilder()
                                                  .setSignedPreKeyId(signedPreKeyId)
                                                  .setBaseKey(ByteString.copyFrom(baseKey.serialize()));
@@ -454,9 +603,7 @@ public class SessionState {
       pending.setPreKeyId(preKeyId.get());
     }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingPreKey(pending.build())
-                                                 .build();
+    this.sessionStructure.setPendingPreKey(pending.build());
   }
 
   public boolean hasUnacknowledgedPreKeyMessage() {
@@ -485,15 +632,13 @@ public class SessionState {
   }
 
   public void clearUnacknowledgedPreKeyMessage() {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .clearPendingPreKey()
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.clearPendingPreKey();
   }
 
   public void setRemoteRegistrationId(int registrationId) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRemoteRegistrationId(registrationId)
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setRemoteRegistrationId(registrationId);
   }
 
   public int getRemoteRegistrationId() {
@@ -501,9 +646,8 @@ public class SessionState {
   }
 
   public void setLocalRegistrationId(int registrationId) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setLocalRegistrationId(registrationId)
-                                                 .build();
+    this.dirty = true;
+    this.sessionStructure.setLocalRegistrationId(registrationId);
   }
 
   public int getLocalRegistrationId() {
@@ -511,7 +655,152 @@ public class SessionState {
   }
 
   public byte[] serialize() {
-    return sessionStructure.toByteArray();
+    return getStructure().toByteArray();
+  }
+
+  /**
+   * A receiver chain's skipped message keys, indexed by counter and kept in the order
+   * they were derived, so lookup, removal and eviction of the oldest key are all O(1).
+   * Checkpointed keys are kept in counter order, and looked up by binary search.  Stored
+   * and checkpointed keys together are capped at {@link #MAX_MESSAGE_KEYS}, and the
+   * oldest of either kind is evicted first.
+   * <p>
+   * Copies of a {@link SessionState} share these until one of them modifies its keys.
+   */
+  private static class SkippedMessageKeys {
+
+    private LinkedHashMap<Integer, Chain.MessageKey> keys;
+    private ArrayList<MessageKeyCheckpoint>          checkpoints;
+    private int                                      checkpointedCount;
+    private boolean                                  shared;
+
+    SkippedMessageKeys(List<Chain.MessageKey> messageKeys, List<MessageKeyCheckpoint> checkpoints) {
+      this.keys        = new LinkedHashMap<>();
+      this.checkpoints = new ArrayList<>(checkpoints);
+      this.shared      = false;
+
+      for (Chain.MessageKey messageKey : messageKeys) {
+        keys.put(messageKey.getIndex(), messageKey);
+      }
+
+      for (MessageKeyCheckpoint checkpoint : checkpoints) {
+        checkpointedCount += checkpoint.getRemaining();
+      }
+    }
+
+    private SkippedMessageKeys(SkippedMessageKeys copy) {
+      this.keys              = copy.keys;
+      this.checkpoints       = copy.checkpoints;
+      this.checkpointedCount = copy.checkpointedCount;
+      this.shared            = true;
+    }
+
+    SkippedMessageKeys share() {
+      this.shared = true;
+      return new SkippedMessageKeys(this);
+    }
+
+    List<MessageKeyCheckpoint> checkpoints() {
+      return checkpoints;
+    }
+
+    MessageKeyCheckpoint getCheckpoint(int counter) {
+      int low  = 0;
+      int high = checkpoints.size() - 1;
+
+      while (low <= high) {
+        int                  middle     = (low + high) >>> 1;
+        MessageKeyCheckpoint checkpoint = checkpoints.get(middle);
+
+        if      (checkpoint.getIndex() > counter) high = middle - 1;
+        else if (checkpoint.contains(counter))    return checkpoint;
+        else                                      low  = middle + 1;
+      }
+
+      return null;
+    }
+
+    ChainKey consume(MessageKeyCheckpoint checkpoint, HKDF kdf, int counter) {
+      if (shared) {
+        ensureUnshared();
+        checkpoint = getCheckpoint(counter);
+      }
+
+      ChainKey chainKey = checkpoint.consume(kdf, counter);
+      checkpointedCount--;
+
+      if (checkpoint.getRemaining() == 0) {
+        checkpoints.remove(checkpoint);
+      }
+
+      return chainKey;
+    }
+
+    void addCheckpoint(MessageKeyCheckpoint checkpoint) {
+      ensureUnshared();
+      checkpoints.add(checkpoint);
+      checkpointedCount += checkpoint.getRemaining();
+
+      trim();
+    }
+
+    boolean contains(int counter) {
+      return keys.containsKey(counter);
+    }
+
+    Chain.MessageKey remove(int counter) {
+      if (!keys.containsKey(counter)) return null;
+
+      ensureUnshared();
+      return keys.remove(counter);
+    }
+
+    void add(Chain.MessageKey messageKey) {
+      ensureUnshared();
+      keys.put(messageKey.getIndex(), messageKey);
+
+      trim();
+    }
+
+    Collection<Chain.MessageKey> values() {
+      return keys.values();
+    }
+
+    private void trim() {
+      while (keys.size() + checkpointedCount > MAX_MESSAGE_KEYS) {
+        Iterator<Integer> oldestKey = keys.keySet().iterator();
+
+        if (checkpoints.isEmpty() ||
+            (!keys.isEmpty() && keys.keySet().iterator().next() < checkpoints.get(0).getFirst()))
+        {
+          oldestKey.next();
+          oldestKey.remove();
+        } else {
+          MessageKeyCheckpoint oldestCheckpoint = checkpoints.get(0);
+
+          oldestCheckpoint.dropFirst();
+          checkpointedCount--;
+
+          if (oldestCheckpoint.getRemaining() == 0) {
+            checkpoints.remove(0);
+          }
+        }
+      }
+    }
+
+    private void ensureUnshared() {
+      if (shared) {
+        ArrayList<MessageKeyCheckpoint> copies = new ArrayList<>(checkpoints.size());
+
+        for (MessageKeyCheckpoint checkpoint : checkpoints) {
+          copies.add(checkpoint.copy());
+        }
+
+        keys        = new LinkedHashMap<>(keys);
+        checkpoints = copies;
+        shared      = false;
+      }
+    }
   }
 
   public static class UnacknowledgedPreKeyMessageItems {
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.state;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+
+/**
+ * Remembers signed PreKey signatures that have already been verified, so that
+ * {@link org.whispersystems.modusa.SessionBuilder} can skip the signature check when
+ * it sees the same signed PreKey in another {@link PreKeyBundle}.
+ * <p>
+ * Only successful verifications may be recorded.  An implementation may forget
+ * entries at any time, and may be shared between SessionBuilders and threads.
+ */
+public interface SignedPreKeyVerificationCache {
+
+  /**
+   * @param identityKey  The identity key the signature was made with.
+   * @param signedPreKey The signed PreKey.
+   * @param signature    The signature over the signed PreKey.
+   * @return true if this exact signature was previously recorded as valid.
+   */
+  public boolean isVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature);
+
+  /**
+   * Record a signature that has been successfully verified.
+   *
+   * @param identityKey  The identity key the signature was made with.
+   * @param signedPreKey The signed PreKey.
+   * @param signature    The signature over the signed PreKey.
+   */
+  public void setVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature);
+
+}
@@ -458,6 +458,31 @@ public final class StorageProtos {
        * <code>optional .textsecure.SessionStructure.Chain.AuthKey authKey = 5;</code>
        */
       org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKeyOrBuilder getAuthKeyOrBuilder();
+
+      // repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint>
+          getMessageKeyCheckpointsList();
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint getMessageKeyCheckpoints(int index);
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      int getMessageKeyCheckpointsCount();
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      java.util.List<? extends org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder>
+          getMessageKeyCheckpointsOrBuilderList();
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder getMessageKeyCheckpointsOrBuilder(
+          int index);
     }
     /**
      * Protobuf type {@code textsecure.SessionStructure.Chain}
@@ -554,6 +579,14 @@ public final class StorageProtos {
                 bitField0_ |= 0x00000008;
                 break;
               }
+              case 50: {
+                if (!((mutable_bitField0_ & 0x00000020) == 0x00000020)) {
+                  messageKeyCheckpoints_ = new java.util.ArrayList<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint>();
+                  mutable_bitField0_ |= 0x00000020;
+                }
+                messageKeyCheckpoints_.add(input.readMessage(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.PARSER, extensionRegistry));
+                break;
+              }
             }
           }
         } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -565,6 +598,9 @@ public final class StorageProtos {
           if (((mutable_bitField0_ & 0x00000008) == 0x00000008)) {
             messageKeys_ = java.util.Collections.unmodifiableList(messageKeys_);
           }
+          if (((mutable_bitField0_ & 0x00000020) == 0x00000020)) {
+            messageKeyCheckpoints_ = java.util.Collections.unmodifiableList(messageKeyCheckpoints_);
+          }
           this.unknownFields = unknownFields.build();
           makeExtensionsImmutable();
         }
@@ -1995,28 +2031,631 @@ public final class StorageProtos {
             throws java.io.IOException {
           return PARSER.parseFrom(input);
         }
-        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+            java.io.InputStream input,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws java.io.IOException {
+          return PARSER.parseFrom(input, extensionRegistry);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseDelimitedFrom(java.io.InputStream input)
+            throws java.io.IOException {
+          return PARSER.parseDelimitedFrom(input);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseDelimitedFrom(
+            java.io.InputStream input,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws java.io.IOException {
+          return PARSER.parseDelimitedFrom(input, extensionRegistry);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+            com.google.protobuf.CodedInputStream input)
+            throws java.io.IOException {
+          return PARSER.parseFrom(input);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+            com.google.protobuf.CodedInputStream input,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws java.io.IOException {
+          return PARSER.parseFrom(input, extensionRegistry);
+        }
+
+        public static Builder newBuilder() { return Builder.create(); }
+        public Builder newBuilderForType() { return newBuilder(); }
+        public static Builder newBuilder(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey prototype) {
+          return newBuilder().mergeFrom(prototype);
+        }
+        public Builder toBuilder() { return newBuilder(this); }
+
+        @java.lang.Override
+        protected Builder newBuilderForType(
+            com.google.protobuf.GeneratedMessage.BuilderParent parent) {
+          Builder builder = new Builder(parent);
+          return builder;
+        }
+        /**
+         * Protobuf type {@code textsecure.SessionStructure.Chain.AuthKey}
+         */
+        public static final class Builder extends
+            com.google.protobuf.GeneratedMessage.Builder<Builder>
+           implements org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKeyOrBuilder {
+          public static final com.google.protobuf.Descriptors.Descriptor
+              getDescriptor() {
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_descriptor;
+          }
+
+          protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+              internalGetFieldAccessorTable() {
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_fieldAccessorTable
+                .ensureFieldAccessorsInitialized(
+                    org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.class, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.Builder.class);
+          }
+
+          // Construct using org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain.AuthKey.newBuilder()
+          private Builder() {
+            maybeForceBuilderInitialization();
+          }
+
+          private Builder(
+              com.google.protobuf.GeneratedMessage.BuilderParent parent) {
+            super(parent);
+            maybeForceBuilderInitialization();
+          }
+          private void maybeForceBuilderInitialization() {
+            if (com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders) {
+            }
+          }
+          private static Builder create() {
+            return new Builder();
+          }
+
+          public Builder clear() {
+            super.clear();
+            index_ = 0;
+            bitField0_ = (bitField0_ & ~0x00000001);
+            key_ = com.google.protobuf.ByteString.EMPTY;
+            bitField0_ = (bitField0_ & ~0x00000002);
+            lastKey_ = com.google.protobuf.ByteString.EMPTY;
+            bitField0_ = (bitField0_ & ~0x00000004);
+            return this;
+          }
+
+          public Builder clone() {
+            return create().mergeFrom(buildPartial());
+          }
+
+          public com.google.protobuf.Descriptors.Descriptor
+              getDescriptorForType() {
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_descriptor;
+          }
+
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey getDefaultInstanceForType() {
+            return org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.getDefaultInstance();
+          }
+
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey build() {
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey result = buildPartial();
+            if (!result.isInitialized()) {
+              throw newUninitializedMessageException(result);
+            }
+            return result;
+          }
+
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey buildPartial() {
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey result = new org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey(this);
+            int from_bitField0_ = bitField0_;
+            int to_bitField0_ = 0;
+            if (((from_bitField0_ & 0x00000001) == 0x00000001)) {
+              to_bitField0_ |= 0x00000001;
+            }
+            result.index_ = index_;
+            if (((from_bitField0_ & 0x00000002) == 0x00000002)) {
+              to_bitField0_ |= 0x00000002;
+            }
+            result.key_ = key_;
+            if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+              to_bitField0_ |= 0x00000004;
+            }
+            result.lastKey_ = lastKey_;
+            result.bitField0_ = to_bitField0_;
+            onBuilt();
+            return result;
+          }
+
+          public Builder mergeFrom(com.google.protobuf.Message other) {
+            if (other instanceof org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey) {
+              return mergeFrom((org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey)other);
+            } else {
+              super.mergeFrom(other);
+              return this;
+            }
+          }
+
+          public Builder mergeFrom(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey other) {
+            if (other == org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.getDefaultInstance()) return this;
+            if (other.hasIndex()) {
+              setIndex(other.getIndex());
+            }
+            if (other.hasKey()) {
+              setKey(other.getKey());
+            }
+            if (other.hasLastKey()) {
+              setLastKey(other.getLastKey());
+            }
+            this.mergeUnknownFields(other.getUnknownFields());
+            return this;
+          }
+
+          public final boolean isInitialized() {
+            return true;
+          }
+
+          public Builder mergeFrom(
+              com.google.protobuf.CodedInputStream input,
+              com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+              throws java.io.IOException {
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parsedMessage = null;
+            try {
+              parsedMessage = PARSER.parsePartialFrom(input, extensionRegistry);
+            } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+              parsedMessage = (org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey) e.getUnfinishedMessage();
+              throw e;
+            } finally {
+              if (parsedMessage != null) {
+                mergeFrom(parsedMessage);
+              }
+            }
+            return this;
+          }
+          private int bitField0_;
+
+          // optional uint32 index = 1;
+          private int index_ ;
+          /**
+           * <code>optional uint32 index = 1;</code>
+           */
+          public boolean hasIndex() {
+            return ((bitField0_ & 0x00000001) == 0x00000001);
+          }
+          /**
+           * <code>optional uint32 index = 1;</code>
+           */
+          public int getIndex() {
+            return index_;
+          }
+          /**
+           * <code>optional uint32 index = 1;</code>
+           */
+          public Builder setIndex(int value) {
+            bitField0_ |= 0x00000001;
+            index_ = value;
+            onChanged();
+            return this;
+          }
+          /**
+           * <code>optional uint32 index = 1;</code>
+           */
+          public Builder clearIndex() {
+            bitField0_ = (bitField0_ & ~0x00000001);
+            index_ = 0;
+            onChanged();
+            return this;
+          }
+
+          // optional bytes key = 2;
+          private com.google.protobuf.ByteString key_ = com.google.protobuf.ByteString.EMPTY;
+          /**
+           * <code>optional bytes key = 2;</code>
+           */
+          public boolean hasKey() {
+            return ((bitField0_ & 0x00000002) == 0x00000002);
+          }
+          /**
+           * <code>optional bytes key = 2;</code>
+           */
+          public com.google.protobuf.ByteString getKey() {
+            return key_;
+          }
+          /**
+           * <code>optional bytes key = 2;</code>
+           */
+          public Builder setKey(com.google.protobuf.ByteString value) {
+            if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000002;
+            key_ = value;
+            onChanged();
+            return this;
+          }
+          /**
+           * <code>optional bytes key = 2;</code>
+           */
+          public Builder clearKey() {
+            bitField0_ = (bitField0_ & ~0x00000002);
+            key_ = getDefaultInstance().getKey();
+            onChanged();
+            return this;
+          }
+
+          // optional bytes lastKey = 3;
+          private com.google.protobuf.ByteString lastKey_ = com.google.protobuf.ByteString.EMPTY;
+          /**
+           * <code>optional bytes lastKey = 3;</code>
+           */
+          public boolean hasLastKey() {
+            return ((bitField0_ & 0x00000004) == 0x00000004);
+          }
+          /**
+           * <code>optional bytes lastKey = 3;</code>
+           */
+          public com.google.protobuf.ByteString getLastKey() {
+            return lastKey_;
+          }
+          /**
+           * <code>optional bytes lastKey = 3;</code>
+           */
+          public Builder setLastKey(com.google.protobuf.ByteString value) {
+            if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000004;
+            lastKey_ = value;
+            onChanged();
+            return this;
+          }
+          /**
+           * <code>optional bytes lastKey = 3;</code>
+           */
+          public Builder clearLastKey() {
+            bitField0_ = (bitField0_ & ~0x00000004);
+            lastKey_ = getDefaultInstance().getLastKey();
+            onChanged();
+            return this;
+          }
+
+          // @@protoc_insertion_point(builder_scope:textsecure.SessionStructure.Chain.AuthKey)
+        }
+
+        static {
+          defaultInstance = new AuthKey(true);
+          defaultInstance.initFields();
+        }
+
+        // @@protoc_insertion_point(class_scope:textsecure.SessionStructure.Chain.AuthKey)
+      }
+
+      public interface MessageKeyCheckpointOrBuilder
+          extends com.google.protobuf.MessageOrBuilder {
+
+        // optional uint32 index = 1;
+        /**
+         * <code>optional uint32 index = 1;</code>
+         */
+        boolean hasIndex();
+        /**
+         * <code>optional uint32 index = 1;</code>
+         */
+        int getIndex();
+
+        // optional bytes chainKey = 2;
+        /**
+         * <code>optional bytes chainKey = 2;</code>
+         */
+        boolean hasChainKey();
+        /**
+         * <code>optional bytes chainKey = 2;</code>
+         */
+        com.google.protobuf.ByteString getChainKey();
+
+        // optional uint32 count = 3;
+        /**
+         * <code>optional uint32 count = 3;</code>
+         */
+        boolean hasCount();
+        /**
+         * <code>optional uint32 count = 3;</code>
+         */
+        int getCount();
+
+        // optional fixed64 consumed = 4;
+        /**
+         * <code>optional fixed64 consumed = 4;</code>
+         */
+        boolean hasConsumed();
+        /**
+         * <code>optional fixed64 consumed = 4;</code>
+         */
+        long getConsumed();
+      }
+      /**
+       * Protobuf type {@code textsecure.SessionStructure.Chain.MessageKeyCheckpoint}
+       */
+      public static final class MessageKeyCheckpoint extends
+          com.google.protobuf.GeneratedMessage
+          implements MessageKeyCheckpointOrBuilder {
+        // Use MessageKeyCheckpoint.newBuilder() to construct.
+        private MessageKeyCheckpoint(com.google.protobuf.GeneratedMessage.Builder<?> builder) {
+          super(builder);
+          this.unknownFields = builder.getUnknownFields();
+        }
+        private MessageKeyCheckpoint(boolean noInit) { this.unknownFields = com.google.protobuf.UnknownFieldSet.getDefaultInstance(); }
+
+        private static final MessageKeyCheckpoint defaultInstance;
+        public static MessageKeyCheckpoint getDefaultInstance() {
+          return defaultInstance;
+        }
+
+        public MessageKeyCheckpoint getDefaultInstanceForType() {
+          return defaultInstance;
+        }
+
+        private final com.google.protobuf.UnknownFieldSet unknownFields;
+        @java.lang.Override
+        public final com.google.protobuf.UnknownFieldSet
+            getUnknownFields() {
+          return this.unknownFields;
+        }
+        private MessageKeyCheckpoint(
+            com.google.protobuf.CodedInputStream input,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+          initFields();
+          int mutable_bitField0_ = 0;
+          com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+              com.google.protobuf.UnknownFieldSet.newBuilder();
+          try {
+            boolean done = false;
+            while (!done) {
+              int tag = input.readTag();
+              switch (tag) {
+                case 0:
+                  done = true;
+                  break;
+                default: {
+                  if (!parseUnknownField(input, unknownFields,
+                                         extensionRegistry, tag)) {
+                    done = true;
+                  }
+                  break;
+                }
+                case 8: {
+                  bitField0_ |= 0x00000001;
+                  index_ = input.readUInt32();
+                  break;
+                }
+                case 18: {
+                  bitField0_ |= 0x00000002;
+                  chainKey_ = input.readBytes();
+                  break;
+                }
+                case 24: {
+                  bitField0_ |= 0x00000004;
+                  count_ = input.readUInt32();
+                  break;
+                }
+                case 33: {
+                  bitField0_ |= 0x00000008;
+                  consumed_ = input.readFixed64();
+                  break;
+                }
+              }
+            }
+          } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+            throw e.setUnfinishedMessage(this);
+          } catch (java.io.IOException e) {
+            throw new com.google.protobuf.InvalidProtocolBufferException(
+                e.getMessage()).setUnfinishedMessage(this);
+          } finally {
+            this.unknownFields = unknownFields.build();
+            makeExtensionsImmutable();
+          }
+        }
+        public static final com.google.protobuf.Descriptors.Descriptor
+            getDescriptor() {
+          return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor;
+        }
+
+        protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+            internalGetFieldAccessorTable() {
+          return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_fieldAccessorTable
+              .ensureFieldAccessorsInitialized(
+                  org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.class, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder.class);
+        }
+
+        public static com.google.protobuf.Parser<MessageKeyCheckpoint> PARSER =
+            new com.google.protobuf.AbstractParser<MessageKeyCheckpoint>() {
+          public MessageKeyCheckpoint parsePartialFrom(
+              com.google.protobuf.CodedInputStream input,
+              com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+              throws com.google.protobuf.InvalidProtocolBufferException {
+            return new MessageKeyCheckpoint(input, extensionRegistry);
+          }
+        };
+
+        @java.lang.Override
+        public com.google.protobuf.Parser<MessageKeyCheckpoint> getParserForType() {
+          return PARSER;
+        }
+
+        private int bitField0_;
+        // optional uint32 index = 1;
+        public static final int INDEX_FIELD_NUMBER = 1;
+        private int index_;
+        /**
+         * <code>optional uint32 index = 1;</code>
+         */
+        public boolean hasIndex() {
+          return ((bitField0_ & 0x00000001) == 0x00000001);
+        }
+        /**
+         * <code>optional uint32 index = 1;</code>
+         */
+        public int getIndex() {
+          return index_;
+        }
+
+        // optional bytes chainKey = 2;
+        public static final int CHAINKEY_FIELD_NUMBER = 2;
+        private com.google.protobuf.ByteString chainKey_;
+        /**
+         * <code>optional bytes chainKey = 2;</code>
+         */
+        public boolean hasChainKey() {
+          return ((bitField0_ & 0x00000002) == 0x00000002);
+        }
+        /**
+         * <code>optional bytes chainKey = 2;</code>
+         */
+        public com.google.protobuf.ByteString getChainKey() {
+          return chainKey_;
+        }
+
+        // optional uint32 count = 3;
+        public static final int COUNT_FIELD_NUMBER = 3;
+        private int count_;
+        /**
+         * <code>optional uint32 count = 3;</code>
+         */
+        public boolean hasCount() {
+          return ((bitField0_ & 0x00000004) == 0x00000004);
+        }
+        /**
+         * <code>optional uint32 count = 3;</code>
+         */
+        public int getCount() {
+          return count_;
+        }
+
+        // optional fixed64 consumed = 4;
+        public static final int CONSUMED_FIELD_NUMBER = 4;
+        private long consumed_;
+        /**
+         * <code>optional fixed64 consumed = 4;</code>
+         */
+        public boolean hasConsumed() {
+          return ((bitField0_ & 0x00000008) == 0x00000008);
+        }
+        /**
+         * <code>optional fixed64 consumed = 4;</code>
+         */
+        public long getConsumed() {
+          return consumed_;
+        }
+
+        private void initFields() {
+          index_ = 0;
+          chainKey_ = com.google.protobuf.ByteString.EMPTY;
+          count_ = 0;
+          consumed_ = 0L;
+        }
+        private byte memoizedIsInitialized = -1;
+        public final boolean isInitialized() {
+          byte isInitialized = memoizedIsInitialized;
+          if (isInitialized != -1) return isInitialized == 1;
+
+          memoizedIsInitialized = 1;
+          return true;
+        }
+
+        public void writeTo(com.google.protobuf.CodedOutputStream output)
+                            throws java.io.IOException {
+          getSerializedSize();
+          if (((bitField0_ & 0x00000001) == 0x00000001)) {
+            output.writeUInt32(1, index_);
+          }
+          if (((bitField0_ & 0x00000002) == 0x00000002)) {
+            output.writeBytes(2, chainKey_);
+          }
+          if (((bitField0_ & 0x00000004) == 0x00000004)) {
+            output.writeUInt32(3, count_);
+          }
+          if (((bitField0_ & 0x00000008) == 0x00000008)) {
+            output.writeFixed64(4, consumed_);
+          }
+          getUnknownFields().writeTo(output);
+        }
+
+        private int memoizedSerializedSize = -1;
+        public int getSerializedSize() {
+          int size = memoizedSerializedSize;
+          if (size != -1) return size;
+
+          size = 0;
+          if (((bitField0_ & 0x00000001) == 0x00000001)) {
+            size += com.google.protobuf.CodedOutputStream
+              .computeUInt32Size(1, index_);
+          }
+          if (((bitField0_ & 0x00000002) == 0x00000002)) {
+            size += com.google.protobuf.CodedOutputStream
+              .computeBytesSize(2, chainKey_);
+          }
+          if (((bitField0_ & 0x00000004) == 0x00000004)) {
+            size += com.google.protobuf.CodedOutputStream
+              .computeUInt32Size(3, count_);
+          }
+          if (((bitField0_ & 0x00000008) == 0x00000008)) {
+            size += com.google.protobuf.CodedOutputStream
+              .computeFixed64Size(4, consumed_);
+          }
+          size += getUnknownFields().getSerializedSize();
+          memoizedSerializedSize = size;
+          return size;
+        }
+
+        private static final long serialVersionUID = 0L;
+        @java.lang.Override
+        protected java.lang.Object writeReplace()
+            throws java.io.ObjectStreamException {
+          return super.writeReplace();
+        }
+
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
+            com.google.protobuf.ByteString data)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+          return PARSER.parseFrom(data);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
+            com.google.protobuf.ByteString data,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+          return PARSER.parseFrom(data, extensionRegistry);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(byte[] data)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+          return PARSER.parseFrom(data);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
+            byte[] data,
+            com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+          return PARSER.parseFrom(data, extensionRegistry);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(java.io.InputStream input)
+            throws java.io.IOException {
+          return PARSER.parseFrom(input);
+        }
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
             java.io.InputStream input,
             com.google.protobuf.ExtensionRegistryLite extensionRegistry)
             throws java.io.IOException {
           return PARSER.parseFrom(input, extensionRegistry);
         }
-        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseDelimitedFrom(java.io.InputStream input)
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseDelimitedFrom(java.io.InputStream input)
             throws java.io.IOException {
           return PARSER.parseDelimitedFrom(input);
         }
-        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseDelimitedFrom(
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseDelimitedFrom(
             java.io.InputStream input,
             com.google.protobuf.ExtensionRegistryLite extensionRegistry)
             throws java.io.IOException {
           return PARSER.parseDelimitedFrom(input, extensionRegistry);
         }
-        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
             com.google.protobuf.CodedInputStream input)
             throws java.io.IOException {
           return PARSER.parseFrom(input);
         }
-        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parseFrom(
+        public static org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parseFrom(
             com.google.protobuf.CodedInputStream input,
             com.google.protobuf.ExtensionRegistryLite extensionRegistry)
             throws java.io.IOException {
@@ -2025,7 +2664,7 @@ public final class StorageProtos {
 
         public static Builder newBuilder() { return Builder.create(); }
         public Builder newBuilderForType() { return newBuilder(); }
-        public static Builder newBuilder(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey prototype) {
+        public static Builder newBuilder(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint prototype) {
           return newBuilder().mergeFrom(prototype);
         }
         public Builder toBuilder() { return newBuilder(this); }
@@ -2037,24 +2676,24 @@ public final class StorageProtos {
           return builder;
         }
         /**
-         * Protobuf type {@code textsecure.SessionStructure.Chain.AuthKey}
+         * Protobuf type {@code textsecure.SessionStructure.Chain.MessageKeyCheckpoint}
          */
         public static final class Builder extends
             com.google.protobuf.GeneratedMessage.Builder<Builder>
-           implements org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKeyOrBuilder {
+           implements org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder {
           public static final com.google.protobuf.Descriptors.Descriptor
               getDescriptor() {
-            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_descriptor;
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor;
           }
 
           protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
               internalGetFieldAccessorTable() {
-            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_fieldAccessorTable
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_fieldAccessorTable
                 .ensureFieldAccessorsInitialized(
-                    org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.class, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.Builder.class);
+                    org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.class, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder.class);
           }
 
-          // Construct using org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain.AuthKey.newBuilder()
+          // Construct using org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.newBuilder()
           private Builder() {
             maybeForceBuilderInitialization();
           }
@@ -2076,10 +2715,12 @@ public final class StorageProtos {
             super.clear();
             index_ = 0;
             bitField0_ = (bitField0_ & ~0x00000001);
-            key_ = com.google.protobuf.ByteString.EMPTY;
+            chainKey_ = com.google.protobuf.ByteString.EMPTY;
             bitField0_ = (bitField0_ & ~0x00000002);
-            lastKey_ = com.google.protobuf.ByteString.EMPTY;
+            count_ = 0;
             bitField0_ = (bitField0_ & ~0x00000004);
+            consumed_ = 0L;
+            bitField0_ = (bitField0_ & ~0x00000008);
             return this;
           }
 
@@ -2089,23 +2730,23 @@ public final class StorageProtos {
 
           public com.google.protobuf.Descriptors.Descriptor
               getDescriptorForType() {
-            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_AuthKey_descriptor;
+            return org.whispersystems.modusa.state.StorageProtos.internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor;
           }
 
-          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey getDefaultInstanceForType() {
-            return org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.getDefaultInstance();
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint getDefaultInstanceForType() {
+            return org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.getDefaultInstance();
           }
 
-          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey build() {
-            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey result = buildPartial();
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint build() {
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint result = buildPartial();
             if (!result.isInitialized()) {
               throw newUninitializedMessageException(result);
             }
             return result;
           }
 
-          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey buildPartial() {
-            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey result = new org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey(this);
+          public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint buildPartial() {
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint result = new org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint(this);
             int from_bitField0_ = bitField0_;
             int to_bitField0_ = 0;
             if (((from_bitField0_ & 0x00000001) == 0x00000001)) {
@@ -2115,35 +2756,42 @@ public final class StorageProtos {
             if (((from_bitField0_ & 0x00000002) == 0x00000002)) {
               to_bitField0_ |= 0x00000002;
             }
-            result.key_ = key_;
+            result.chainKey_ = chainKey_;
             if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
               to_bitField0_ |= 0x00000004;
             }
-            result.lastKey_ = lastKey_;
+            result.count_ = count_;
+            if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+              to_bitField0_ |= 0x00000008;
+            }
+            result.consumed_ = consumed_;
             result.bitField0_ = to_bitField0_;
             onBuilt();
             return result;
           }
 
           public Builder mergeFrom(com.google.protobuf.Message other) {
-            if (other instanceof org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey) {
-              return mergeFrom((org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey)other);
+            if (other instanceof org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint) {
+              return mergeFrom((org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint)other);
             } else {
               super.mergeFrom(other);
               return this;
             }
           }
 
-          public Builder mergeFrom(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey other) {
-            if (other == org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.getDefaultInstance()) return this;
+          public Builder mergeFrom(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint other) {
+            if (other == org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.getDefaultInstance()) return this;
             if (other.hasIndex()) {
               setIndex(other.getIndex());
             }
-            if (other.hasKey()) {
-              setKey(other.getKey());
+            if (other.hasChainKey()) {
+              setChainKey(other.getChainKey());
             }
-            if (other.hasLastKey()) {
-              setLastKey(other.getLastKey());
+            if (other.hasCount()) {
+              setCount(other.getCount());
+            }
+            if (other.hasConsumed()) {
+              setConsumed(other.getConsumed());
             }
             this.mergeUnknownFields(other.getUnknownFields());
             return this;
@@ -2157,11 +2805,11 @@ public final class StorageProtos {
               com.google.protobuf.CodedInputStream input,
               com.google.protobuf.ExtensionRegistryLite extensionRegistry)
               throws java.io.IOException {
-            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey parsedMessage = null;
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint parsedMessage = null;
             try {
               parsedMessage = PARSER.parsePartialFrom(input, extensionRegistry);
             } catch (com.google.protobuf.InvalidProtocolBufferException e) {
-              parsedMessage = (org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey) e.getUnfinishedMessage();
+              parsedMessage = (org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint) e.getUnfinishedMessage();
               throw e;
             } finally {
               if (parsedMessage != null) {
@@ -2205,87 +2853,117 @@ public final class StorageProtos {
             return this;
           }
 
-          // optional bytes key = 2;
-          private com.google.protobuf.ByteString key_ = com.google.protobuf.ByteString.EMPTY;
+          // optional bytes chainKey = 2;
+          private com.google.protobuf.ByteString chainKey_ = com.google.protobuf.ByteString.EMPTY;
           /**
-           * <code>optional bytes key = 2;</code>
+           * <code>optional bytes chainKey = 2;</code>
            */
-          public boolean hasKey() {
+          public boolean hasChainKey() {
             return ((bitField0_ & 0x00000002) == 0x00000002);
           }
           /**
-           * <code>optional bytes key = 2;</code>
+           * <code>optional bytes chainKey = 2;</code>
            */
-          public com.google.protobuf.ByteString getKey() {
-            return key_;
+          public com.google.protobuf.ByteString getChainKey() {
+            return chainKey_;
           }
           /**
-           * <code>optional bytes key = 2;</code>
+           * <code>optional bytes chainKey = 2;</code>
            */
-          public Builder setKey(com.google.protobuf.ByteString value) {
+          public Builder setChainKey(com.google.protobuf.ByteString value) {
             if (value == null) {
     throw new NullPointerException();
   }
   bitField0_ |= 0x00000002;
-            key_ = value;
+            chainKey_ = value;
             onChanged();
             return this;
           }
           /**
-           * <code>optional bytes key = 2;</code>
+           * <code>optional bytes chainKey = 2;</code>
            */
-          public Builder clearKey() {
+          public Builder clearChainKey() {
             bitField0_ = (bitField0_ & ~0x00000002);
-            key_ = getDefaultInstance().getKey();
+            chainKey_ = getDefaultInstance().getChainKey();
             onChanged();
             return this;
           }
 
-          // optional bytes lastKey = 3;
-          private com.google.protobuf.ByteString lastKey_ = com.google.protobuf.ByteString.EMPTY;
+          // optional uint32 count = 3;
+          private int count_ ;
           /**
-           * <code>optional bytes lastKey = 3;</code>
+           * <code>optional uint32 count = 3;</code>
            */
-          public boolean hasLastKey() {
+          public boolean hasCount() {
             return ((bitField0_ & 0x00000004) == 0x00000004);
           }
           /**
-           * <code>optional bytes lastKey = 3;</code>
+           * <code>optional uint32 count = 3;</code>
            */
-          public com.google.protobuf.ByteString getLastKey() {
-            return lastKey_;
+          public int getCount() {
+            return count_;
           }
           /**
-           * <code>optional bytes lastKey = 3;</code>
+           * <code>optional uint32 count = 3;</code>
            */
-          public Builder setLastKey(com.google.protobuf.ByteString value) {
-            if (value == null) {
-    throw new NullPointerException();
-  }
-  bitField0_ |= 0x00000004;
-            lastKey_ = value;
+          public Builder setCount(int value) {
+            bitField0_ |= 0x00000004;
+            count_ = value;
             onChanged();
             return this;
           }
           /**
-           * <code>optional bytes lastKey = 3;</code>
+           * <code>optional uint32 count = 3;</code>
            */
-          public Builder clearLastKey() {
+          public Builder clearCount() {
             bitField0_ = (bitField0_ & ~0x00000004);
-            lastKey_ = getDefaultInstance().getLastKey();
+            count_ = 0;
             onChanged();
             return this;
           }
 
-          // @@protoc_insertion_point(builder_scope:textsecure.SessionStructure.Chain.AuthKey)
+          // optional fixed64 consumed = 4;
+          private long consumed_ ;
+          /**
+           * <code>optional fixed64 consumed = 4;</code>
+           */
+          public boolean hasConsumed() {
+            return ((bitField0_ & 0x00000008) == 0x00000008);
+          }
+          /**
+           * <code>optional fixed64 consumed = 4;</code>
+           */
+          public long getConsumed() {
+            return consumed_;
+          }
+          /**
+           * <code>optional fixed64 consumed = 4;</code>
+           */
+          public Builder setConsumed(long value) {
+            bitField0_ |= 0x00000008;
+            consumed_ = value;
+            onChanged();
+            return this;
+          }
+          /**
+           * <code>optional fixed64 consumed = 4;</code>
+           */
+          public Builder clearConsumed() {
+            bitField0_ = (bitField0_ & ~0x00000008);
+            consumed_ = 0L;
+            onChanged();
+            return this;
+          }
+
+          // @@protoc_insertion_point(builder_scope:textsecure.SessionStructure.Chain.MessageKeyCheckpoint)
         }
 
         static {
-          defaultInstance = new AuthKey(true);
+          defaultInstance = new MessageKeyCheckpoint(true);
           defaultInstance.initFields();
         }
 
-        // @@protoc_insertion_point(class_scope:textsecure.SessionStructure.Chain.AuthKey)
+        // @@protoc_insertion_point(class_scope:textsecure.SessionStructure.Chain.MessageKeyCheckpoint)
       }
 
       private int bitField0_;
@@ -2401,12 +3079,49 @@ public final class StorageProtos {
         return authKey_;
       }
 
+      // repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;
+      public static final int MESSAGEKEYCHECKPOINTS_FIELD_NUMBER = 6;
+      private java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint> messageKeyCheckpoints_;
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      public java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint> getMessageKeyCheckpointsList() {
+        return messageKeyCheckpoints_;
+      }
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      public java.util.List<? extends org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder>
+          getMessageKeyCheckpointsOrBuilderList() {
+        return messageKeyCheckpoints_;
+      }
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      public int getMessageKeyCheckpointsCount() {
+        return messageKeyCheckpoints_.size();
+      }
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint getMessageKeyCheckpoints(int index) {
+        return messageKeyCheckpoints_.get(index);
+      }
+      /**
+       * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+       */
+      public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder getMessageKeyCheckpointsOrBuilder(
+          int index) {
+        return messageKeyCheckpoints_.get(index);
+      }
+
       private void initFields() {
         senderRatchetKey_ = com.google.protobuf.ByteString.EMPTY;
         senderRatchetKeyPrivate_ = com.google.protobuf.ByteString.EMPTY;
         chainKey_ = org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.ChainKey.getDefaultInstance();
         messageKeys_ = java.util.Collections.emptyList();
         authKey_ = org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.AuthKey.getDefaultInstance();
+        messageKeyCheckpoints_ = java.util.Collections.emptyList();
       }
       private byte memoizedIsInitialized = -1;
       public final boolean isInitialized() {
@@ -2435,6 +3150,9 @@ public final class StorageProtos {
         if (((bitField0_ & 0x00000008) == 0x00000008)) {
           output.writeMessage(5, authKey_);
         }
+        for (int i = 0; i < messageKeyCheckpoints_.size(); i++) {
+          output.writeMessage(6, messageKeyCheckpoints_.get(i));
+        }
         getUnknownFields().writeTo(output);
       }
 
@@ -2464,6 +3182,10 @@ public final class StorageProtos {
           size += com.google.protobuf.CodedOutputStream
             .computeMessageSize(5, authKey_);
         }
+        for (int i = 0; i < messageKeyCheckpoints_.size(); i++) {
+          size += com.google.protobuf.CodedOutputStream
+            .computeMessageSize(6, messageKeyCheckpoints_.get(i));
+        }
         size += getUnknownFields().getSerializedSize();
         memoizedSerializedSize = size;
         return size;
@@ -2575,6 +3297,7 @@ public final class StorageProtos {
             getChainKeyFieldBuilder();
             getMessageKeysFieldBuilder();
             getAuthKeyFieldBuilder();
+            getMessageKeyCheckpointsFieldBuilder();
           }
         }
         private static Builder create() {
@@ -2605,6 +3328,12 @@ public final class StorageProtos {
             authKeyBuilder_.clear();
           }
           bitField0_ = (bitField0_ & ~0x00000010);
+          if (messageKeyCheckpointsBuilder_ == null) {
+            messageKeyCheckpoints_ = java.util.Collections.emptyList();
+            bitField0_ = (bitField0_ & ~0x00000020);
+          } else {
+            messageKeyCheckpointsBuilder_.clear();
+          }
           return this;
         }
 
@@ -2666,6 +3395,15 @@ public final class StorageProtos {
           } else {
             result.authKey_ = authKeyBuilder_.build();
           }
+          if (messageKeyCheckpointsBuilder_ == null) {
+            if (((bitField0_ & 0x00000020) == 0x00000020)) {
+              messageKeyCheckpoints_ = java.util.Collections.unmodifiableList(messageKeyCheckpoints_);
+              bitField0_ = (bitField0_ & ~0x00000020);
+            }
+            result.messageKeyCheckpoints_ = messageKeyCheckpoints_;
+          } else {
+            result.messageKeyCheckpoints_ = messageKeyCheckpointsBuilder_.build();
+          }
           result.bitField0_ = to_bitField0_;
           onBuilt();
           return result;
@@ -2720,6 +3458,32 @@ public final class StorageProtos {
           if (other.hasAuthKey()) {
             mergeAuthKey(other.getAuthKey());
           }
+          if (messageKeyCheckpointsBuilder_ == null) {
+            if (!other.messageKeyCheckpoints_.isEmpty()) {
+              if (messageKeyCheckpoints_.isEmpty()) {
+                messageKeyCheckpoints_ = other.messageKeyCheckpoints_;
+                bitField0_ = (bitField0_ & ~0x00000020);
+              } else {
+                ensureMessageKeyCheckpointsIsMutable();
+                messageKeyCheckpoints_.addAll(other.messageKeyCheckpoints_);
+              }
+              onChanged();
+            }
+          } else {
+            if (!other.messageKeyCheckpoints_.isEmpty()) {
+              if (messageKeyCheckpointsBuilder_.isEmpty()) {
+                messageKeyCheckpointsBuilder_.dispose();
+                messageKeyCheckpointsBuilder_ = null;
+                messageKeyCheckpoints_ = other.messageKeyCheckpoints_;
+                bitField0_ = (bitField0_ & ~0x00000020);
+                messageKeyCheckpointsBuilder_ = 
+                  com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders ?
+                     getMessageKeyCheckpointsFieldBuilder() : null;
+              } else {
+                messageKeyCheckpointsBuilder_.addAllMessages(other.messageKeyCheckpoints_);
+              }
+            }
+          }
           this.mergeUnknownFields(other.getUnknownFields());
           return this;
         }
@@ -3293,6 +4057,246 @@ public final class StorageProtos {
           return authKeyBuilder_;
         }
 
+        // repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;
+        private java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint> messageKeyCheckpoints_ =
+          java.util.Collections.emptyList();
+        private void ensureMessageKeyCheckpointsIsMutable() {
+          if (!((bitField0_ & 0x00000020) == 0x00000020)) {
+            messageKeyCheckpoints_ = new java.util.ArrayList<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint>(messageKeyCheckpoints_);
+            bitField0_ |= 0x00000020;
+           }
+        }
+
+        private com.google.protobuf.RepeatedFieldBuilder<
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder> messageKeyCheckpointsBuilder_;
+
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint> getMessageKeyCheckpointsList() {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            return java.util.Collections.unmodifiableList(messageKeyCheckpoints_);
+          } else {
+            return messageKeyCheckpointsBuilder_.getMessageList();
+          }
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public int getMessageKeyCheckpointsCount() {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            return messageKeyCheckpoints_.size();
+          } else {
+            return messageKeyCheckpointsBuilder_.getCount();
+          }
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint getMessageKeyCheckpoints(int index) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            return messageKeyCheckpoints_.get(index);
+          } else {
+            return messageKeyCheckpointsBuilder_.getMessage(index);
+          }
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder setMessageKeyCheckpoints(
+            int index, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint value) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            if (value == null) {
+              throw new NullPointerException();
+            }
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.set(index, value);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.setMessage(index, value);
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder setMessageKeyCheckpoints(
+            int index, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder builderForValue) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.set(index, builderForValue.build());
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.setMessage(index, builderForValue.build());
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder addMessageKeyCheckpoints(org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint value) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            if (value == null) {
+              throw new NullPointerException();
+            }
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.add(value);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.addMessage(value);
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder addMessageKeyCheckpoints(
+            int index, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint value) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            if (value == null) {
+              throw new NullPointerException();
+            }
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.add(index, value);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.addMessage(index, value);
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder addMessageKeyCheckpoints(
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder builderForValue) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.add(builderForValue.build());
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.addMessage(builderForValue.build());
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder addMessageKeyCheckpoints(
+            int index, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder builderForValue) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.add(index, builderForValue.build());
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.addMessage(index, builderForValue.build());
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder addAllMessageKeyCheckpoints(
+            java.lang.Iterable<? extends org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint> values) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            ensureMessageKeyCheckpointsIsMutable();
+            super.addAll(values, messageKeyCheckpoints_);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.addAllMessages(values);
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder clearMessageKeyCheckpoints() {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            messageKeyCheckpoints_ = java.util.Collections.emptyList();
+            bitField0_ = (bitField0_ & ~0x00000020);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.clear();
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public Builder removeMessageKeyCheckpoints(int index) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            ensureMessageKeyCheckpointsIsMutable();
+            messageKeyCheckpoints_.remove(index);
+            onChanged();
+          } else {
+            messageKeyCheckpointsBuilder_.remove(index);
+          }
+          return this;
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder getMessageKeyCheckpointsBuilder(
+            int index) {
+          return getMessageKeyCheckpointsFieldBuilder().getBuilder(index);
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder getMessageKeyCheckpointsOrBuilder(
+            int index) {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            return messageKeyCheckpoints_.get(index);  } else {
+            return messageKeyCheckpointsBuilder_.getMessageOrBuilder(index);
+          }
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public java.util.List<? extends org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder>
+             getMessageKeyCheckpointsOrBuilderList() {
+          if (messageKeyCheckpointsBuilder_ != null) {
+            return messageKeyCheckpointsBuilder_.getMessageOrBuilderList();
+          } else {
+            return java.util.Collections.unmodifiableList(messageKeyCheckpoints_);
+          }
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder addMessageKeyCheckpointsBuilder() {
+          return getMessageKeyCheckpointsFieldBuilder().addBuilder(
+              org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.getDefaultInstance());
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder addMessageKeyCheckpointsBuilder(
+            int index) {
+          return getMessageKeyCheckpointsFieldBuilder().addBuilder(
+              index, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.getDefaultInstance());
+        }
+        /**
+         * <code>repeated .textsecure.SessionStructure.Chain.MessageKeyCheckpoint messageKeyCheckpoints = 6;</code>
+         */
+        public java.util.List<org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder>
+             getMessageKeyCheckpointsBuilderList() {
+          return getMessageKeyCheckpointsFieldBuilder().getBuilderList();
+        }
+        private com.google.protobuf.RepeatedFieldBuilder<
+            org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder>
+            getMessageKeyCheckpointsFieldBuilder() {
+          if (messageKeyCheckpointsBuilder_ == null) {
+            messageKeyCheckpointsBuilder_ = new com.google.protobuf.RepeatedFieldBuilder<
+                org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpoint.Builder, org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain.MessageKeyCheckpointOrBuilder>(
+                    messageKeyCheckpoints_,
+                    ((bitField0_ & 0x00000020) == 0x00000020),
+                    getParentForChildren(),
+                    isClean());
+            messageKeyCheckpoints_ = null;
+          }
+          return messageKeyCheckpointsBuilder_;
+        }
+
         // @@protoc_insertion_point(builder_scope:textsecure.SessionStructure.Chain)
       }
 
@@ -12481,6 +13485,11 @@ public final class StorageProtos {
   private static
     com.google.protobuf.GeneratedMessage.FieldAccessorTable
       internal_static_textsecure_SessionStructure_Chain_AuthKey_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_fieldAccessorTable;
   private static com.google.protobuf.Descriptors.Descriptor
     internal_static_textsecure_SessionStructure_PendingKeyExchange_descriptor;
   private static
@@ -12546,7 +13555,7 @@ public final class StorageProtos {
   static {
     java.lang.String[] descriptorData = {
       "\n\032LocalStorageProtocol.proto\022\ntextsecure" +
-      "\"\364\t\n\020SessionStructure\022\026\n\016sessionVersion\030" +
+      "\"\246\013\n\020SessionStructure\022\026\n\016sessionVersion\030" +
       "\001 \001(\r\022\033\n\023localIdentityPublic\030\002 \001(\014\022\034\n\024re" +
       "moteIdentityPublic\030\003 \001(\014\022\017\n\007rootKey\030\004 \001(" +
       "\014\022\027\n\017previousCounter\030\005 \001(\r\0227\n\013senderChai" +
@@ -12559,50 +13568,54 @@ public final class StorageProtos {
       "gPreKey\022\034\n\024remoteRegistrationId\030\n \001(\r\022\033\n" +
       "\023localRegistrationId\030\013 \001(\r\022\024\n\014needsRefre" +
       "sh\030\014 \001(\010\022\024\n\014aliceBaseKey\030\r \001(\014\022\022\n\nfprint" +
-      "Hash\030\016 \001(\014\022\026\n\016lastFprintHash\030\017 \001(\014\032\256\003\n\005C" +
+      "Hash\030\016 \001(\014\022\026\n\016lastFprintHash\030\017 \001(\014\032\340\004\n\005C" +
       "hain\022\030\n\020senderRatchetKey\030\001 \001(\014\022\037\n\027sender" +
       "RatchetKeyPrivate\030\002 \001(\014\022=\n\010chainKey\030\003 \001(" +
       "\0132+.textsecure.SessionStructure.Chain.Ch" +
       "ainKey\022B\n\013messageKeys\030\004 \003(\0132-.textsecure" +
       ".SessionStructure.Chain.MessageKey\022;\n\007au",
       "thKey\030\005 \001(\0132*.textsecure.SessionStructur" +
-      "e.Chain.AuthKey\032&\n\010ChainKey\022\r\n\005index\030\001 \001" +
-      "(\r\022\013\n\003key\030\002 \001(\014\032J\n\nMessageKey\022\r\n\005index\030\001" +
-      " \001(\r\022\021\n\tcipherKey\030\002 \001(\014\022\016\n\006macKey\030\003 \001(\014\022" +
-      "\n\n\002iv\030\004 \001(\014\0326\n\007AuthKey\022\r\n\005index\030\001 \001(\r\022\013\n" +
-      "\003key\030\002 \001(\014\022\017\n\007lastKey\030\003 \001(\014\032\315\001\n\022PendingK" +
-      "eyExchange\022\020\n\010sequence\030\001 \001(\r\022\024\n\014localBas" +
-      "eKey\030\002 \001(\014\022\033\n\023localBaseKeyPrivate\030\003 \001(\014\022" +
-      "\027\n\017localRatchetKey\030\004 \001(\014\022\036\n\026localRatchet" +
-      "KeyPrivate\030\005 \001(\014\022\030\n\020localIdentityKey\030\007 \001",
-      "(\014\022\037\n\027localIdentityKeyPrivate\030\010 \001(\014\032J\n\rP" +
-      "endingPreKey\022\020\n\010preKeyId\030\001 \001(\r\022\026\n\016signed" +
-      "PreKeyId\030\003 \001(\005\022\017\n\007baseKey\030\002 \001(\014\"\177\n\017Recor" +
-      "dStructure\0224\n\016currentSession\030\001 \001(\0132\034.tex" +
-      "tsecure.SessionStructure\0226\n\020previousSess" +
-      "ions\030\002 \003(\0132\034.textsecure.SessionStructure" +
-      "\"J\n\025PreKeyRecordStructure\022\n\n\002id\030\001 \001(\r\022\021\n" +
-      "\tpublicKey\030\002 \001(\014\022\022\n\nprivateKey\030\003 \001(\014\"v\n\033" +
-      "SignedPreKeyRecordStructure\022\n\n\002id\030\001 \001(\r\022" +
-      "\021\n\tpublicKey\030\002 \001(\014\022\022\n\nprivateKey\030\003 \001(\014\022\021",
-      "\n\tsignature\030\004 \001(\014\022\021\n\ttimestamp\030\005 \001(\006\"A\n\030" +
-      "IdentityKeyPairStructure\022\021\n\tpublicKey\030\001 " +
-      "\001(\014\022\022\n\nprivateKey\030\002 \001(\014\"\270\003\n\027SenderKeySta" +
-      "teStructure\022\023\n\013senderKeyId\030\001 \001(\r\022J\n\016send" +
-      "erChainKey\030\002 \001(\01322.textsecure.SenderKeyS" +
-      "tateStructure.SenderChainKey\022N\n\020senderSi" +
-      "gningKey\030\003 \001(\01324.textsecure.SenderKeySta" +
-      "teStructure.SenderSigningKey\022O\n\021senderMe" +
-      "ssageKeys\030\004 \003(\01324.textsecure.SenderKeySt" +
-      "ateStructure.SenderMessageKey\0321\n\016SenderC",
-      "hainKey\022\021\n\titeration\030\001 \001(\r\022\014\n\004seed\030\002 \001(\014" +
-      "\0323\n\020SenderMessageKey\022\021\n\titeration\030\001 \001(\r\022" +
-      "\014\n\004seed\030\002 \001(\014\0323\n\020SenderSigningKey\022\016\n\006pub" +
-      "lic\030\001 \001(\014\022\017\n\007private\030\002 \001(\014\"X\n\030SenderKeyR" +
-      "ecordStructure\022<\n\017senderKeyStates\030\001 \003(\0132" +
-      "#.textsecure.SenderKeyStateStructureB3\n\"" +
-      "org.whispersystems.libsignal.stateB\rStor" +
-      "ageProtos"
+      "e.Chain.AuthKey\022V\n\025messageKeyCheckpoints" +
+      "\030\006 \003(\01327.textsecure.SessionStructure.Cha" +
+      "in.MessageKeyCheckpoint\032&\n\010ChainKey\022\r\n\005i" +
+      "ndex\030\001 \001(\r\022\013\n\003key\030\002 \001(\014\032J\n\nMessageKey\022\r\n" +
+      "\005index\030\001 \001(\r\022\021\n\tcipherKey\030\002 \001(\014\022\016\n\006macKe" +
+      "y\030\003 \001(\014\022\n\n\002iv\030\004 \001(\014\0326\n\007AuthKey\022\r\n\005index\030" +
+      "\001 \001(\r\022\013\n\003key\030\002 \001(\014\022\017\n\007lastKey\030\003 \001(\014\032X\n\024M" +
+      "essageKeyCheckpoint\022\r\n\005index\030\001 \001(\r\022\020\n\010ch" +
+      "ainKey\030\002 \001(\014\022\r\n\005count\030\003 \001(\r\022\020\n\010consumed\030",
+      "\004 \001(\006\032\315\001\n\022PendingKeyExchange\022\020\n\010sequence" +
+      "\030\001 \001(\r\022\024\n\014localBaseKey\030\002 \001(\014\022\033\n\023localBas" +
+      "eKeyPrivate\030\003 \001(\014\022\027\n\017localRatchetKey\030\004 \001" +
+      "(\014\022\036\n\026localRatchetKeyPrivate\030\005 \001(\014\022\030\n\020lo" +
+      "calIdentityKey\030\007 \001(\014\022\037\n\027localIdentityKey" +
+      "Private\030\010 \001(\014\032J\n\rPendingPreKey\022\020\n\010preKey" +
+      "Id\030\001 \001(\r\022\026\n\016signedPreKeyId\030\003 \001(\005\022\017\n\007base" +
+      "Key\030\002 \001(\014\"\177\n\017RecordStructure\0224\n\016currentS" +
+      "ession\030\001 \001(\0132\034.textsecure.SessionStructu" +
+      "re\0226\n\020previousSessions\030\002 \003(\0132\034.textsecur",
+      "e.SessionStructure\"J\n\025PreKeyRecordStruct" +
+      "ure\022\n\n\002id\030\001 \001(\r\022\021\n\tpublicKey\030\002 \001(\014\022\022\n\npr" +
+      "ivateKey\030\003 \001(\014\"v\n\033SignedPreKeyRecordStru" +
+      "cture\022\n\n\002id\030\001 \001(\r\022\021\n\tpublicKey\030\002 \001(\014\022\022\n\n" +
+      "privateKey\030\003 \001(\014\022\021\n\tsignature\030\004 \001(\014\022\021\n\tt" +
+      "imestamp\030\005 \001(\006\"A\n\030IdentityKeyPairStructu" +
+      "re\022\021\n\tpublicKey\030\001 \001(\014\022\022\n\nprivateKey\030\002 \001(" +
+      "\014\"\270\003\n\027SenderKeyStateStructure\022\023\n\013senderK" +
+      "eyId\030\001 \001(\r\022J\n\016senderChainKey\030\002 \001(\01322.tex" +
+      "tsecure.SenderKeyStateStructure.SenderCh",
+      "ainKey\022N\n\020senderSigningKey\030\003 \001(\01324.texts" +
+      "ecure.SenderKeyStateStructure.SenderSign" +
+      "ingKey\022O\n\021senderMessageKeys\030\004 \003(\01324.text" +
+      "secure.SenderKeyStateStructure.SenderMes" +
+      "sageKey\0321\n\016SenderChainKey\022\021\n\titeration\030\001" +
+      " \001(\r\022\014\n\004seed\030\002 \001(\014\0323\n\020SenderMessageKey\022\021" +
+      "\n\titeration\030\001 \001(\r\022\014\n\004seed\030\002 \001(\014\0323\n\020Sende" +
+      "rSigningKey\022\016\n\006public\030\001 \001(\014\022\017\n\007private\030\002" +
+      " \001(\014\"X\n\030SenderKeyRecordStructure\022<\n\017send" +
+      "erKeyStates\030\001 \003(\0132#.textsecure.SenderKey",
+      "StateStructureB3\n\"org.whispersystems.lib" +
+      "signal.stateB\rStorageProtos"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -12620,7 +13633,7 @@ public final class StorageProtos {
           internal_static_textsecure_SessionStructure_Chain_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_textsecure_SessionStructure_Chain_descriptor,
-              new java.lang.String[] { "SenderRatchetKey", "SenderRatchetKeyPrivate", "ChainKey", "MessageKeys", "AuthKey", });
+              new java.lang.String[] { "SenderRatchetKey", "SenderRatchetKeyPrivate", "ChainKey", "MessageKeys", "AuthKey", "MessageKeyCheckpoints", });
           internal_static_textsecure_SessionStructure_Chain_ChainKey_descriptor =
             internal_static_textsecure_SessionStructure_Chain_descriptor.getNestedTypes().get(0);
           internal_static_textsecure_SessionStructure_Chain_ChainKey_fieldAccessorTable = new
@@ -12639,6 +13652,12 @@ public final class StorageProtos {
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_textsecure_SessionStructure_Chain_AuthKey_descriptor,
               new java.lang.String[] { "Index", "Key", "LastKey", });
+          internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor =
+            internal_static_textsecure_SessionStructure_Chain_descriptor.getNestedTypes().get(3);
+          internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_textsecure_SessionStructure_Chain_MessageKeyCheckpoint_descriptor,
+              new java.lang.String[] { "Index", "ChainKey", "Count", "Consumed", });
           internal_static_textsecure_SessionStructure_PendingKeyExchange_descriptor =
             internal_static_textsecure_SessionStructure_descriptor.getNestedTypes().get(1);
           internal_static_textsecure_SessionStructure_PendingKeyExchange_fieldAccessorTable = new
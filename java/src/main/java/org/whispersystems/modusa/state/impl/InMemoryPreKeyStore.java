@@ -18,7 +18,7 @@ public class InMemoryPreKeyStore implements PreKeyStore {
   private final Map<Integer, byte[]> store = new HashMap<>();
 
   @Override
-  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+  public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
     try {
       if (!store.containsKey(preKeyId)) {
         throw new InvalidKeyIdException("No such prekeyrecord!");
@@ -31,17 +31,17 @@ public class InMemoryPreKeyStore implements PreKeyStore {
   }
 
   @Override
-  public void storePreKey(int preKeyId, PreKeyRecord record) {
+  public synchronized void storePreKey(int preKeyId, PreKeyRecord record) {
     store.put(preKeyId, record.serialize());
   }
 
   @Override
-  public boolean containsPreKey(int preKeyId) {
+  public synchronized boolean containsPreKey(int preKeyId) {
     return store.containsKey(preKeyId);
   }
 
   @Override
-  public void removePreKey(int preKeyId) {
+  public synchronized void removePreKey(int preKeyId) {
     store.remove(preKeyId);
   }
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.state.impl;
+
+import com.google.protobuf.ByteString;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.crypto.CryptoPrimitives;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.state.SignedPreKeyVerificationCache;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used {@link SignedPreKeyVerificationCache}.
+ * <p>
+ * Entries are keyed by a SHA-512 digest over the identity key, the signed PreKey and
+ * the signature, so that each entry has a fixed size and a lookup never matches a
+ * different combination of the three.
+ */
+public class InMemorySignedPreKeyVerificationCache implements SignedPreKeyVerificationCache {
+
+  private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final Map<ByteString, Boolean> cache;
+
+  public InMemorySignedPreKeyVerificationCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries The number of verified signatures to remember.
+   */
+  public InMemorySignedPreKeyVerificationCache(final int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+    }
+
+    this.cache = new LinkedHashMap<ByteString, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteString, Boolean> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public boolean isVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature) {
+    ByteString key = getKey(identityKey, signedPreKey, signature);
+
+    synchronized (this) {
+      return cache.get(key) != null;
+    }
+  }
+
+  @Override
+  public void setVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature) {
+    ByteString key = getKey(identityKey, signedPreKey, signature);
+
+    synchronized (this) {
+      cache.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return The number of verified signatures currently remembered.
+   */
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  private ByteString getKey(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature) {
+    MessageDigest digest = CryptoPrimitives.getSha512();
+
+    digest.update(identityKey.serialize());
+    digest.update(signedPreKey.serialize());
+    digest.update(signature);
+
+    return ByteString.copyFrom(digest.digest());
+  }
+}
@@ -7,6 +7,7 @@ package org.whispersystems.modusa.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 public class ByteUtil {
@@ -67,6 +68,25 @@ public class ByteUtil {
     return result;
   }
 
+  /**
+   * Read the remaining bytes of a buffer, advancing its position to its limit.  If
+   * the remaining bytes are exactly a heap buffer's backing array, that array is
+   * returned rather than a copy.
+   */
+  public static byte[] getRemaining(ByteBuffer buffer) {
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 &&
+        buffer.remaining() == buffer.array().length)
+    {
+      buffer.position(buffer.limit());
+      return buffer.array();
+    }
+
+    byte[] remaining = new byte[buffer.remaining()];
+    buffer.get(remaining);
+
+    return remaining;
+  }
+
   public static byte[] copyFrom(byte[] input) {
     byte[] output = new byte[input.length];
     System.arraycopy(input, 0, output, 0, output.length);
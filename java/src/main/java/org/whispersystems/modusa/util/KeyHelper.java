@@ -15,7 +15,7 @@ import org.whispersystems.modusa.state.SignedPreKeyRecord;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -76,18 +76,22 @@ public class KeyHelper {
    * store PreKeys in a circular buffer, so that they are repeated as infrequently
    * as possible.
    *
+   * Keys are generated in parallel.  To store or upload large numbers of PreKeys without
+   * holding them all in memory, use a {@link PreKeyGenerator} directly.
+   *
    * @param start The starting PreKey ID, inclusive.
    * @param count The number of PreKeys to generate.
    * @return the list of generated PreKeyRecords.
    */
   public static List<PreKeyRecord> generatePreKeys(int start, int count) {
-    List<PreKeyRecord> results = new LinkedList<>();
-
-    start--;
-
-    for (int i=0;i<count;i++) {
-      results.add(new PreKeyRecord(((start + i) % (Medium.MAX_VALUE-1)) + 1, Curve.generateKeyPair()));
-    }
+    final List<PreKeyRecord> results = new ArrayList<>(Math.max(count, 0));
+
+    new PreKeyGenerator().generate(start, count, new PreKeyGenerator.BatchCallback() {
+      @Override
+      public void onBatch(List<PreKeyRecord> batch) {
+        results.addAll(batch);
+      }
+    });
 
     return results;
   }
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.util;
+
+import org.whispersystems.modusa.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on a backing {@link Executor} so that tasks submitted with the
+ * same key run one at a time in submission order, while tasks for different
+ * keys run concurrently.
+ * <p>
+ * Each key with pending work occupies at most one task on the backing executor
+ * at a time, and a key's queue is dropped as soon as it drains.  If the backing
+ * executor rejects a key's next task, every task still queued for that key is
+ * dropped and told so: {@link RejectableTask}s through
+ * {@link RejectableTask#reject(RuntimeException)}, and other {@link Future}s by
+ * being cancelled.
+ * <p>
+ * {@link #whenIdle(Runnable)} lets an owner wait for every queue to drain, for
+ * instance before shutting the backing executor down.
+ */
+public class KeyedSerialExecutor<K> {
+
+  private static final String TAG = KeyedSerialExecutor.class.getSimpleName();
+
+  /**
+   * A task that can be completed with a failure if it will never run.
+   */
+  public interface RejectableTask extends Runnable {
+    public void reject(RuntimeException cause);
+  }
+
+  private final Executor                     executor;
+  private final Map<K, ArrayDeque<Runnable>> queues      = new HashMap<>();
+  private final List<Runnable>               idleActions = new LinkedList<>();
+
+  public KeyedSerialExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Queue a task behind any pending tasks for key.
+   *
+   * @throws RuntimeException if the backing executor rejects the task.  The task
+   *                          has been rejected as described above in that case.
+   */
+  public void execute(K key, Runnable task) {
+    Collection<Runnable> dropped;
+    RuntimeException     failure;
+    List<Runnable>       idle;
+
+    synchronized (queues) {
+      ArrayDeque<Runnable> queue = queues.get(key);
+
+      if (queue != null) {
+        queue.add(task);
+        return;
+      }
+
+      queue = new ArrayDeque<>();
+      queue.add(task);
+      queues.put(key, queue);
+
+      try {
+        schedule(key);
+        return;
+      } catch (RuntimeException e) {
+        failure = e;
+        dropped = queues.remove(key);
+        idle    = takeIdleActions();
+      }
+    }
+
+    reject(dropped, failure);
+    runAll(idle);
+    throw failure;
+  }
+
+  /**
+   * Run action once no key has pending work: immediately on the calling thread if
+   * that is already the case, and otherwise on the thread that drains the last queue.
+   */
+  public void whenIdle(Runnable action) {
+    synchronized (queues) {
+      if (!queues.isEmpty()) {
+        idleActions.add(action);
+        return;
+      }
+    }
+
+    action.run();
+  }
+
+  private void schedule(final K key) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        runNext(key);
+      }
+    });
+  }
+
+  private void runNext(K key) {
+    Runnable task;
+
+    synchronized (queues) {
+      task = queues.get(key).poll();
+    }
+
+    try {
+      task.run();
+    } finally {
+      scheduleNext(key);
+    }
+  }
+
+  private void scheduleNext(K key) {
+    Collection<Runnable> dropped = null;
+    RuntimeException     failure = null;
+    List<Runnable>       idle;
+
+    synchronized (queues) {
+      if (queues.get(key).isEmpty()) {
+        queues.remove(key);
+      } else {
+        try {
+          schedule(key);
+          return;
+        } catch (RuntimeException e) {
+          failure = e;
+          dropped = queues.remove(key);
+        }
+      }
+
+      idle = takeIdleActions();
+    }
+
+    if (dropped != null) {
+      Log.w(TAG, "Dropping " + dropped.size() + " queued tasks", failure);
+      reject(dropped, failure);
+    }
+
+    runAll(idle);
+  }
+
+  private List<Runnable> takeIdleActions() {
+    if (!queues.isEmpty() || idleActions.isEmpty()) return null;
+
+    List<Runnable> actions = new ArrayList<>(idleActions);
+    idleActions.clear();
+
+    return actions;
+  }
+
+  private void runAll(List<Runnable> actions) {
+    if (actions == null) return;
+
+    for (Runnable action : actions) {
+      action.run();
+    }
+  }
+
+  private void reject(Collection<Runnable> tasks, RuntimeException cause) {
+    for (Runnable task : tasks) {
+      if      (task instanceof RejectableTask) ((RejectableTask)task).reject(cause);
+      else if (task instanceof Future)         ((Future<?>)task).cancel(false);
+    }
+  }
+}
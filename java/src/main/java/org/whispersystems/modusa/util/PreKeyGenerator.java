@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.util;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.state.PreKeyRecord;
+import org.whispersystems.modusa.state.PreKeyStore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates one-time PreKeys in parallel on a {@link ForkJoinPool}, handing them to the
+ * caller in fixed size batches as they are finished.
+ * <p>
+ * At most two batches are held at once: the next batch is generated while the caller
+ * is storing or uploading the current one.  Batches are delivered on the calling thread,
+ * in ID order.  IDs are assigned as {@link KeyHelper#generatePreKeys(int, int)} assigns
+ * them, wrapping around before {@link Medium#MAX_VALUE}.
+ */
+public class PreKeyGenerator {
+
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int THRESHOLD          = 8;
+
+  public interface BatchCallback {
+    public void onBatch(List<PreKeyRecord> batch);
+  }
+
+  private final ForkJoinPool pool;
+  private final int          batchSize;
+
+  /**
+   * Construct a generator on the {@link SharedPool}.
+   */
+  public PreKeyGenerator() {
+    this(SharedPool.get(), DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param pool      The pool to generate keys on.
+   * @param batchSize The number of PreKeys delivered in each batch.
+   */
+  public PreKeyGenerator(ForkJoinPool pool, int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+    }
+
+    this.pool      = pool;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Generate PreKeys and deliver them in batches.  The last batch may be smaller than
+   * the batch size.
+   *
+   * @param start    The starting PreKey ID, inclusive.
+   * @param count    The number of PreKeys to generate.
+   * @param callback Receives each batch as soon as it has been generated.
+   */
+  public void generate(int start, int count, BatchCallback callback) {
+    if (count <= 0) return;
+
+    GenerateTask pending = new GenerateTask(start, 0, Math.min(count, batchSize));
+    pool.execute(pending);
+
+    for (int offset=0;;offset+=batchSize) {
+      GenerateTask current   = pending;
+      int          remaining = count - offset - current.length;
+
+      current.join();
+
+      if (remaining > 0) {
+        pending = new GenerateTask(start, offset + current.length, Math.min(remaining, batchSize));
+        pool.execute(pending);
+      }
+
+      callback.onBatch(Arrays.asList(current.records));
+
+      if (remaining <= 0) break;
+    }
+  }
+
+  /**
+   * Generate PreKeys and store each one in a {@link PreKeyStore} as its batch completes.
+   *
+   * @param start    The starting PreKey ID, inclusive.
+   * @param count    The number of PreKeys to generate.
+   * @param store    The store to save the generated PreKeys in.
+   */
+  public void generate(int start, int count, final PreKeyStore store) {
+    generate(start, count, new BatchCallback() {
+      @Override
+      public void onBatch(List<PreKeyRecord> batch) {
+        for (PreKeyRecord record : batch) {
+          store.storePreKey(record.getId(), record);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The ID of the PreKey at the given index of a run starting at start.
+   */
+  static int getPreKeyId(int start, long index) {
+    return (int)(((start - 1L + index) % (Medium.MAX_VALUE - 1)) + 1);
+  }
+
+  private static class GenerateTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int            start;
+    private final long           index;
+    private final PreKeyRecord[] records;
+    private final int            offset;
+    private final int            length;
+
+    GenerateTask(int start, long index, int length) {
+      this(start, index, new PreKeyRecord[length], 0, length);
+    }
+
+    private GenerateTask(int start, long index, PreKeyRecord[] records, int offset, int length) {
+      this.start   = start;
+      this.index   = index;
+      this.records = records;
+      this.offset  = offset;
+      this.length  = length;
+    }
+
+    @Override
+    protected void compute() {
+      if (length <= THRESHOLD) {
+        for (int i=offset;i<offset+length;i++) {
+          records[i] = new PreKeyRecord(getPreKeyId(start, index + i), Curve.generateKeyPair());
+        }
+      } else {
+        int half = length / 2;
+
+        invokeAll(new GenerateTask(start, index, records, offset, half),
+                  new GenerateTask(start, index, records, offset + half, length - half));
+      }
+    }
+  }
+}
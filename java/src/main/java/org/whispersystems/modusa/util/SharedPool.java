@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The one pool this library runs parallel work on when a caller does not supply its own:
+ * generating PreKeys with {@link PreKeyGenerator#PreKeyGenerator()}, and verifying the
+ * signatures of a batch with
+ * {@link org.whispersystems.modusa.groups.GroupCipher#decrypt(java.util.List)}.
+ * <p>
+ * The pool has one worker per core, is created the first time it is used, and is never
+ * shut down.  Its workers are daemon threads, so it does not keep the JVM alive.  Callers
+ * that need to bound or isolate this work should pass their own executor instead.
+ */
+public class SharedPool {
+
+  private SharedPool() {}
+
+  /**
+   * @return The shared pool.
+   */
+  public static ForkJoinPool get() {
+    return Holder.INSTANCE;
+  }
+
+  private static class Holder {
+    static final ForkJoinPool INSTANCE = new ForkJoinPool();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.modusa.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of {@link ReentrantLock}s, selected by the hash of a key.
+ * <p>
+ * Operations on the same key always map to the same lock and are therefore
+ * serialized, while operations on different keys will usually map to different
+ * locks and can proceed in parallel.  Two keys may share a stripe, so callers
+ * must never hold the locks for two different keys at the same time.
+ */
+public class StripedLock<K> {
+
+  private final ReentrantLock[] stripes;
+
+  /**
+   * @param stripeCount The number of locks to distribute keys over.  Rounded up
+   *                    to the next power of two.
+   */
+  public StripedLock(int stripeCount) {
+    if (stripeCount <= 0) {
+      throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+    }
+
+    int size = Integer.highestOneBit(stripeCount);
+    if (size < stripeCount) size <<= 1;
+
+    this.stripes = new ReentrantLock[size];
+
+    for (int i=0;i<stripes.length;i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * @param key The key to return a lock for.
+   * @return The lock guarding the stripe that key belongs to.
+   */
+  public ReentrantLock get(K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+
+    return stripes[hash & (stripes.length - 1)];
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
+  }
+}
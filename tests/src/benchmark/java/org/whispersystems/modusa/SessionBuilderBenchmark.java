@@ -0,0 +1,62 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECKeyPair;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.state.IdentityKeyStore;
+import org.whispersystems.modusa.state.PreKeyBundle;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+import org.whispersystems.modusa.state.SignedPreKeyVerificationCache;
+import org.whispersystems.modusa.state.impl.InMemorySignedPreKeyVerificationCache;
+
+public class SessionBuilderBenchmark extends TestCase {
+
+  private static final SignalProtocolAddress BOB_ADDRESS = new SignalProtocolAddress("+14152222222", 1);
+
+  public void testSignedPreKeyVerificationCacheThroughput() throws Exception {
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    IdentityKeyStore    bobStore   = new TestInMemoryIdentityKeyStore();
+
+    SignedPreKeyVerificationCache noCache = new SignedPreKeyVerificationCache() {
+      @Override
+      public boolean isVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature) {
+        return false;
+      }
+
+      @Override
+      public void setVerified(IdentityKey identityKey, ECPublicKey signedPreKey, byte[] signature) {}
+    };
+
+    ECKeyPair    bobSignedPreKeyPair = Curve.generateKeyPair();
+    PreKeyBundle bobPreKey           = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                        31337, Curve.generateKeyPair().getPublicKey(),
+                                                        22, bobSignedPreKeyPair.getPublicKey(),
+                                                        Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                                 bobSignedPreKeyPair.getPublicKey().serialize()),
+                                                        bobStore.getIdentityKeyPair().getPublicKey());
+
+    SessionBuilder uncached = new SessionBuilder(aliceStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS, noCache);
+    SessionBuilder cached   = new SessionBuilder(aliceStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS,
+                                                 new InMemorySignedPreKeyVerificationCache());
+
+    long uncachedTime = timeProcess(uncached, bobPreKey, 200);
+    long cachedTime   = timeProcess(cached, bobPreKey, 200);
+
+    System.out.println(String.format("Repeat PreKeyBundle processing: uncached: %d us, cached: %d us",
+                                     uncachedTime / 1000, cachedTime / 1000));
+  }
+
+  private long timeProcess(SessionBuilder builder, PreKeyBundle bundle, int iterations) throws Exception {
+    builder.process(bundle);
+
+    long start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      builder.process(bundle);
+    }
+
+    return (System.nanoTime() - start) / iterations;
+  }
+}
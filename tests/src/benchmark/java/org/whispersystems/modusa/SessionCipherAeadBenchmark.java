@@ -0,0 +1,100 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECKeyPair;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.modusa.ratchet.BobSignalProtocolParameters;
+import org.whispersystems.modusa.ratchet.RatchetingSession;
+import org.whispersystems.modusa.state.SessionRecord;
+import org.whispersystems.modusa.state.SessionState;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+import org.whispersystems.modusa.util.guava.Optional;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+public class SessionCipherAeadBenchmark extends TestCase {
+
+  public void testAeadThroughput() throws Exception {
+    byte[] payload = new byte[64 * 1024];
+    new Random().nextBytes(payload);
+
+    runThroughput(3, payload, 50);
+    runThroughput(4, payload, 50);
+
+    long cbc = runThroughput(3, payload, 500);
+    long gcm = runThroughput(4, payload, 500);
+
+    System.out.println(String.format("64KB message round trips: v3 AES-CBC+HMAC: %d ops/s, v4 AES-GCM: %d ops/s (%.2fx)",
+                                     cbc, gcm, (double)gcm / (double)cbc));
+  }
+
+  private long runThroughput(int version, byte[] payload, int iterations) throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), version);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    long start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt(payload).serialize()));
+    }
+
+    return (iterations * 1000000000L) / Math.max(System.nanoTime() - start, 1);
+  }
+
+  private void initializeSessions(SessionState aliceSessionState, SessionState bobSessionState, int version)
+      throws InvalidKeyException, NoSuchAlgorithmException
+  {
+    ECKeyPair       aliceIdentityKeyPair = Curve.generateKeyPair();
+    IdentityKeyPair aliceIdentityKey     = new IdentityKeyPair(new IdentityKey(aliceIdentityKeyPair.getPublicKey()),
+                                                               aliceIdentityKeyPair.getPrivateKey());
+    ECKeyPair       aliceBaseKey         = Curve.generateKeyPair();
+    ECKeyPair       aliceEphemeralKey    = Curve.generateKeyPair();
+
+    ECKeyPair alicePreKey = aliceBaseKey;
+
+    ECKeyPair       bobIdentityKeyPair = Curve.generateKeyPair();
+    IdentityKeyPair bobIdentityKey       = new IdentityKeyPair(new IdentityKey(bobIdentityKeyPair.getPublicKey()),
+                                                               bobIdentityKeyPair.getPrivateKey());
+    ECKeyPair       bobBaseKey           = Curve.generateKeyPair();
+    ECKeyPair       bobEphemeralKey      = bobBaseKey;
+
+    ECKeyPair       bobPreKey            = Curve.generateKeyPair();
+
+    AliceSignalProtocolParameters aliceParameters = AliceSignalProtocolParameters.newBuilder()
+                                                                                 .setOurBaseKey(aliceBaseKey)
+                                                                                 .setOurIdentityKey(aliceIdentityKey)
+                                                                                 .setTheirOneTimePreKey(Optional.<ECPublicKey>absent())
+                                                                                 .setTheirRatchetKey(bobEphemeralKey.getPublicKey())
+                                                                                 .setTheirSignedPreKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirIdentityKey(bobIdentityKey.getPublicKey())
+                                                                                 .create();
+
+    BobSignalProtocolParameters bobParameters = BobSignalProtocolParameters.newBuilder()
+                                                                           .setOurRatchetKey(bobEphemeralKey)
+                                                                           .setOurSignedPreKey(bobBaseKey)
+                                                                           .setOurOneTimePreKey(Optional.<ECKeyPair>absent())
+                                                                           .setOurIdentityKey(bobIdentityKey)
+                                                                           .setTheirIdentityKey(aliceIdentityKey.getPublicKey())
+                                                                           .setTheirBaseKey(aliceBaseKey.getPublicKey())
+                                                                           .create();
+
+    RatchetingSession.initializeSession(aliceSessionState, version, aliceParameters);
+    RatchetingSession.initializeSession(bobSessionState, version, bobParameters);
+  }
+}
@@ -0,0 +1,94 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SessionCipherContentionBenchmark extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14159998888", 1);
+
+  private static final int SESSIONS             = 16;
+  private static final int MESSAGES_PER_SESSION = 250;
+
+  public void testIndependentSessionsEncryptInParallel() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    runEncryptBenchmark(cores);
+
+    long serialRate   = runEncryptBenchmark(1);
+    long parallelRate = runEncryptBenchmark(cores);
+
+    System.out.println(String.format("SessionCipher.encrypt: %d sessions, 1 thread: %d msg/s, %d threads: %d msg/s (%.2fx)",
+                                     SESSIONS, serialRate, cores, parallelRate,
+                                     (double)parallelRate / (double)serialRate));
+  }
+
+  private long runEncryptBenchmark(int threads) throws Exception {
+    final SignalProtocolStore         aliceStore = new TestInMemorySignalProtocolStore();
+    final List<SignalProtocolAddress> addresses  = new ArrayList<>();
+    final List<SignalProtocolStore>   bobStores  = new ArrayList<>();
+
+    for (int i=0;i<SESSIONS;i++) {
+      SignalProtocolAddress address  = new SignalProtocolAddress("+1415000" + i, 1);
+      SignalProtocolStore   bobStore = new TestInMemorySignalProtocolStore();
+
+      SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, bobStore, address);
+
+      addresses.add(address);
+      bobStores.add(bobStore);
+    }
+
+    ExecutorService                       executor = Executors.newFixedThreadPool(threads);
+    List<Future<List<CiphertextMessage>>> results  = new LinkedList<>();
+    long                                  start    = System.nanoTime();
+
+    for (final SignalProtocolAddress address : addresses) {
+      results.add(executor.submit(new Callable<List<CiphertextMessage>>() {
+        @Override
+        public List<CiphertextMessage> call() throws Exception {
+          SessionCipher           cipher      = new SessionCipher(aliceStore, address);
+          List<CiphertextMessage> ciphertexts = new LinkedList<>();
+
+          for (int i=0;i<MESSAGES_PER_SESSION;i++) {
+            ciphertexts.add(cipher.encrypt(("message " + i).getBytes()));
+          }
+
+          return ciphertexts;
+        }
+      }));
+    }
+
+    List<List<CiphertextMessage>> ciphertexts = new ArrayList<>();
+
+    for (Future<List<CiphertextMessage>> result : results) {
+      ciphertexts.add(result.get());
+    }
+
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+
+    for (int i=0;i<SESSIONS;i++) {
+      SessionCipher bobCipher = new SessionCipher(bobStores.get(i), ALICE_ADDRESS);
+      int           index     = 0;
+
+      for (CiphertextMessage ciphertext : ciphertexts.get(i)) {
+        byte[] plaintext = bobCipher.decrypt(new SignalMessage(ciphertext.serialize()));
+        assertTrue(Arrays.equals(("message " + index++).getBytes(), plaintext));
+      }
+    }
+
+    return (SESSIONS * MESSAGES_PER_SESSION * 1000000000L) / Math.max(elapsed, 1);
+  }
+}
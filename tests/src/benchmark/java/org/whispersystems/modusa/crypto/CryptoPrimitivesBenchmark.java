@@ -0,0 +1,49 @@
+package org.whispersystems.modusa.crypto;
+
+import junit.framework.TestCase;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoPrimitivesBenchmark extends TestCase {
+
+  private static final int ITERATIONS = 50000;
+
+  private static final byte[] KEY  = new byte[32];
+  private static final byte[] DATA = "the quick brown fox jumps over the lazy dog".getBytes();
+
+  public void testHmacThroughput() throws Exception {
+    runFreshInstances(ITERATIONS);
+    runCryptoPrimitives(ITERATIONS);
+
+    long fresh  = runFreshInstances(ITERATIONS);
+    long pooled = runCryptoPrimitives(ITERATIONS);
+
+    System.out.println(String.format("HmacSHA256 chain step: Mac.getInstance: %d ops/s, CryptoPrimitives: %d ops/s (%.2fx)",
+                                     fresh, pooled, (double)pooled / (double)fresh));
+  }
+
+  private long runFreshInstances(int iterations) throws Exception {
+    byte[] key   = KEY;
+    long   start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      key = mac.doFinal(DATA);
+    }
+
+    return (iterations * 1000000000L) / Math.max(System.nanoTime() - start, 1);
+  }
+
+  private long runCryptoPrimitives(int iterations) {
+    byte[] key   = KEY;
+    long   start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      key = CryptoPrimitives.getHmacSha256(key).doFinal(DATA);
+    }
+
+    return (iterations * 1000000000L) / Math.max(System.nanoTime() - start, 1);
+  }
+}
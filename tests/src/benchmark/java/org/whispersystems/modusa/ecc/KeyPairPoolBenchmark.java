@@ -0,0 +1,46 @@
+package org.whispersystems.modusa.ecc;
+
+import junit.framework.TestCase;
+
+public class KeyPairPoolBenchmark extends TestCase {
+
+  private static final int ITERATIONS = 2000;
+
+  public void testPooledThroughput() throws Exception {
+    long start = System.nanoTime();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      Curve.generateKeyPair();
+    }
+
+    long inline = System.nanoTime() - start;
+
+    KeyPairPool pool = new KeyPairPool(ITERATIONS);
+
+    try {
+      awaitFull(pool, ITERATIONS);
+
+      start = System.nanoTime();
+
+      for (int i=0;i<ITERATIONS;i++) {
+        pool.take();
+      }
+
+      long pooled = System.nanoTime() - start;
+
+      System.out.println(String.format("Key pair on the critical path: inline: %d ns, pooled: %d ns",
+                                       inline / ITERATIONS, pooled / ITERATIONS));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void awaitFull(KeyPairPool pool, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+
+    while (pool.size() < size) {
+      if (System.currentTimeMillis() > deadline) throw new AssertionError("Pool never filled");
+      Thread.sleep(5);
+    }
+  }
+}
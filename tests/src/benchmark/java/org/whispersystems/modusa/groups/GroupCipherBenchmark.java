@@ -0,0 +1,112 @@
+package org.whispersystems.modusa.groups;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.SignalProtocolAddress;
+import org.whispersystems.modusa.protocol.SenderKeyDistributionMessage;
+import org.whispersystems.modusa.protocol.SenderKeyMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GroupCipherBenchmark extends TestCase {
+
+  private static final SignalProtocolAddress SENDER_ADDRESS = new SignalProtocolAddress("+14150001111", 1);
+  private static final SenderKeyName  GROUP_SENDER   = new SenderKeyName("nihilist history reading group", SENDER_ADDRESS);
+
+  public void testBatchDecryptThroughput() throws Exception {
+    int count = 200;
+
+    List<SenderKeyMessage> messages = new ArrayList<>();
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    GroupCipher            aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    byte[]                 distribution     = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER).serialize();
+
+    for (int i=0;i<count;i++) {
+      messages.add(new SenderKeyMessage(aliceGroupCipher.encrypt(new byte[256])));
+    }
+
+    InMemorySenderKeyStore serialStore = new InMemorySenderKeyStore();
+    new GroupSessionBuilder(serialStore).process(GROUP_SENDER, new SenderKeyDistributionMessage(distribution));
+    GroupCipher serialCipher = new GroupCipher(serialStore, GROUP_SENDER);
+
+    long start = System.nanoTime();
+
+    for (SenderKeyMessage message : messages) {
+      serialCipher.decrypt(message.serialize());
+    }
+
+    long serial = System.nanoTime() - start;
+
+    InMemorySenderKeyStore batchStore = new InMemorySenderKeyStore();
+    new GroupSessionBuilder(batchStore).process(GROUP_SENDER, new SenderKeyDistributionMessage(distribution));
+
+    start = System.nanoTime();
+    new GroupCipher(batchStore, GROUP_SENDER).decrypt(messages);
+    long batch = System.nanoTime() - start;
+
+    System.out.println(String.format("%d group messages on %d cores: serial: %d ms, batch: %d ms",
+                                     count, Runtime.getRuntime().availableProcessors(),
+                                     serial / 1000000, batch / 1000000));
+  }
+
+  public void testConcurrentGroupsThroughput() throws Exception {
+    int groupCount = 64;
+    int perGroup   = 20;
+
+    runGroups(groupCount, perGroup, 4);
+
+    long serial     = runGroups(groupCount, perGroup, 1);
+    long concurrent = runGroups(groupCount, perGroup, 4);
+
+    System.out.println(String.format("%d groups on %d cores: 1 thread: %d ms, 4 threads: %d ms",
+                                     groupCount, Runtime.getRuntime().availableProcessors(),
+                                     serial / 1000000, concurrent / 1000000));
+  }
+
+  private long runGroups(int groupCount, final int perGroup, int threadCount) throws Exception {
+    final InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    final InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+    final SenderKeyName[]        groups     = new SenderKeyName[groupCount];
+
+    for (int i=0;i<groupCount;i++) {
+      groups[i] = new SenderKeyName("group " + i, SENDER_ADDRESS);
+      new GroupSessionBuilder(bobStore).process(groups[i], new GroupSessionBuilder(aliceStore).create(groups[i]));
+    }
+
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final Thread[]                   threads = new Thread[threadCount];
+    long                             start   = System.nanoTime();
+
+    for (int i=0;i<threads.length;i++) {
+      final int offset = i;
+
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j=offset;j<groups.length;j+=threads.length) {
+              GroupCipher sender    = new GroupCipher(aliceStore, groups[j]);
+              GroupCipher recipient = new GroupCipher(bobStore, groups[j]);
+
+              for (int k=0;k<perGroup;k++) {
+                recipient.decrypt(sender.encrypt(new byte[256]));
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,69 @@
+package org.whispersystems.modusa.protocol;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.util.ByteUtil;
+
+import java.lang.management.ManagementFactory;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class WireCodecBenchmark extends TestCase {
+
+  private static final int ITERATIONS = 100000;
+
+  public void testParseAllocation() throws Exception {
+    byte[] serialized = new SignalMessage(3, new SecretKeySpec(new byte[32], "HmacSHA256"),
+                                          Curve.generateKeyPair().getPublicKey(), 1000, 999, new byte[1024],
+                                          new IdentityKey(Curve.generateKeyPair().getPublicKey()),
+                                          new IdentityKey(Curve.generateKeyPair().getPublicKey())).serialize();
+
+    runProtobufParse(serialized, ITERATIONS);
+    runCodecParse(serialized, ITERATIONS);
+
+    long protobufAllocated = allocatedBytes();
+    long protobufRate      = runProtobufParse(serialized, ITERATIONS);
+    long codecAllocated    = allocatedBytes();
+    long codecRate         = runCodecParse(serialized, ITERATIONS);
+    long done              = allocatedBytes();
+
+    System.out.println(String.format("SignalMessage parse (1KB body): protobuf: %d ops/s, %d bytes/op; codec: %d ops/s, %d bytes/op",
+                                     protobufRate, (codecAllocated - protobufAllocated) / ITERATIONS,
+                                     codecRate, (done - codecAllocated) / ITERATIONS));
+  }
+
+  private long runProtobufParse(byte[] serialized, int iterations) throws Exception {
+    long start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      byte[][] parts = ByteUtil.split(serialized, 1, serialized.length - 9, 8);
+      SignalProtos.SignalMessage message = SignalProtos.SignalMessage.parseFrom(parts[1]);
+      Curve.decodePoint(message.getRatchetKey().toByteArray(), 0);
+      message.getCiphertext().toByteArray();
+    }
+
+    return (iterations * 1000000000L) / Math.max(System.nanoTime() - start, 1);
+  }
+
+  private long runCodecParse(byte[] serialized, int iterations) throws Exception {
+    long start = System.nanoTime();
+
+    for (int i=0;i<iterations;i++) {
+      new SignalMessage(serialized).getBodyLength();
+    }
+
+    return (iterations * 1000000000L) / Math.max(System.nanoTime() - start, 1);
+  }
+
+  private long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    return 0;
+  }
+}
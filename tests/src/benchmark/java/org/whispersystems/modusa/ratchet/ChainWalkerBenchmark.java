@@ -0,0 +1,42 @@
+package org.whispersystems.modusa.ratchet;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.kdf.HKDF;
+
+public class ChainWalkerBenchmark extends TestCase {
+
+  public void testGapThroughput() {
+    HKDF   kdf   = HKDF.createFor(3);
+    byte[] key   = new byte[32];
+    int    steps = 2000;
+    int    runs  = 50;
+
+    for (int warmup=0;warmup<3;warmup++) {
+      long start = System.nanoTime();
+
+      for (int run=0;run<runs;run++) {
+        ChainKey chainKey = new ChainKey(kdf, key, 0);
+
+        for (int i=0;i<steps;i++) {
+          chainKey = chainKey.getNextChainKey();
+        }
+      }
+
+      long stepped = System.nanoTime() - start;
+
+      start = System.nanoTime();
+
+      for (int run=0;run<runs;run++) {
+        new ChainWalker(key, 0).advance(steps);
+      }
+
+      long walked = System.nanoTime() - start;
+
+      if (warmup == 2) {
+        System.out.println(String.format("%d step gap: ChainKey: %d us, ChainWalker: %d us",
+                                         steps, stepped / runs / 1000, walked / runs / 1000));
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.whispersystems.modusa.util;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.state.PreKeyRecord;
+
+public class PreKeyGeneratorBenchmark extends TestCase {
+
+  public void testThroughput() throws Exception {
+    int count = 1000;
+
+    KeyHelper.generatePreKeys(1, count);
+
+    long start = System.nanoTime();
+
+    for (int i=0;i<count;i++) {
+      new PreKeyRecord(i + 1, Curve.generateKeyPair());
+    }
+
+    long serial = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    KeyHelper.generatePreKeys(1, count);
+    long parallel = System.nanoTime() - start;
+
+    System.out.println(String.format("%d PreKeys on %d cores: serial: %d ms, parallel: %d ms",
+                                     count, Runtime.getRuntime().availableProcessors(),
+                                     serial / 1000000, parallel / 1000000));
+  }
+}
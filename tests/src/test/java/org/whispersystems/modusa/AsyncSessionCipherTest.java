@@ -0,0 +1,195 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.PreKeySignalMessage;
+import org.whispersystems.modusa.state.SessionRecord;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncSessionCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  public void testSameAddressStaysOrdered() throws Exception {
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+    ExecutorService     executor   = Executors.newFixedThreadPool(4);
+    AsyncSessionCipher  cipher     = new AsyncSessionCipher(aliceStore, executor);
+
+    cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(bobStore, 1)).get();
+
+    List<Future<CiphertextMessage>> pending = new ArrayList<>();
+
+    for (int i=0;i<100;i++) {
+      pending.add(cipher.encrypt(BOB_ADDRESS, ("ordered " + i).getBytes()));
+    }
+
+    SessionCipher bobCipher = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    for (int i=0;i<pending.size();i++) {
+      PreKeySignalMessage message = new PreKeySignalMessage(pending.get(i).get().serialize());
+
+      assertEquals(i, message.getWhisperMessage().getCounter());
+      assertTrue(Arrays.equals(("ordered " + i).getBytes(), bobCipher.decrypt(message)));
+    }
+
+    executor.shutdown();
+  }
+
+  public void testDifferentAddressesRunConcurrently() throws Exception {
+    final SignalProtocolAddress blocked = new SignalProtocolAddress("+14153333333", 1);
+    final CountDownLatch        latch   = new CountDownLatch(1);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore() {
+      @Override
+      public SessionRecord loadSession(SignalProtocolAddress address) {
+        if (address.equals(blocked)) {
+          try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+
+        return super.loadSession(address);
+      }
+    };
+
+    ExecutorService    executor = Executors.newFixedThreadPool(2);
+    AsyncSessionCipher cipher   = new AsyncSessionCipher(aliceStore, executor);
+
+    Future<Void> blockedBuild = cipher.process(blocked, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1));
+    Future<Void> bobBuild     = cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1));
+
+    bobBuild.get(10, TimeUnit.SECONDS);
+    assertFalse(blockedBuild.isDone());
+
+    latch.countDown();
+    blockedBuild.get(10, TimeUnit.SECONDS);
+
+    executor.shutdown();
+  }
+
+  public void testFailureIsReported() throws Exception {
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    AsyncSessionCipher  cipher     = new AsyncSessionCipher(aliceStore);
+
+    cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1)).get();
+    aliceStore.saveIdentity(BOB_ADDRESS, new IdentityKey(Curve.generateKeyPair().getPublicKey()));
+
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final CountDownLatch             latch   = new CountDownLatch(1);
+
+    Future<CiphertextMessage> result = cipher.encrypt(BOB_ADDRESS, "untrusted".getBytes(), new AsyncCallback<CiphertextMessage>() {
+      @Override
+      public void onSuccess(CiphertextMessage result) {
+        latch.countDown();
+      }
+
+      @Override
+      public void onFailure(Exception exception) {
+        failure.set(exception);
+        latch.countDown();
+      }
+    });
+
+    try {
+      result.get();
+      throw new AssertionError("Encrypt to untrusted identity succeeded!");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UntrustedIdentityException);
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertTrue(failure.get() instanceof UntrustedIdentityException);
+  }
+
+  public void testRejectedOperationsFail() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore() {
+      @Override
+      public SessionRecord loadSession(SignalProtocolAddress address) {
+        try {
+          assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        return super.loadSession(address);
+      }
+    };
+
+    ExecutorService    executor = Executors.newSingleThreadExecutor();
+    AsyncSessionCipher cipher   = new AsyncSessionCipher(aliceStore, executor);
+
+    Future<Void>              build  = cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1));
+    Future<CiphertextMessage> queued = cipher.encrypt(BOB_ADDRESS, "queued".getBytes());
+
+    executor.shutdown();
+    latch.countDown();
+
+    build.get(10, TimeUnit.SECONDS);
+
+    try {
+      queued.get(10, TimeUnit.SECONDS);
+      throw new AssertionError("Rejected operation completed!");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  public void testShutdown() throws Exception {
+    AsyncSessionCipher cipher = new AsyncSessionCipher(new TestInMemorySignalProtocolStore());
+    cipher.shutdown();
+
+    try {
+      cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1));
+      throw new AssertionError("Operation accepted after shutdown!");
+    } catch (RejectedExecutionException e) {
+      // good
+    }
+  }
+
+  public void testShutdownFinishesQueued() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore() {
+      @Override
+      public SessionRecord loadSession(SignalProtocolAddress address) {
+        try {
+          assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        return super.loadSession(address);
+      }
+    };
+
+    AsyncSessionCipher        cipher = new AsyncSessionCipher(aliceStore);
+    Future<Void>              build  = cipher.process(BOB_ADDRESS, SessionTestUtil.createPreKeyBundle(new TestInMemorySignalProtocolStore(), 1));
+    Future<CiphertextMessage> queued = cipher.encrypt(BOB_ADDRESS, "queued".getBytes());
+
+    cipher.shutdown();
+    latch.countDown();
+
+    build.get(10, TimeUnit.SECONDS);
+    assertEquals(CiphertextMessage.PREKEY_TYPE, queued.get(10, TimeUnit.SECONDS).getType());
+  }
+}
@@ -0,0 +1,98 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultiDeviceSessionCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final String                BOB_NAME      = "+14152222222";
+
+  public void testFanOut() throws Exception {
+    SignalProtocolStore                             aliceStore = new TestInMemorySignalProtocolStore();
+    Map<SignalProtocolAddress, SignalProtocolStore> bobStores = new HashMap<>();
+
+    for (int deviceId=1;deviceId<=5;deviceId++) {
+      SignalProtocolAddress address  = new SignalProtocolAddress(BOB_NAME, deviceId);
+      SignalProtocolStore   bobStore = new TestInMemorySignalProtocolStore();
+
+      SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, bobStore, address);
+      bobStores.put(address, bobStore);
+    }
+
+    SignalProtocolAddress untrusted = new SignalProtocolAddress(BOB_NAME, 3);
+    aliceStore.saveIdentity(untrusted, new IdentityKey(Curve.generateKeyPair().getPublicKey()));
+
+    ExecutorService             executor = Executors.newFixedThreadPool(4);
+    MultiDeviceSessionCipher    cipher   = new MultiDeviceSessionCipher(aliceStore, executor);
+    MultiDeviceEncryptionResult result   = cipher.encrypt(BOB_NAME, "to every device".getBytes());
+
+    executor.shutdown();
+
+    assertEquals(4, result.getCiphertexts().size());
+    assertEquals(1, result.getFailures().size());
+    assertTrue(result.getFailures().get(untrusted) instanceof UntrustedIdentityException);
+
+    for (Map.Entry<SignalProtocolAddress, CiphertextMessage> entry : result.getCiphertexts().entrySet()) {
+      SessionCipher bobCipher = new SessionCipher(bobStores.get(entry.getKey()), ALICE_ADDRESS);
+      byte[]        plaintext = bobCipher.decrypt(new SignalMessage(entry.getValue().serialize()));
+
+      assertTrue(Arrays.equals("to every device".getBytes(), plaintext));
+    }
+  }
+
+  public void testMissingSession() throws Exception {
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress known      = new SignalProtocolAddress(BOB_NAME, 1);
+    SignalProtocolAddress unknown    = new SignalProtocolAddress(BOB_NAME, 2);
+
+    SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, new TestInMemorySignalProtocolStore(), known);
+
+    ExecutorService             executor = Executors.newSingleThreadExecutor();
+    MultiDeviceEncryptionResult result   = new MultiDeviceSessionCipher(aliceStore, executor)
+                                               .encrypt(Arrays.asList(known, unknown), "hello".getBytes());
+
+    executor.shutdown();
+
+    assertTrue(result.getCiphertexts().containsKey(known));
+    assertTrue(result.getFailures().get(unknown) instanceof NoSessionException);
+  }
+
+  public void testRejectedEncryptionsRunInline() throws Exception {
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+
+    for (int deviceId=1;deviceId<=3;deviceId++) {
+      SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, new TestInMemorySignalProtocolStore(), new SignalProtocolAddress(BOB_NAME, deviceId));
+    }
+
+    final AtomicInteger submitted = new AtomicInteger();
+
+    Executor acceptsOne = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (submitted.getAndIncrement() > 0) throw new RejectedExecutionException();
+        new Thread(command).start();
+      }
+    };
+
+    MultiDeviceEncryptionResult result = new MultiDeviceSessionCipher(aliceStore, acceptsOne)
+                                             .encrypt(BOB_NAME, "hello".getBytes());
+
+    assertEquals(3, submitted.get());
+    assertEquals(3, result.getCiphertexts().size());
+    assertFalse(result.hasFailures());
+  }
+}
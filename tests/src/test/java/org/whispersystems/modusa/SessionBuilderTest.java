@@ -12,6 +12,7 @@ import org.whispersystems.modusa.state.PreKeyBundle;
 import org.whispersystems.modusa.state.PreKeyRecord;
 import org.whispersystems.modusa.state.SignalProtocolStore;
 import org.whispersystems.modusa.state.SignedPreKeyRecord;
+import org.whispersystems.modusa.state.impl.InMemorySignedPreKeyVerificationCache;
 import org.whispersystems.modusa.util.Pair;
 
 import java.security.NoSuchAlgorithmException;
@@ -178,6 +179,48 @@ public class SessionBuilderTest extends TestCase {
     aliceSessionBuilder.process(bobPreKey);
   }
 
+  public void testSignedPreKeyVerificationCache() throws Exception {
+    SignalProtocolStore                   aliceStore = new TestInMemorySignalProtocolStore();
+    IdentityKeyStore                      bobStore   = new TestInMemoryIdentityKeyStore();
+    InMemorySignedPreKeyVerificationCache cache      = new InMemorySignedPreKeyVerificationCache(2);
+
+    SessionBuilder aliceSessionBuilder = new SessionBuilder(aliceStore, aliceStore, aliceStore, aliceStore,
+                                                            BOB_ADDRESS, cache);
+
+    ECKeyPair bobSignedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                  bobSignedPreKeyPair.getPublicKey().serialize());
+
+    PreKeyBundle bobPreKey = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                              31337, Curve.generateKeyPair().getPublicKey(),
+                                              22, bobSignedPreKeyPair.getPublicKey(), bobSignedPreKeySignature,
+                                              bobStore.getIdentityKeyPair().getPublicKey());
+
+    aliceSessionBuilder.process(bobPreKey);
+
+    assertEquals(1, cache.size());
+    assertTrue(cache.isVerified(bobStore.getIdentityKeyPair().getPublicKey(), bobSignedPreKeyPair.getPublicKey(),
+                                bobSignedPreKeySignature));
+
+    aliceSessionBuilder.process(bobPreKey);
+    assertEquals(1, cache.size());
+
+    byte[] modifiedSignature = bobSignedPreKeySignature.clone();
+    modifiedSignature[0] ^= 0x01;
+
+    try {
+      aliceSessionBuilder.process(new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                   31337, Curve.generateKeyPair().getPublicKey(),
+                                                   22, bobSignedPreKeyPair.getPublicKey(), modifiedSignature,
+                                                   bobStore.getIdentityKeyPair().getPublicKey()));
+      throw new AssertionError("Accepted modified device key signature!");
+    } catch (InvalidKeyException ike) {
+      // good
+    }
+
+    assertEquals(1, cache.size());
+  }
+
   public void testRepeatBundleMessageV2() throws InvalidKeyException, UntrustedIdentityException, InvalidVersionException, InvalidMessageException, InvalidKeyIdException, DuplicateMessageException, LegacyMessageException, NoSessionException, NoSuchAlgorithmException {
     SignalProtocolStore aliceStore          = new TestInMemorySignalProtocolStore();
     SessionBuilder aliceSessionBuilder = new SessionBuilder(aliceStore, BOB_ADDRESS);
@@ -314,6 +357,49 @@ public class SessionBuilderTest extends TestCase {
     assertTrue(!bobStore.containsPreKey(31337));
   }
 
+  public void testBasicPreKeyV4() throws Exception {
+    SignalProtocolStore aliceStore          = new TestInMemorySignalProtocolStore();
+    SessionBuilder      aliceSessionBuilder = new SessionBuilder(aliceStore, BOB_ADDRESS);
+    SignalProtocolStore bobStore            = new TestInMemorySignalProtocolStore();
+
+    ECKeyPair bobPreKeyPair            = Curve.generateKeyPair();
+    ECKeyPair bobSignedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                  bobSignedPreKeyPair.getPublicKey().serialize());
+
+    PreKeyBundle bobPreKey = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                              31337, bobPreKeyPair.getPublicKey(),
+                                              22, bobSignedPreKeyPair.getPublicKey(),
+                                              bobSignedPreKeySignature,
+                                              bobStore.getIdentityKeyPair().getPublicKey(), 4);
+
+    bobStore.storePreKey(31337, new PreKeyRecord(bobPreKey.getPreKeyId(), bobPreKeyPair));
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKeyPair, bobSignedPreKeySignature));
+
+    aliceSessionBuilder.process(bobPreKey);
+    assertEquals(4, aliceStore.loadSession(BOB_ADDRESS).getSessionState().getSessionVersion());
+
+    String              originalMessage    = "L'homme est condamné à être libre";
+    SessionCipher       aliceSessionCipher = new SessionCipher(aliceStore, BOB_ADDRESS);
+    PreKeySignalMessage incomingMessage    = new PreKeySignalMessage(aliceSessionCipher.encrypt(originalMessage.getBytes()).serialize());
+
+    assertEquals(4, incomingMessage.getMessageVersion());
+
+    SessionCipher bobSessionCipher = new SessionCipher(bobStore, ALICE_ADDRESS);
+    byte[]        plaintext        = bobSessionCipher.decrypt(incomingMessage);
+
+    assertEquals(originalMessage, new String(plaintext));
+    assertEquals(4, bobStore.loadSession(ALICE_ADDRESS).getSessionState().getSessionVersion());
+
+    CiphertextMessage bobOutgoingMessage = bobSessionCipher.encrypt(originalMessage.getBytes());
+    assertEquals(CiphertextMessage.WHISPER_TYPE, bobOutgoingMessage.getType());
+
+    byte[] alicePlaintext = aliceSessionCipher.decrypt(new SignalMessage(bobOutgoingMessage.serialize()));
+    assertEquals(originalMessage, new String(alicePlaintext));
+
+    runInteraction(aliceStore, bobStore);
+  }
+
   public void testOptionalOneTimePreKey() throws Exception {
     SignalProtocolStore aliceStore          = new TestInMemorySignalProtocolStore();
     SessionBuilder aliceSessionBuilder = new SessionBuilder(aliceStore, BOB_ADDRESS);
@@ -0,0 +1,76 @@
+package org.whispersystems.modusa;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SessionCipherContentionTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14159998888", 1);
+
+  public void testSingleSessionStaysSerialized() throws Exception {
+    final SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    final SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+    final SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14152222222", 1);
+
+    SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, bobStore, bobAddress);
+
+    final int             threads  = 8;
+    final int             messages = 50;
+    ExecutorService       executor = Executors.newFixedThreadPool(threads);
+    List<Future<List<CiphertextMessage>>> results = new LinkedList<>();
+
+    for (int i=0;i<threads;i++) {
+      results.add(executor.submit(new Callable<List<CiphertextMessage>>() {
+        @Override
+        public List<CiphertextMessage> call() throws Exception {
+          SessionCipher           cipher      = new SessionCipher(aliceStore, bobAddress);
+          List<CiphertextMessage> ciphertexts = new LinkedList<>();
+
+          for (int j=0;j<messages;j++) {
+            ciphertexts.add(cipher.encrypt("concurrent".getBytes()));
+          }
+
+          return ciphertexts;
+        }
+      }));
+    }
+
+    List<SignalMessage> sent     = new ArrayList<>();
+    Set<Integer>        counters = new HashSet<>();
+
+    for (Future<List<CiphertextMessage>> result : results) {
+      for (CiphertextMessage ciphertext : result.get()) {
+        SignalMessage message = new SignalMessage(ciphertext.serialize());
+        assertTrue(counters.add(message.getCounter()));
+        sent.add(message);
+      }
+    }
+
+    executor.shutdown();
+
+    assertEquals(threads * messages, counters.size());
+
+    Collections.shuffle(sent);
+
+    SessionCipher bobCipher = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    for (SignalMessage message : sent) {
+      assertTrue(Arrays.equals("concurrent".getBytes(), bobCipher.decrypt(message)));
+    }
+  }
+}
@@ -6,6 +6,7 @@ import org.whispersystems.modusa.ecc.Curve;
 import org.whispersystems.modusa.ecc.ECKeyPair;
 import org.whispersystems.modusa.ecc.ECPublicKey;
 import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.PreKeySignalMessage;
 import org.whispersystems.modusa.protocol.SignalMessage;
 import org.whispersystems.modusa.ratchet.AliceSignalProtocolParameters;
 import org.whispersystems.modusa.ratchet.BobSignalProtocolParameters;
@@ -13,8 +14,14 @@ import org.whispersystems.modusa.ratchet.RatchetingSession;
 import org.whispersystems.modusa.state.SignalProtocolStore;
 import org.whispersystems.modusa.state.SessionRecord;
 import org.whispersystems.modusa.state.SessionState;
+import org.whispersystems.modusa.state.StorageProtos.RecordStructure;
+import org.whispersystems.modusa.state.StorageProtos.SessionStructure.Chain;
 import org.whispersystems.modusa.util.guava.Optional;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,6 +44,84 @@ public class SessionCipherTest extends TestCase {
     runInteraction(aliceSessionRecord, bobSessionRecord);
   }
 
+  public void testBasicSessionV4() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), 4);
+    runInteraction(aliceSessionRecord, bobSessionRecord);
+  }
+
+  public void testAeadHeaderAuthentication() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), 4);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    byte[]        plaintext = "so it goes".getBytes();
+    SignalMessage message   = new SignalMessage(aliceCipher.encrypt(plaintext).serialize());
+    SignalMessage tampered  = new SignalMessage(4, message.getSenderRatchetKey(), message.getCounter(),
+                                                5, message.getBody());
+
+    assertEquals(4, message.getMessageVersion());
+    assertEquals(plaintext.length + 16, message.getBodyLength());
+
+    try {
+      bobCipher.decrypt(tampered);
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals(plaintext, bobCipher.decrypt(message)));
+  }
+
+  public void testUntrustedIdentityRetryV4() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), 4);
+
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14159999999", 1);
+    IdentityKey           bobIdentity  = bobSessionRecord.getSessionState().getLocalIdentityKey();
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+    aliceStore.saveIdentity(bobAddress, new IdentityKey(Curve.generateKeyPair().getPublicKey()));
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+    byte[]        plaintext   = "retried".getBytes();
+
+    for (int i=0;i<2;i++) {
+      try {
+        aliceCipher.encrypt(plaintext);
+        throw new AssertionError("Should have failed!");
+      } catch (UntrustedIdentityException e) {
+        // good
+      }
+    }
+
+    aliceStore.saveIdentity(bobAddress, bobIdentity);
+
+    CiphertextMessage message = aliceCipher.encrypt(plaintext);
+
+    assertEquals(0, ((SignalMessage)message).getCounter());
+    assertTrue(Arrays.equals(plaintext, bobCipher.decrypt(new SignalMessage(message.serialize()))));
+  }
+
   public void testMessageKeyLimits() throws Exception {
     SessionRecord aliceSessionRecord = new SessionRecord();
     SessionRecord bobSessionRecord   = new SessionRecord();
@@ -69,6 +154,620 @@ public class SessionCipherTest extends TestCase {
     }
   }
 
+  public void testBatchEncrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final int[]         storeCount   = new int[1];
+    SignalProtocolStore aliceStore   = new TestInMemorySignalProtocolStore() {
+      @Override
+      public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        storeCount[0]++;
+        super.storeSession(address, record);
+      }
+    };
+    SignalProtocolStore bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14159999999", 1);
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    List<byte[]> plaintexts = new ArrayList<>();
+
+    for (int i=0;i<25;i++) {
+      plaintexts.add(("burst message " + i).getBytes());
+    }
+
+    storeCount[0] = 0;
+
+    List<CiphertextMessage> ciphertexts = aliceCipher.encrypt(plaintexts);
+
+    assertEquals(1, storeCount[0]);
+    assertEquals(plaintexts.size(), ciphertexts.size());
+
+    for (int i=ciphertexts.size()-1;i>=0;i--) {
+      SignalMessage message = new SignalMessage(ciphertexts.get(i).serialize());
+
+      assertEquals(i, message.getCounter());
+      assertTrue(Arrays.equals(plaintexts.get(i), bobCipher.decrypt(message)));
+    }
+
+    CiphertextMessage next = aliceCipher.encrypt("after the burst".getBytes());
+    assertEquals(plaintexts.size(), new SignalMessage(next.serialize()).getCounter());
+    assertTrue(Arrays.equals("after the burst".getBytes(), bobCipher.decrypt(new SignalMessage(next.serialize()))));
+  }
+
+  public void testBatchDecrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final int[]           storeCount   = new int[1];
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore() {
+      @Override
+      public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        storeCount[0]++;
+        super.storeSession(address, record);
+      }
+    };
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14159999999", 1);
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    List<SignalMessage> ciphertexts = new ArrayList<>();
+
+    for (int i=0;i<20;i++) {
+      ciphertexts.add(new SignalMessage(aliceCipher.encrypt(("queued message " + i).getBytes()).serialize()));
+    }
+
+    SignalMessage held = new SignalMessage(aliceCipher.encrypt("held back".getBytes()).serialize());
+
+    byte[] corrupt = ciphertexts.get(5).serialize().clone();
+    corrupt[corrupt.length - 10] ^= 0x01;
+
+    List<SignalMessage> batch = new ArrayList<>(ciphertexts);
+    batch.set(5, new SignalMessage(corrupt));
+    batch.add(ciphertexts.get(3));
+
+    final List<DecryptionResult> delivered = new ArrayList<>();
+    storeCount[0] = 0;
+
+    List<DecryptionResult> results = bobCipher.decrypt(batch, new BatchDecryptionCallback() {
+      @Override
+      public void handlePlaintexts(List<DecryptionResult> results) {
+        assertEquals(0, storeCount[0]);
+        delivered.addAll(results);
+      }
+    });
+
+    assertEquals(1, storeCount[0]);
+    assertEquals(batch.size(), results.size());
+    assertEquals(results, delivered);
+
+    for (int i=0;i<ciphertexts.size();i++) {
+      if (i == 5) {
+        assertFalse(results.get(i).isSuccess());
+        assertTrue(results.get(i).getException() instanceof InvalidMessageException);
+      } else {
+        assertTrue(results.get(i).isSuccess());
+        assertTrue(Arrays.equals(("queued message " + i).getBytes(), results.get(i).getPlaintext()));
+      }
+    }
+
+    assertTrue(results.get(batch.size() - 1).getException() instanceof DuplicateMessageException);
+
+    assertTrue(Arrays.equals(("queued message 5").getBytes(), bobCipher.decrypt(ciphertexts.get(5))));
+    assertTrue(Arrays.equals("held back".getBytes(), bobCipher.decrypt(held)));
+
+    try {
+      bobCipher.decrypt(ciphertexts.get(10));
+      throw new AssertionError("Batch decrypt wasn't committed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testStreamEncrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    byte[] payload = new byte[3 * 1024 * 1024 + 5];
+    new Random().nextBytes(payload);
+
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    CiphertextMessage     header     = aliceCipher.encrypt(new ByteArrayInputStream(payload), ciphertext);
+
+    assertEquals(payload.length + (16 - payload.length % 16) + 32, ciphertext.size());
+
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    bobCipher.decrypt(new SignalMessage(header.serialize()), new ByteArrayInputStream(ciphertext.toByteArray()), plaintext);
+
+    assertTrue(Arrays.equals(payload, plaintext.toByteArray()));
+
+    ciphertext = new ByteArrayOutputStream();
+    header     = aliceCipher.encrypt(new ByteArrayInputStream(payload), ciphertext);
+
+    byte[] tampered = ciphertext.toByteArray();
+    tampered[payload.length / 2] ^= 0x01;
+
+    try {
+      bobCipher.decrypt(new SignalMessage(header.serialize()), new ByteArrayInputStream(tampered), new ByteArrayOutputStream());
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    try {
+      bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("short".getBytes()).serialize()),
+                        new ByteArrayInputStream(ciphertext.toByteArray()), new ByteArrayOutputStream());
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  public void testByteBufferEncrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(SessionCipher.getMaxCiphertextSize(1000));
+    ByteBuffer plaintext  = ByteBuffer.allocateDirect(1008);
+
+    for (int length : new int[] {0, 15, 16, 17, 1000}) {
+      byte[] message = new byte[length];
+      new Random().nextBytes(message);
+
+      ciphertext.clear();
+      int type = aliceCipher.encrypt(ByteBuffer.wrap(message), ciphertext);
+      ciphertext.flip();
+
+      assertEquals(CiphertextMessage.WHISPER_TYPE, type);
+      assertTrue(ciphertext.remaining() <= SessionCipher.getMaxCiphertextSize(length));
+
+      SignalMessage received = new SignalMessage(ciphertext);
+      assertFalse(ciphertext.hasRemaining());
+      assertTrue(SessionCipher.getMaxPlaintextSize(received) <= plaintext.capacity());
+
+      plaintext.clear();
+      assertEquals(length, bobCipher.decrypt(received, plaintext));
+      plaintext.flip();
+
+      byte[] decrypted = new byte[plaintext.remaining()];
+      plaintext.get(decrypted);
+
+      assertTrue(Arrays.equals(message, decrypted));
+    }
+
+    ByteBuffer tooSmall = ByteBuffer.allocate(SessionCipher.getMaxCiphertextSize(100) - 1);
+
+    try {
+      aliceCipher.encrypt(ByteBuffer.wrap(new byte[100]), tooSmall);
+      throw new AssertionError("Should have failed!");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, tooSmall.position());
+    }
+
+    byte[]        message  = "after overflow".getBytes();
+    SignalMessage received = new SignalMessage(aliceCipher.encrypt(message).serialize());
+
+    try {
+      bobCipher.decrypt(received, ByteBuffer.allocate(message.length - 1));
+      throw new AssertionError("Should have failed!");
+    } catch (BufferOverflowException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals(message, bobCipher.decrypt(received)));
+  }
+
+  public void testByteBufferEncryptMatchesSerialized() throws Exception {
+    for (int version : new int[] {3, 4}) {
+      for (boolean preKey : new boolean[] {false, true}) {
+        SessionRecord aliceSessionRecord = new SessionRecord();
+        SessionRecord bobSessionRecord   = new SessionRecord();
+
+        initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), version);
+
+        if (preKey) {
+          aliceSessionRecord.getSessionState().setUnacknowledgedPreKeyMessage(Optional.of(7), 9, Curve.generateKeyPair().getPublicKey());
+        }
+
+        SignalProtocolStore   serializedStore = new TestInMemorySignalProtocolStore();
+        SignalProtocolStore   bufferStore     = new TestInMemorySignalProtocolStore();
+        SignalProtocolStore   bobStore        = new TestInMemorySignalProtocolStore();
+        SignalProtocolAddress bobAddress      = new SignalProtocolAddress("+14159999999", 1);
+        SignalProtocolAddress aliceAddress    = new SignalProtocolAddress("+14158888888", 1);
+
+        serializedStore.storeSession(bobAddress, new SessionRecord(aliceSessionRecord.serialize()));
+        bufferStore.storeSession(bobAddress, new SessionRecord(aliceSessionRecord.serialize()));
+        bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+        byte[] message = new byte[100];
+        new Random().nextBytes(message);
+
+        ByteBuffer buffer = ByteBuffer.allocate(SessionCipher.getMaxCiphertextSize(message.length) + 5);
+
+        buffer.position(5);
+        int    type       = new SessionCipher(bufferStore, bobAddress).encrypt(ByteBuffer.wrap(message), buffer);
+        byte[] serialized = Arrays.copyOfRange(buffer.array(), 5, buffer.position());
+
+        assertEquals(preKey ? CiphertextMessage.PREKEY_TYPE : CiphertextMessage.WHISPER_TYPE, type);
+
+        // AES-GCM refuses to encrypt twice under one message key, so only CBC sessions
+        // can be compared byte for byte with the array path.
+        if (version == 3) {
+          CiphertextMessage expected = new SessionCipher(serializedStore, bobAddress).encrypt(message);
+
+          assertEquals(expected.getType(), type);
+          assertTrue(Arrays.equals(expected.serialize(), serialized));
+        }
+
+        SignalMessage received;
+
+        if (preKey) {
+          received = new PreKeySignalMessage(serialized).getWhisperMessage();
+        } else {
+          buffer.flip();
+          buffer.position(5);
+
+          received = new SignalMessage(buffer);
+          assertSame(buffer.array(), received.getBodyBuffer());
+        }
+
+        assertTrue(Arrays.equals(message, new SessionCipher(bobStore, aliceAddress).decrypt(received)));
+      }
+    }
+  }
+
+  public void testAeadMessageKeyReuse() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessions(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState(), 4);
+
+    SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   firstStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   rolledBack = new TestInMemorySignalProtocolStore();
+
+    firstStore.storeSession(bobAddress, new SessionRecord(aliceSessionRecord.serialize()));
+    rolledBack.storeSession(bobAddress, new SessionRecord(aliceSessionRecord.serialize()));
+
+    new SessionCipher(firstStore, bobAddress).encrypt("first".getBytes());
+
+    try {
+      new SessionCipher(rolledBack, bobAddress).encrypt("second".getBytes());
+      throw new AssertionError("Reused a GCM key and nonce!");
+    } catch (IllegalStateException e) {
+      // good
+    }
+  }
+
+  public void testSessionIdentityChange() throws Exception {
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14159999999", 1);
+
+    for (int i=0;i<3;i++) {
+      SessionRecord aliceSessionRecord = new SessionRecord();
+      SessionRecord bobSessionRecord   = new SessionRecord();
+
+      initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+      SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+      SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+      aliceStore.storeSession(bobAddress, aliceSessionRecord);
+      bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+      for (int j=0;j<2;j++) {
+        byte[]            plaintext  = ("identity " + i + " message " + j).getBytes();
+        CiphertextMessage ciphertext = new SessionCipher(aliceStore, bobAddress).encrypt(plaintext);
+
+        assertTrue(Arrays.equals(plaintext, new SessionCipher(bobStore, aliceAddress).decrypt(new SignalMessage(ciphertext.serialize()))));
+      }
+    }
+  }
+
+  public void testArchivedStateLookup() throws Exception {
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14159999999", 1);
+
+    List<SessionCipher> aliceCiphers  = new ArrayList<>();
+    List<byte[]>        aliceBaseKeys = new ArrayList<>();
+    SessionRecord       bobRecord     = null;
+
+    for (int i=0;i<30;i++) {
+      SessionRecord aliceSessionRecord = new SessionRecord();
+      SessionRecord bobSessionRecord   = new SessionRecord();
+
+      initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+      SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+      SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+      aliceStore.storeSession(bobAddress, aliceSessionRecord);
+      bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+      SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+      new SessionCipher(bobStore, aliceAddress).decrypt(new SignalMessage(aliceCipher.encrypt("first".getBytes()).serialize()));
+
+      SessionState bobState = bobStore.loadSession(aliceAddress).getSessionState();
+
+      if (bobRecord == null) bobRecord = new SessionRecord(bobState);
+      else                   bobRecord.promoteState(bobState);
+
+      aliceCiphers.add(aliceCipher);
+      aliceBaseKeys.add(aliceSessionRecord.getSessionState().getAliceBaseKey());
+    }
+
+    bobRecord = new SessionRecord(bobRecord.serialize());
+
+    assertEquals(29, bobRecord.getPreviousSessionStates().size());
+    assertTrue(bobRecord.hasSessionState(3, aliceBaseKeys.get(3)));
+    assertFalse(bobRecord.hasSessionState(2, aliceBaseKeys.get(3)));
+    assertFalse(bobRecord.hasSessionState(3, Curve.generateKeyPair().getPublicKey().serialize()));
+
+    SignalMessage message = new SignalMessage(aliceCiphers.get(12).encrypt("archived".getBytes()).serialize());
+
+    assertEquals(1, bobRecord.getPreviousSessionStates(message.getSenderRatchetKey()).size());
+    assertEquals(0, bobRecord.getPreviousSessionStates(Curve.generateKeyPair().getPublicKey()).size());
+
+    SignalProtocolStore bobStore = new TestInMemorySignalProtocolStore() {
+      @Override
+      public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+        return true;
+      }
+    };
+    bobStore.storeSession(aliceAddress, bobRecord);
+
+    SessionCipher bobCipher = new SessionCipher(bobStore, aliceAddress);
+    assertTrue(Arrays.equals("archived".getBytes(), bobCipher.decrypt(message)));
+
+    bobRecord = bobStore.loadSession(aliceAddress);
+
+    assertTrue(Arrays.equals(aliceBaseKeys.get(12), bobRecord.getSessionState().getAliceBaseKey()));
+    assertEquals(29, bobRecord.getPreviousSessionStates().size());
+    assertTrue(bobRecord.hasSessionState(3, aliceBaseKeys.get(29)));
+    assertEquals(0, bobRecord.getPreviousSessionStates(message.getSenderRatchetKey()).size());
+
+    SignalMessage unindexed = new SignalMessage(aliceCiphers.get(20).encrypt("fallback".getBytes()).serialize());
+    bobRecord.getPreviousSessionStates().remove(bobRecord.getPreviousSessionStates(unindexed.getSenderRatchetKey()).get(0));
+    assertEquals(0, bobRecord.getPreviousSessionStates(unindexed.getSenderRatchetKey()).size());
+    bobStore.storeSession(aliceAddress, bobRecord);
+
+    try {
+      bobCipher.decrypt(unindexed);
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals("archived".getBytes(),
+                             bobCipher.decrypt(new SignalMessage(aliceCiphers.get(12).encrypt("archived".getBytes()).serialize()))));
+  }
+
+  public void testSkippedKeyCheckpoints() throws Exception {
+    int defaultSize    = runSkippedKeys(false);
+    int checkpointSize = runSkippedKeys(true);
+
+    assertTrue(checkpointSize * 10 < defaultSize);
+  }
+
+  public void testSkippedKeyCheckpointLimits() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(new SignalProtocolAddress("+14158888888", 1), bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", 1));
+
+    bobCipher.setSkippedKeyCheckpoints(true);
+
+    List<CiphertextMessage> inflight = new ArrayList<>();
+
+    for (int i=0;i<2010;i++) {
+      inflight.add(aliceCipher.encrypt(("checkpointed " + i).getBytes()));
+    }
+
+    bobCipher.decrypt(new SignalMessage(inflight.get(1000).serialize()));
+    bobCipher.decrypt(new SignalMessage(inflight.get(inflight.size()-1).serialize()));
+
+    try {
+      bobCipher.decrypt(new SignalMessage(inflight.get(0).serialize()));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException dme) {
+      // good
+    }
+
+    assertTrue(Arrays.equals("checkpointed 8".getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(8).serialize()))));
+    assertTrue(Arrays.equals("checkpointed 1500".getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(1500).serialize()))));
+  }
+
+  public void testSkippedKeyCheckpointsForgetConsumedKeys() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    bobCipher.setSkippedKeyCheckpoints(true);
+
+    List<CiphertextMessage> inflight = new ArrayList<>();
+
+    for (int i=0;i<100;i++) {
+      inflight.add(aliceCipher.encrypt(("skipped " + i).getBytes()));
+    }
+
+    bobCipher.decrypt(new SignalMessage(inflight.get(99).serialize()));
+
+    Chain.MessageKeyCheckpoint first = getReceiverChain(bobStore, aliceAddress).getMessageKeyCheckpoints(0);
+    assertEquals(0, first.getIndex());
+
+    for (int i=0;i<10;i++) {
+      bobCipher.decrypt(new SignalMessage(inflight.get(i).serialize()));
+    }
+
+    Chain.MessageKeyCheckpoint advanced = getReceiverChain(bobStore, aliceAddress).getMessageKeyCheckpoints(0);
+    assertEquals(10, advanced.getIndex());
+    assertEquals(54, advanced.getCount());
+    assertFalse(advanced.getChainKey().equals(first.getChainKey()));
+
+    for (int i=10;i<99;i++) {
+      bobCipher.decrypt(new SignalMessage(inflight.get(i).serialize()));
+    }
+
+    assertEquals(0, getReceiverChain(bobStore, aliceAddress).getMessageKeyCheckpointsCount());
+  }
+
+  public void testSkippedKeyCheckpointsShareKeyLimit() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher      = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher        = new SessionCipher(bobStore, aliceAddress);
+    SessionCipher bobCheckpointing = new SessionCipher(bobStore, aliceAddress);
+
+    bobCheckpointing.setSkippedKeyCheckpoints(true);
+
+    List<CiphertextMessage> inflight = new ArrayList<>();
+
+    for (int i=0;i<2502;i++) {
+      inflight.add(aliceCipher.encrypt(("limited " + i).getBytes()));
+    }
+
+    bobCipher.decrypt(new SignalMessage(inflight.get(1500).serialize()));
+    bobCheckpointing.decrypt(new SignalMessage(inflight.get(2501).serialize()));
+
+    Chain chain = getReceiverChain(bobStore, aliceAddress);
+    int   total = chain.getMessageKeysCount();
+
+    for (Chain.MessageKeyCheckpoint checkpoint : chain.getMessageKeyCheckpointsList()) {
+      total += checkpoint.getCount() - Long.bitCount(checkpoint.getConsumed());
+    }
+
+    assertEquals(2000, total);
+
+    try {
+      bobCipher.decrypt(new SignalMessage(inflight.get(499).serialize()));
+      throw new AssertionError("Evicted message accepted!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals("limited 500".getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(500).serialize()))));
+    assertTrue(Arrays.equals("limited 1501".getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(1501).serialize()))));
+  }
+
+  private Chain getReceiverChain(SignalProtocolStore store, SignalProtocolAddress address) throws Exception {
+    return RecordStructure.parseFrom(store.loadSession(address).serialize()).getCurrentSession().getReceiverChains(0);
+  }
+
+  private int runSkippedKeys(boolean checkpoints) throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+
+    aliceStore.storeSession(new SignalProtocolAddress("+14159999999", 1), aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", 1));
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    bobCipher.setSkippedKeyCheckpoints(checkpoints);
+
+    List<CiphertextMessage> inflight = new ArrayList<>();
+
+    for (int i=0;i<300;i++) {
+      inflight.add(aliceCipher.encrypt(("skipped " + i).getBytes()));
+    }
+
+    assertTrue(Arrays.equals("skipped 299".getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(299).serialize()))));
+
+    int recordSize = bobStore.loadSession(aliceAddress).serialize().length;
+
+    List<Integer> order = new ArrayList<>();
+    for (int i=0;i<299;i++) order.add(i);
+    Collections.shuffle(order, new Random(299));
+
+    for (int i : order) {
+      assertTrue(Arrays.equals(("skipped " + i).getBytes(), bobCipher.decrypt(new SignalMessage(inflight.get(i).serialize()))));
+    }
+
+    for (int i : Arrays.asList(0, 63, 64, 298, 299)) {
+      try {
+        bobCipher.decrypt(new SignalMessage(inflight.get(i).serialize()));
+        throw new AssertionError("Duplicate message accepted: " + i);
+      } catch (DuplicateMessageException e) {
+        // good
+      }
+    }
+
+    return recordSize;
+  }
+
   private void runInteraction(SessionRecord aliceSessionRecord, SessionRecord bobSessionRecord)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException, NoSessionException, UntrustedIdentityException {
     SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
@@ -171,6 +870,12 @@ public class SessionCipherTest extends TestCase {
 
   private void initializeSessionsV3(SessionState aliceSessionState, SessionState bobSessionState)
       throws InvalidKeyException, NoSuchAlgorithmException
+  {
+    initializeSessions(aliceSessionState, bobSessionState, 3);
+  }
+
+  private void initializeSessions(SessionState aliceSessionState, SessionState bobSessionState, int version)
+      throws InvalidKeyException, NoSuchAlgorithmException
   {
     ECKeyPair       aliceIdentityKeyPair = Curve.generateKeyPair();
     IdentityKeyPair aliceIdentityKey     = new IdentityKeyPair(new IdentityKey(aliceIdentityKeyPair.getPublicKey()),
@@ -206,8 +911,7 @@ public class SessionCipherTest extends TestCase {
                                                                            .setTheirBaseKey(aliceBaseKey.getPublicKey())
                                                                            .create();
 
-    RatchetingSession.initializeSession(aliceSessionState, aliceParameters);
-    RatchetingSession.initializeSession(bobSessionState, bobParameters);
+    RatchetingSession.initializeSession(aliceSessionState, version, aliceParameters);
+    RatchetingSession.initializeSession(bobSessionState, version, bobParameters);
   }
-
 }
@@ -0,0 +1,50 @@
+package org.whispersystems.modusa;
+
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECKeyPair;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.PreKeySignalMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.PreKeyBundle;
+import org.whispersystems.modusa.state.PreKeyRecord;
+import org.whispersystems.modusa.state.SignalProtocolStore;
+import org.whispersystems.modusa.state.SignedPreKeyRecord;
+
+public class SessionTestUtil {
+
+  public static final int PRE_KEY_ID        = 31337;
+  public static final int SIGNED_PRE_KEY_ID = 22;
+
+  public static PreKeyBundle createPreKeyBundle(SignalProtocolStore bobStore, int deviceId)
+      throws InvalidKeyException
+  {
+    ECKeyPair bobPreKeyPair       = Curve.generateKeyPair();
+    ECKeyPair bobSignedPreKeyPair = Curve.generateKeyPair();
+    byte[]    bobSignature        = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                             bobSignedPreKeyPair.getPublicKey().serialize());
+
+    PreKeyBundle bobPreKey = new PreKeyBundle(bobStore.getLocalRegistrationId(), deviceId,
+                                              PRE_KEY_ID, bobPreKeyPair.getPublicKey(),
+                                              SIGNED_PRE_KEY_ID, bobSignedPreKeyPair.getPublicKey(), bobSignature,
+                                              bobStore.getIdentityKeyPair().getPublicKey());
+
+    bobStore.storePreKey(PRE_KEY_ID, new PreKeyRecord(PRE_KEY_ID, bobPreKeyPair));
+    bobStore.storeSignedPreKey(SIGNED_PRE_KEY_ID, new SignedPreKeyRecord(SIGNED_PRE_KEY_ID, System.currentTimeMillis(),
+                                                                         bobSignedPreKeyPair, bobSignature));
+
+    return bobPreKey;
+  }
+
+  public static void initializeSession(SignalProtocolStore aliceStore, SignalProtocolAddress aliceAddress,
+                                       SignalProtocolStore bobStore, SignalProtocolAddress bobAddress)
+      throws Exception
+  {
+    new SessionBuilder(aliceStore, bobAddress).process(createPreKeyBundle(bobStore, bobAddress.getDeviceId()));
+
+    CiphertextMessage outgoing = new SessionCipher(aliceStore, bobAddress).encrypt("hello".getBytes());
+    new SessionCipher(bobStore, aliceAddress).decrypt(new PreKeySignalMessage(outgoing.serialize()));
+
+    CiphertextMessage reply = new SessionCipher(bobStore, aliceAddress).encrypt("hello".getBytes());
+    new SessionCipher(aliceStore, bobAddress).decrypt(new SignalMessage(reply.serialize()));
+  }
+}
@@ -0,0 +1,60 @@
+package org.whispersystems.modusa.crypto;
+
+import junit.framework.TestCase;
+
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoPrimitivesTest extends TestCase {
+
+  private static final byte[] KEY  = new byte[32];
+  private static final byte[] IV   = new byte[16];
+  private static final byte[] DATA = "the quick brown fox jumps over the lazy dog".getBytes();
+
+  static {
+    for (int i=0;i<KEY.length;i++) KEY[i] = (byte)i;
+    for (int i=0;i<IV.length;i++)  IV[i]  = (byte)(0xff - i);
+  }
+
+  public void testMatchesFreshInstances() throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+
+    byte[] expectedMac        = mac.doFinal(DATA);
+    byte[] expectedCiphertext = cipher.doFinal(DATA);
+    byte[] expectedDigest     = MessageDigest.getInstance("SHA-512").digest(DATA);
+
+    for (int i=0;i<3;i++) {
+      CryptoPrimitives.getSha512().update(KEY);
+
+      assertTrue(Arrays.equals(expectedMac, CryptoPrimitives.getHmacSha256(KEY).doFinal(DATA)));
+      assertTrue(Arrays.equals(expectedDigest, CryptoPrimitives.getSha512().digest(DATA)));
+      assertTrue(Arrays.equals(expectedCiphertext,
+                               CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+                                                                new IvParameterSpec(IV)).doFinal(DATA)));
+    }
+  }
+
+  public void testProviderSelection() throws Exception {
+    try {
+      CryptoPrimitives.setProvider(Security.getProvider("SunJCE"));
+
+      assertEquals("SunJCE", CryptoPrimitives.getHmacSha256(KEY).getProvider().getName());
+      assertEquals("SunJCE", CryptoPrimitives.getAesCbcCipher(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+                                                              new IvParameterSpec(IV)).getProvider().getName());
+    } finally {
+      CryptoPrimitives.setProvider(null);
+    }
+
+    assertNull(CryptoPrimitives.getProvider());
+  }
+}
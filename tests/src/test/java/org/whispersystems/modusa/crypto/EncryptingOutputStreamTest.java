@@ -0,0 +1,109 @@
+package org.whispersystems.modusa.crypto;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.InvalidMessageException;
+import org.whispersystems.modusa.ratchet.MessageKeys;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class EncryptingOutputStreamTest extends TestCase {
+
+  public void testRoundTrip() throws Exception {
+    MessageKeys keys   = createKeys();
+    Random      random = new Random(1);
+
+    for (int length : new int[] {0, 1, 15, 16, 17, 8191, 8192, 8193, 100000}) {
+      byte[] plaintext = new byte[length];
+      random.nextBytes(plaintext);
+
+      byte[] ciphertext = encrypt(keys, plaintext, 1000);
+      byte[] expected   = CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, keys.getCipherKey(), keys.getIv())
+                                          .doFinal(plaintext);
+
+      assertEquals(expected.length + 32, ciphertext.length);
+      assertTrue(Arrays.equals(expected, Arrays.copyOf(ciphertext, expected.length)));
+      assertTrue(Arrays.equals(plaintext, decrypt(keys, ciphertext, 777)));
+      assertTrue(Arrays.equals(plaintext, decrypt(keys, ciphertext, 1)));
+    }
+  }
+
+  public void testTamperedStream() throws Exception {
+    MessageKeys keys       = createKeys();
+    byte[]      plaintext  = new byte[20000];
+    byte[]      ciphertext = encrypt(keys, plaintext, 4096);
+
+    for (int position : new int[] {0, 10000, ciphertext.length - 33, ciphertext.length - 1}) {
+      byte[] tampered = ciphertext.clone();
+      tampered[position] ^= 0x01;
+
+      assertInvalid(keys, tampered);
+    }
+
+    assertInvalid(keys, Arrays.copyOf(ciphertext, ciphertext.length - 1));
+    assertInvalid(keys, Arrays.copyOf(ciphertext, 31));
+    assertInvalid(keys, Arrays.copyOf(ciphertext, ciphertext.length + 16));
+  }
+
+  private void assertInvalid(MessageKeys keys, byte[] ciphertext) throws Exception {
+    try {
+      decrypt(keys, ciphertext, 4096);
+      throw new AssertionError("Should have failed!");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidMessageException);
+    }
+  }
+
+  private byte[] encrypt(MessageKeys keys, byte[] plaintext, int writeSize) throws IOException {
+    ByteArrayOutputStream  ciphertext = new ByteArrayOutputStream();
+    EncryptingOutputStream out        = new EncryptingOutputStream(ciphertext, keys);
+
+    for (int i=0;i<plaintext.length;i+=writeSize) {
+      if (writeSize == 1) out.write(plaintext[i]);
+      else                out.write(plaintext, i, Math.min(writeSize, plaintext.length - i));
+    }
+
+    out.close();
+    return ciphertext.toByteArray();
+  }
+
+  private byte[] decrypt(MessageKeys keys, byte[] ciphertext, int readSize) throws IOException {
+    InputStream           in        = new DecryptingInputStream(new ByteArrayInputStream(ciphertext), keys);
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+
+    if (readSize == 1) {
+      int read;
+      while ((read = in.read()) != -1) plaintext.write(read);
+    } else {
+      byte[] buffer = new byte[readSize];
+      int    read;
+      while ((read = in.read(buffer)) != -1) plaintext.write(buffer, 0, read);
+    }
+
+    in.close();
+    return plaintext.toByteArray();
+  }
+
+  private MessageKeys createKeys() {
+    Random random    = new Random(2);
+    byte[] cipherKey = new byte[32];
+    byte[] macKey    = new byte[32];
+    byte[] iv        = new byte[16];
+
+    random.nextBytes(cipherKey);
+    random.nextBytes(macKey);
+    random.nextBytes(iv);
+
+    return new MessageKeys(new SecretKeySpec(cipherKey, "AES"), new SecretKeySpec(macKey, "HmacSHA256"),
+                           new IvParameterSpec(iv), 0);
+  }
+}
@@ -0,0 +1,74 @@
+package org.whispersystems.modusa.ecc;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class KeyPairPoolTest extends TestCase {
+
+  public void testHandsOutDistinctKeyPairs() throws Exception {
+    KeyPairPool pool = new KeyPairPool(16);
+
+    try {
+      awaitFull(pool, 16);
+
+      Set<ECPublicKey> seen = new HashSet<>();
+
+      for (int i=0;i<100;i++) {
+        ECKeyPair keyPair = pool.take();
+        assertTrue(seen.add(keyPair.getPublicKey()));
+        assertTrue(Curve.verifySignature(keyPair.getPublicKey(), new byte[] {1, 2, 3},
+                                         Curve.calculateSignature(keyPair.getPrivateKey(), new byte[] {1, 2, 3})));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testShutdown() throws Exception {
+    KeyPairPool pool = new KeyPairPool(4);
+    awaitFull(pool, 4);
+
+    ECKeyPair handedOut = pool.take();
+
+    pool.shutdown();
+
+    assertEquals(0, pool.size());
+    assertFalse(Arrays.equals(new byte[32], handedOut.getPrivateKey().serialize()));
+    assertNotNull(pool.take());
+    assertEquals(0, pool.size());
+  }
+
+  public void testZeroize() throws Exception {
+    ECKeyPair keyPair = Curve.generateKeyPair();
+
+    Curve.zeroize(keyPair);
+    assertTrue(Arrays.equals(new byte[32], keyPair.getPrivateKey().serialize()));
+  }
+
+  public void testEphemeralKeyPool() throws Exception {
+    KeyPairPool pool = new KeyPairPool(8);
+
+    try {
+      Curve.setEphemeralKeyPool(pool);
+      awaitFull(pool, 8);
+
+      assertFalse(Curve.generateEphemeralKeyPair().getPublicKey()
+                       .equals(Curve.generateEphemeralKeyPair().getPublicKey()));
+    } finally {
+      Curve.setEphemeralKeyPool(null);
+      pool.shutdown();
+    }
+  }
+
+  private void awaitFull(KeyPairPool pool, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+
+    while (pool.size() < size) {
+      if (System.currentTimeMillis() > deadline) throw new AssertionError("Pool never filled");
+      Thread.sleep(5);
+    }
+  }
+}
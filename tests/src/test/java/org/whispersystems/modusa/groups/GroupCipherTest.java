@@ -2,20 +2,30 @@ package org.whispersystems.modusa.groups;
 
 import junit.framework.TestCase;
 
+import org.whispersystems.modusa.BatchDecryptionCallback;
+import org.whispersystems.modusa.DecryptionResult;
 import org.whispersystems.modusa.SignalProtocolAddress;
 import org.whispersystems.modusa.DuplicateMessageException;
 import org.whispersystems.modusa.InvalidMessageException;
 import org.whispersystems.modusa.LegacyMessageException;
 import org.whispersystems.modusa.NoSessionException;
 import org.whispersystems.modusa.protocol.SenderKeyDistributionMessage;
+import org.whispersystems.modusa.protocol.SenderKeyMessage;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GroupCipherTest extends TestCase {
 
@@ -68,6 +78,183 @@ public class GroupCipherTest extends TestCase {
     assertTrue(new String(plaintextFromAlice).equals("smert ze smert"));
   }
 
+  public void testByteBufferEncryptDecrypt() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    GroupSessionBuilder aliceSessionBuilder = new GroupSessionBuilder(aliceStore);
+    GroupSessionBuilder bobSessionBuilder   = new GroupSessionBuilder(bobStore);
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    bobSessionBuilder.process(GROUP_SENDER, aliceSessionBuilder.create(GROUP_SENDER));
+
+    byte[]     message    = "smert ze smert".getBytes();
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(GroupCipher.getMaxCiphertextSize(message.length));
+    ByteBuffer plaintext  = ByteBuffer.allocateDirect(ciphertext.capacity());
+
+    int ciphertextLength = aliceGroupCipher.encrypt(ByteBuffer.wrap(message), ciphertext);
+    ciphertext.flip();
+
+    assertEquals(ciphertextLength, ciphertext.remaining());
+    assertEquals(message.length, bobGroupCipher.decrypt(ciphertext, plaintext));
+
+    plaintext.flip();
+    byte[] decrypted = new byte[plaintext.remaining()];
+    plaintext.get(decrypted);
+
+    assertTrue(Arrays.equals(message, decrypted));
+
+    try {
+      aliceGroupCipher.encrypt(ByteBuffer.wrap(message), ByteBuffer.allocate(10));
+      throw new AssertionError("Should have failed!");
+    } catch (BufferOverflowException e) {
+      // good
+    }
+
+    ByteBuffer offsetCiphertext = ByteBuffer.allocate(GroupCipher.getMaxCiphertextSize(message.length) + 3);
+    offsetCiphertext.position(3);
+
+    int offsetLength = aliceGroupCipher.encrypt(ByteBuffer.wrap(message), offsetCiphertext);
+    assertEquals(3 + offsetLength, offsetCiphertext.position());
+
+    byte[] serialized = Arrays.copyOfRange(offsetCiphertext.array(), 3, offsetCiphertext.position());
+    assertTrue(Arrays.equals(message, bobGroupCipher.decrypt(serialized)));
+
+    byte[] next = aliceGroupCipher.encrypt(message);
+    assertTrue(Arrays.equals(message, bobGroupCipher.decrypt(next)));
+  }
+
+  public void testBatchDecrypt() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new SenderKeyDistributionMessage(distributionMessage.serialize()));
+
+    List<SenderKeyMessage> messages = new ArrayList<>();
+
+    for (int i=0;i<20;i++) {
+      messages.add(new SenderKeyMessage(aliceGroupCipher.encrypt(("message " + i).getBytes())));
+    }
+
+    byte[] tampered = messages.get(5).serialize().clone();
+    tampered[tampered.length - 1] ^= 0x01;
+
+    messages.set(5, new SenderKeyMessage(tampered));
+    messages.add(messages.get(3));
+
+    List<DecryptionResult> results = bobGroupCipher.decrypt(messages);
+
+    assertEquals(21, results.size());
+
+    for (int i=0;i<20;i++) {
+      if (i == 5) {
+        assertTrue(results.get(i).getException() instanceof InvalidMessageException);
+      } else {
+        assertEquals("message " + i, new String(results.get(i).getPlaintext()));
+      }
+    }
+
+    assertTrue(results.get(20).getException() instanceof DuplicateMessageException);
+
+    try {
+      bobGroupCipher.decrypt(messages.get(7).serialize());
+      throw new AssertionError("Should be a duplicate!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+
+    assertEquals("message 20", new String(bobGroupCipher.decrypt(aliceGroupCipher.encrypt("message 20".getBytes()))));
+  }
+
+  public void testBatchDecryptRejectingExecutor() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new GroupSessionBuilder(aliceStore).create(GROUP_SENDER));
+
+    List<SenderKeyMessage> messages = new ArrayList<>();
+
+    for (int i=0;i<5;i++) {
+      messages.add(new SenderKeyMessage(aliceGroupCipher.encrypt(("message " + i).getBytes())));
+    }
+
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+
+    List<DecryptionResult> results = bobGroupCipher.decrypt(messages, rejecting, new BatchDecryptionCallback() {
+      @Override
+      public void handlePlaintexts(List<DecryptionResult> results) {}
+    });
+
+    assertEquals(5, results.size());
+
+    for (int i=0;i<5;i++) {
+      assertEquals("message " + i, new String(results.get(i).getPlaintext()));
+    }
+  }
+
+  public void testConcurrentEncrypt() throws Exception {
+    final InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore       bobStore   = new InMemorySenderKeyStore();
+
+    SenderKeyDistributionMessage distribution = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, distribution);
+
+    final List<byte[]>               ciphertexts = new ArrayList<>();
+    final AtomicReference<Throwable> failure     = new AtomicReference<>();
+    Thread[]                         threads     = new Thread[4];
+
+    for (int i=0;i<threads.length;i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            GroupCipher cipher = new GroupCipher(aliceStore, GROUP_SENDER);
+
+            for (int j=0;j<50;j++) {
+              byte[] ciphertext = cipher.encrypt(new byte[16]);
+
+              synchronized (ciphertexts) {
+                ciphertexts.add(ciphertext);
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(200, ciphertexts.size());
+
+    GroupCipher  bobGroupCipher = new GroupCipher(bobStore, GROUP_SENDER);
+    Set<Integer> iterations     = new HashSet<>();
+
+    for (byte[] ciphertext : ciphertexts) {
+      assertTrue(iterations.add(new SenderKeyMessage(ciphertext).getIteration()));
+      bobGroupCipher.decrypt(ciphertext);
+    }
+  }
+
   public void testLargeMessages() throws InvalidMessageException, LegacyMessageException, NoSessionException, DuplicateMessageException {
     InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
     InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
@@ -275,7 +462,6 @@ public class GroupCipherTest extends TestCase {
     }
   }
 
-
   private int randomInt() {
     try {
       return SecureRandom.getInstance("SHA1PRNG").nextInt(Integer.MAX_VALUE);
@@ -4,12 +4,12 @@ import org.whispersystems.modusa.groups.state.SenderKeyRecord;
 import org.whispersystems.modusa.groups.state.SenderKeyStore;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemorySenderKeyStore implements SenderKeyStore {
 
-  private final Map<SenderKeyName, SenderKeyRecord> store = new HashMap<>();
+  private final Map<SenderKeyName, SenderKeyRecord> store = new ConcurrentHashMap<>();
 
   @Override
   public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
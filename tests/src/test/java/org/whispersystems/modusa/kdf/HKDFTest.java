@@ -2,10 +2,52 @@ package org.whispersystems.modusa.kdf;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
 
 public class HKDFTest extends TestCase {
 
+  public void testOutputAtOffset() {
+    Random random = new Random(3);
+    byte[] ikm    = new byte[32];
+    byte[] salt   = new byte[32];
+    byte[] info   = "WhisperMessageKeys".getBytes();
+
+    random.nextBytes(ikm);
+    random.nextBytes(salt);
+
+    for (int version : new int[] {2, 3}) {
+      HKDF kdf = HKDF.createFor(version);
+
+      for (int length=0;length<=100;length++) {
+        byte[] expected = kdf.deriveSecrets(ikm, salt, info, length);
+        byte[] output   = new byte[length + 10];
+
+        Arrays.fill(output, (byte)0x55);
+        kdf.deriveSecrets(ikm, salt, info, output, 7, length);
+
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(output, 7, 7 + length)));
+        assertEquals(0x55, output[6]);
+        assertEquals(0x55, output[7 + length]);
+
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(length + 5), ByteBuffer.allocateDirect(length + 5)}) {
+          buffer.position(5);
+          kdf.deriveSecrets(ikm, salt, info, buffer, length);
+
+          byte[] actual = new byte[length];
+          buffer.position(5);
+          buffer.get(actual);
+
+          assertTrue(Arrays.equals(expected, actual));
+        }
+      }
+
+      assertTrue(Arrays.equals(kdf.deriveSecrets(ikm, new byte[32], info, 80),
+                               kdf.deriveSecrets(ikm, info, 80)));
+    }
+  }
+
   public void testVectorV3() {
     byte[] ikm = {0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b,
                   0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b,
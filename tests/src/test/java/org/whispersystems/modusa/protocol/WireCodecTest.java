@@ -0,0 +1,167 @@
+package org.whispersystems.modusa.protocol;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.InvalidMessageException;
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECKeyPair;
+import org.whispersystems.modusa.util.ByteUtil;
+import org.whispersystems.modusa.util.guava.Optional;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class WireCodecTest extends TestCase {
+
+  private static final int[] VALUES = {0, 1, 127, 128, 16383, 16384, 0xFFFFFF, Integer.MAX_VALUE, -1};
+
+  private final ECKeyPair     ratchetKey  = Curve.generateKeyPair();
+  private final IdentityKey   sender      = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+  private final IdentityKey   receiver    = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+  private final SecretKeySpec macKey      = new SecretKeySpec(new byte[32], "HmacSHA256");
+  private final byte[]        ciphertext  = new byte[160];
+
+  public void testSignalMessageMatchesProtobuf() throws Exception {
+    new Random(1).nextBytes(ciphertext);
+
+    for (int value : VALUES) {
+      SignalMessage              message = createSignalMessage(value, value ^ 0x55, ciphertext);
+      byte[]                     body    = Arrays.copyOfRange(message.serialize(), 1, message.serialize().length - 8);
+      SignalProtos.SignalMessage parsed  = SignalProtos.SignalMessage.parseFrom(body);
+
+      assertTrue(Arrays.equals(body, parsed.toByteArray()));
+      assertEquals(value, parsed.getCounter());
+      assertEquals(value ^ 0x55, parsed.getPreviousCounter());
+      assertTrue(Arrays.equals(ciphertext, parsed.getCiphertext().toByteArray()));
+
+      SignalMessage roundTrip = new SignalMessage(message.serialize());
+
+      assertEquals(value, roundTrip.getCounter());
+      assertEquals(ratchetKey.getPublicKey(), roundTrip.getSenderRatchetKey());
+      assertTrue(Arrays.equals(ciphertext, roundTrip.getBody()));
+      roundTrip.verifyMac(sender, receiver, macKey);
+    }
+  }
+
+  public void testMacPrefix() throws Exception {
+    byte[]        prefix   = SignalMessage.getMacPrefix(sender, receiver);
+    SignalMessage expected = createSignalMessage(5, 4, ciphertext);
+    SignalMessage message  = new SignalMessage(3, macKey, ratchetKey.getPublicKey(), 5, 4, ciphertext, prefix);
+
+    assertTrue(Arrays.equals(expected.serialize(), message.serialize()));
+
+    new SignalMessage(message.serialize()).verifyMac(prefix, macKey);
+
+    try {
+      new SignalMessage(message.serialize()).verifyMac(SignalMessage.getMacPrefix(receiver, sender), macKey);
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  public void testSignalMessageSkipsUnknownFields() throws Exception {
+    byte[] body = SignalProtos.SignalMessage.newBuilder()
+                                            .setRatchetKey(ByteString.copyFrom(ratchetKey.getPublicKey().serialize()))
+                                            .setCounter(7)
+                                            .setCiphertext(ByteString.copyFrom(ciphertext))
+                                            .build().toByteArray();
+
+    byte[] unknown = {(byte)((9 << 3) | 0), (byte)0xff, (byte)0xff, 0x01,
+                      (byte)((10 << 3) | 1), 1, 2, 3, 4, 5, 6, 7, 8,
+                      (byte)((11 << 3) | 2), 2, 9, 9,
+                      (byte)((12 << 3) | 5), 1, 2, 3, 4};
+
+    byte[]        version = {ByteUtil.intsToByteHighAndLow(3, 3)};
+    SignalMessage message = new SignalMessage(ByteUtil.combine(version, unknown, body, new byte[8]));
+
+    assertEquals(7, message.getCounter());
+    assertTrue(Arrays.equals(ciphertext, message.getBody()));
+
+    byte[] truncated = ByteUtil.combine(version, Arrays.copyOf(body, body.length - 1), new byte[8]);
+
+    try {
+      new SignalMessage(truncated);
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    byte[] incomplete = ByteUtil.combine(version, SignalProtos.SignalMessage.newBuilder().setCounter(1).build().toByteArray(), new byte[8]);
+
+    try {
+      new SignalMessage(incomplete);
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  public void testPreKeySignalMessageMatchesProtobuf() throws Exception {
+    SignalMessage message = createSignalMessage(3, 2, ciphertext);
+
+    for (int value : VALUES) {
+      for (Optional<Integer> preKeyId : Arrays.asList(Optional.of(value), Optional.<Integer>absent())) {
+        PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(3, value, preKeyId, value ^ 0x33,
+                                                                    ratchetKey.getPublicKey(), sender, message);
+
+        byte[] body = Arrays.copyOfRange(preKeyMessage.serialize(), 1, preKeyMessage.serialize().length);
+
+        SignalProtos.PreKeySignalMessage.Builder expected = SignalProtos.PreKeySignalMessage.newBuilder()
+            .setRegistrationId(value)
+            .setSignedPreKeyId(value ^ 0x33)
+            .setBaseKey(ByteString.copyFrom(ratchetKey.getPublicKey().serialize()))
+            .setIdentityKey(ByteString.copyFrom(sender.serialize()))
+            .setMessage(ByteString.copyFrom(message.serialize()));
+
+        if (preKeyId.isPresent()) expected.setPreKeyId(preKeyId.get());
+
+        assertTrue(Arrays.equals(expected.build().toByteArray(), body));
+
+        PreKeySignalMessage roundTrip = new PreKeySignalMessage(preKeyMessage.serialize());
+
+        assertEquals(value, roundTrip.getRegistrationId());
+        assertEquals(value ^ 0x33, roundTrip.getSignedPreKeyId());
+        assertEquals(preKeyId, roundTrip.getPreKeyId());
+        assertEquals(sender, roundTrip.getIdentityKey());
+        assertTrue(Arrays.equals(message.serialize(), roundTrip.getWhisperMessage().serialize()));
+        assertTrue(Arrays.equals(ciphertext, roundTrip.getWhisperMessage().getBody()));
+
+        roundTrip.getWhisperMessage().verifyMac(sender, receiver, macKey);
+      }
+    }
+  }
+
+  public void testSenderKeyMessageMatchesProtobuf() throws Exception {
+    ECKeyPair signatureKey = Curve.generateKeyPair();
+
+    for (int value : VALUES) {
+      SenderKeyMessage message = new SenderKeyMessage(value, value ^ 0x77, ciphertext, signatureKey.getPrivateKey());
+      byte[]           body    = Arrays.copyOfRange(message.serialize(), 1, message.serialize().length - 64);
+
+      assertTrue(Arrays.equals(SignalProtos.SenderKeyMessage.newBuilder()
+                                                            .setId(value)
+                                                            .setIteration(value ^ 0x77)
+                                                            .setCiphertext(ByteString.copyFrom(ciphertext))
+                                                            .build().toByteArray(),
+                               body));
+
+      SenderKeyMessage roundTrip = new SenderKeyMessage(message.serialize());
+
+      assertEquals(value, roundTrip.getKeyId());
+      assertEquals(value ^ 0x77, roundTrip.getIteration());
+      assertTrue(Arrays.equals(ciphertext, roundTrip.getCipherText()));
+      roundTrip.verifySignature(signatureKey.getPublicKey());
+    }
+  }
+
+  private SignalMessage createSignalMessage(int counter, int previousCounter, byte[] ciphertext) {
+    return new SignalMessage(3, macKey, ratchetKey.getPublicKey(), counter, previousCounter,
+                             ciphertext, sender, receiver);
+  }
+}
@@ -0,0 +1,90 @@
+package org.whispersystems.modusa.ratchet;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.groups.ratchet.SenderChainKey;
+import org.whispersystems.modusa.kdf.HKDF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ChainWalkerTest extends TestCase {
+
+  public void testWalkMatchesChainKey() {
+    final HKDF kdf = HKDF.createFor(3);
+    byte[]     key = new byte[32];
+    new Random(2).nextBytes(key);
+
+    ChainKey                chainKey = new ChainKey(kdf, key, 5);
+    ChainWalker             walker   = chainKey.walker();
+    final List<MessageKeys> walked   = new ArrayList<>();
+
+    walker.walk(105, new ChainWalker.Callback() {
+      @Override
+      public void onMessageKeySeed(int index, byte[] seed) {
+        walked.add(ChainKey.getMessageKeys(kdf, seed, index));
+      }
+    });
+
+    assertEquals(100, walked.size());
+    assertEquals(105, walker.getIndex());
+
+    for (MessageKeys messageKeys : walked) {
+      MessageKeys expected = chainKey.getMessageKeys();
+
+      assertEquals(expected.getCounter(), messageKeys.getCounter());
+      assertEquals(expected.getCipherKey(), messageKeys.getCipherKey());
+      assertEquals(expected.getMacKey(), messageKeys.getMacKey());
+
+      chainKey = chainKey.getNextChainKey();
+    }
+
+    assertTrue(Arrays.equals(chainKey.getKey(), walker.getChainKey()));
+
+    walker.advance(10);
+
+    for (int i=0;i<10;i++) {
+      chainKey = chainKey.getNextChainKey();
+    }
+
+    assertEquals(chainKey.getIndex(), walker.getIndex());
+    assertTrue(Arrays.equals(chainKey.getKey(), walker.getChainKey()));
+  }
+
+  public void testWalkMatchesSenderChainKey() {
+    byte[] key = new byte[45];
+    new Random(3).nextBytes(key);
+
+    SenderChainKey     chainKey = new SenderChainKey(0, key);
+    ChainWalker        walker   = chainKey.walker();
+    final List<byte[]> seeds    = new ArrayList<>();
+
+    walker.walk(20, new ChainWalker.Callback() {
+      @Override
+      public void onMessageKeySeed(int index, byte[] seed) {
+        seeds.add(seed.clone());
+      }
+    });
+
+    for (byte[] seed : seeds) {
+      assertTrue(Arrays.equals(chainKey.getSenderMessageKey().getSeed(), seed));
+      chainKey = chainKey.getNext();
+    }
+
+    assertTrue(Arrays.equals(chainKey.getSeed(), walker.getChainKey()));
+  }
+
+  public void testClear() {
+    byte[] key = new byte[32];
+    new Random(4).nextBytes(key);
+
+    ChainWalker walker = new ChainWalker(key, 0);
+    walker.advance(3);
+    walker.clear();
+
+    assertEquals(0, walker.getChainKey().length);
+    assertFalse(Arrays.equals(new byte[32], key));
+  }
+}
@@ -0,0 +1,171 @@
+package org.whispersystems.modusa.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.IdentityKey;
+import org.whispersystems.modusa.IdentityKeyPair;
+import org.whispersystems.modusa.SessionCipher;
+import org.whispersystems.modusa.SessionTestUtil;
+import org.whispersystems.modusa.SignalProtocolAddress;
+import org.whispersystems.modusa.TestInMemoryIdentityKeyStore;
+import org.whispersystems.modusa.TestInMemorySignalProtocolStore;
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.state.IdentityKeyStore.Direction;
+
+import java.util.Arrays;
+
+public class CachingIdentityKeyStoreTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  public void testTrustDecisionsCached() {
+    CountingIdentityKeyStore counting = new CountingIdentityKeyStore(new TestInMemoryIdentityKeyStore());
+    CachingIdentityKeyStore  caching  = new CachingIdentityKeyStore(counting);
+    IdentityKey              identity = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+
+    for (int i=0;i<10;i++) {
+      assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+    }
+
+    assertEquals(1, counting.trustChecks);
+
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.RECEIVING));
+    assertEquals(2, counting.trustChecks);
+
+    assertTrue(caching.saveIdentity(BOB_ADDRESS, identity));
+
+    for (int i=0;i<10;i++) {
+      assertFalse(caching.saveIdentity(BOB_ADDRESS, identity));
+    }
+
+    assertEquals(1, counting.saves);
+
+    IdentityKey changed = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+
+    assertFalse(caching.isTrustedIdentity(BOB_ADDRESS, changed, Direction.SENDING));
+    assertFalse(caching.isTrustedIdentity(BOB_ADDRESS, changed, Direction.SENDING));
+    assertEquals(4, counting.trustChecks);
+
+    assertTrue(caching.saveIdentity(BOB_ADDRESS, changed));
+    assertEquals(2, counting.saves);
+
+    assertFalse(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, changed, Direction.SENDING));
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, changed, Direction.SENDING));
+    assertEquals(6, counting.trustChecks);
+  }
+
+  public void testInvalidate() {
+    CountingIdentityKeyStore counting = new CountingIdentityKeyStore(new TestInMemoryIdentityKeyStore());
+    CachingIdentityKeyStore  caching  = new CachingIdentityKeyStore(counting);
+    IdentityKey              identity = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    IdentityKey              changed  = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+
+    caching.saveIdentity(BOB_ADDRESS, identity);
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+
+    counting.saveIdentity(BOB_ADDRESS, changed);
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+
+    caching.invalidate(BOB_ADDRESS);
+
+    assertFalse(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+    assertTrue(caching.saveIdentity(BOB_ADDRESS, identity));
+    assertTrue(caching.isTrustedIdentity(BOB_ADDRESS, identity, Direction.SENDING));
+
+    int saves = counting.saves;
+
+    caching.invalidateAll();
+    caching.saveIdentity(BOB_ADDRESS, identity);
+
+    assertEquals(saves + 1, counting.saves);
+  }
+
+  public void testBounded() {
+    CountingIdentityKeyStore counting = new CountingIdentityKeyStore(new TestInMemoryIdentityKeyStore());
+    CachingIdentityKeyStore  caching  = new CachingIdentityKeyStore(counting, 2);
+    IdentityKey              identity = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+
+    for (int i=0;i<5;i++) {
+      assertTrue(caching.isTrustedIdentity(new SignalProtocolAddress("+1415000000" + i, 1), identity, Direction.SENDING));
+    }
+
+    assertEquals(5, counting.trustChecks);
+
+    assertTrue(caching.isTrustedIdentity(new SignalProtocolAddress("+14150000004", 1), identity, Direction.SENDING));
+    assertEquals(5, counting.trustChecks);
+
+    for (int i=0;i<5;i++) {
+      assertTrue(caching.isTrustedIdentity(new SignalProtocolAddress("+1415000000" + i, 1), identity, Direction.SENDING));
+    }
+
+    assertTrue(counting.trustChecks >= 8);
+  }
+
+  public void testSessionCipherSteadyState() throws Exception {
+    SignalProtocolStore      aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore      bobStore   = new TestInMemorySignalProtocolStore();
+    CountingIdentityKeyStore counting   = new CountingIdentityKeyStore(aliceStore);
+    CachingIdentityKeyStore  caching    = new CachingIdentityKeyStore(counting);
+
+    SessionTestUtil.initializeSession(aliceStore, ALICE_ADDRESS, bobStore, BOB_ADDRESS);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, aliceStore, aliceStore, caching, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    for (int i=0;i<50;i++) {
+      byte[]            plaintext  = ("message " + i).getBytes();
+      CiphertextMessage ciphertext = aliceCipher.encrypt(plaintext);
+
+      assertTrue(Arrays.equals(plaintext, bobCipher.decrypt(new SignalMessage(ciphertext.serialize()))));
+
+      CiphertextMessage reply = bobCipher.encrypt(plaintext);
+      assertTrue(Arrays.equals(plaintext, aliceCipher.decrypt(new SignalMessage(reply.serialize()))));
+    }
+
+    assertEquals(2, counting.trustChecks);
+    assertEquals(1, counting.saves);
+  }
+
+  private static class CountingIdentityKeyStore implements IdentityKeyStore {
+
+    private final IdentityKeyStore identityKeyStore;
+
+    private int trustChecks;
+    private int saves;
+
+    private CountingIdentityKeyStore(IdentityKeyStore identityKeyStore) {
+      this.identityKeyStore = identityKeyStore;
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+      return identityKeyStore.getIdentityKeyPair();
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+      return identityKeyStore.getLocalRegistrationId();
+    }
+
+    @Override
+    public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+      saves++;
+      return identityKeyStore.saveIdentity(address, identityKey);
+    }
+
+    @Override
+    public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+      trustChecks++;
+      return identityKeyStore.isTrustedIdentity(address, identityKey, direction);
+    }
+
+    @Override
+    public IdentityKey getIdentity(SignalProtocolAddress address) {
+      return identityKeyStore.getIdentity(address);
+    }
+  }
+}
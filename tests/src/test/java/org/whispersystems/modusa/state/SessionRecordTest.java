@@ -0,0 +1,215 @@
+package org.whispersystems.modusa.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.SessionBuilder;
+import org.whispersystems.modusa.SessionCipher;
+import org.whispersystems.modusa.SessionTestUtil;
+import org.whispersystems.modusa.SignalProtocolAddress;
+import org.whispersystems.modusa.TestInMemorySignalProtocolStore;
+import org.whispersystems.modusa.ecc.Curve;
+import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.kdf.HKDF;
+import org.whispersystems.modusa.protocol.CiphertextMessage;
+import org.whispersystems.modusa.protocol.PreKeySignalMessage;
+import org.whispersystems.modusa.protocol.SignalMessage;
+import org.whispersystems.modusa.ratchet.ChainKey;
+import org.whispersystems.modusa.state.SessionRecord.Modification;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SessionRecordTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  public void testModification() throws Exception {
+    SessionRecord record = new SessionRecord();
+    assertEquals(Modification.ARCHIVED_STATES, record.getModification());
+
+    record.getSessionState().setSessionVersion(3);
+    record.getSessionState().setAliceBaseKey(Curve.generateKeyPair().getPublicKey().serialize());
+    record.archiveCurrentState();
+    record.getSessionState().setSessionVersion(3);
+
+    record = new SessionRecord(record.serialize());
+    assertEquals(Modification.NONE, record.getModification());
+
+    record.getSessionState().setPreviousCounter(5);
+    assertEquals(Modification.CURRENT_STATE, record.getModification());
+
+    record.markClean();
+    assertEquals(Modification.NONE, record.getModification());
+
+    record.setState(new SessionState(record.getSessionState()));
+    assertEquals(Modification.CURRENT_STATE, record.getModification());
+
+    record.markClean();
+    record.getPreviousSessionStates().get(0).setPreviousCounter(7);
+    assertEquals(Modification.ARCHIVED_STATES, record.getModification());
+
+    record.markClean();
+    record.getPreviousSessionStates().remove(0);
+    assertEquals(Modification.ARCHIVED_STATES, record.getModification());
+
+    record.markClean();
+    record.archiveCurrentState();
+    assertEquals(Modification.ARCHIVED_STATES, record.getModification());
+  }
+
+  public void testPartialSerialization() throws Exception {
+    SessionRecord record = new SessionRecord();
+    byte[]        first  = Curve.generateKeyPair().getPublicKey().serialize();
+    byte[]        second = Curve.generateKeyPair().getPublicKey().serialize();
+
+    record.getSessionState().setSessionVersion(3);
+    record.getSessionState().setAliceBaseKey(first);
+    record.archiveCurrentState();
+    record.getSessionState().setSessionVersion(3);
+    record.getSessionState().setAliceBaseKey(second);
+
+    SessionRecord reassembled = new SessionRecord(record.serializeCurrentState(), record.serializePreviousStates());
+
+    assertEquals(Modification.NONE, reassembled.getModification());
+    assertTrue(Arrays.equals(record.serialize(), reassembled.serialize()));
+    assertTrue(Arrays.equals(second, reassembled.getSessionState().getAliceBaseKey()));
+    assertTrue(reassembled.hasSessionState(3, first));
+
+    SessionRecord currentOnly = new SessionRecord(record.serializeCurrentState(), null);
+    assertTrue(currentOnly.getPreviousSessionStates().isEmpty());
+  }
+
+  public void testMostRecentlyUsedOrder() throws Exception {
+    SessionRecord record      = new SessionRecord();
+    byte[][]      baseKeys    = new byte[3][];
+    ECPublicKey[] ratchetKeys = new ECPublicKey[3];
+
+    for (int i=0;i<3;i++) {
+      baseKeys[i]    = Curve.generateKeyPair().getPublicKey().serialize();
+      ratchetKeys[i] = Curve.generateKeyPair().getPublicKey();
+
+      record.getSessionState().setSessionVersion(3);
+      record.getSessionState().setAliceBaseKey(baseKeys[i]);
+      record.getSessionState().addReceiverChain(ratchetKeys[i], new ChainKey(HKDF.createFor(3), new byte[32], 0));
+      record.archiveCurrentState();
+    }
+
+    List<SessionState> previousStates = record.getPreviousSessionStates();
+    SessionState       oldest         = previousStates.get(2);
+    SessionState       middle         = previousStates.get(1);
+
+    assertEquals(Arrays.asList(oldest), record.getPreviousSessionStates(ratchetKeys[0]));
+    assertSame(oldest, previousStates.get(0));
+
+    assertTrue(record.hasSessionState(3, baseKeys[1]));
+    assertSame(middle, previousStates.get(0));
+    assertSame(oldest, previousStates.get(1));
+
+    assertEquals(Arrays.asList(oldest), record.getPreviousSessionStates(ratchetKeys[0]));
+    assertSame(oldest, previousStates.get(0));
+  }
+
+  public void testPartialSessionStore() throws Exception {
+    SignalProtocolStore         aliceStore        = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore         bobStore          = new TestInMemorySignalProtocolStore();
+    PartialInMemorySessionStore aliceSessionStore = new PartialInMemorySessionStore();
+
+    initializeSession(aliceStore, aliceSessionStore, bobStore);
+
+    assertEquals(1, aliceSessionStore.fullWrites);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceSessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    CiphertextMessage reply = bobCipher.encrypt("hello".getBytes());
+    aliceCipher.decrypt(new SignalMessage(reply.serialize()));
+
+    for (int i=0;i<20;i++) {
+      byte[]            plaintext  = ("message " + i).getBytes();
+      CiphertextMessage ciphertext = aliceCipher.encrypt(plaintext);
+
+      assertTrue(Arrays.equals(plaintext, bobCipher.decrypt(new SignalMessage(ciphertext.serialize()))));
+
+      reply = bobCipher.encrypt(plaintext);
+      assertTrue(Arrays.equals(plaintext, aliceCipher.decrypt(new SignalMessage(reply.serialize()))));
+    }
+
+    assertEquals(1, aliceSessionStore.fullWrites);
+    assertEquals(42, aliceSessionStore.partialWrites);
+
+    new SessionBuilder(aliceSessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(SessionTestUtil.createPreKeyBundle(bobStore, 1));
+
+    assertEquals(2, aliceSessionStore.fullWrites);
+    assertEquals(1, aliceSessionStore.loadSession(BOB_ADDRESS).getPreviousSessionStates().size());
+  }
+
+  private void initializeSession(SignalProtocolStore aliceStore, SessionStore aliceSessionStore,
+                                 SignalProtocolStore bobStore)
+      throws Exception
+  {
+    new SessionBuilder(aliceSessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(SessionTestUtil.createPreKeyBundle(bobStore, 1));
+
+    CiphertextMessage outgoing = new SessionCipher(aliceSessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).encrypt("hello".getBytes());
+    new SessionCipher(bobStore, ALICE_ADDRESS).decrypt(new PreKeySignalMessage(outgoing.serialize()));
+  }
+
+  private static class PartialInMemorySessionStore implements PartialSessionStore {
+
+    private final Map<SignalProtocolAddress, byte[]> currentStates  = new HashMap<>();
+    private final Map<SignalProtocolAddress, byte[]> previousStates = new HashMap<>();
+
+    private int fullWrites;
+    private int partialWrites;
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+      try {
+        if (currentStates.containsKey(address)) {
+          return new SessionRecord(currentStates.get(address), previousStates.get(address));
+        } else {
+          return new SessionRecord();
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+      throw new AssertionError("Not used");
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      fullWrites++;
+      currentStates.put(address, record.serializeCurrentState());
+      previousStates.put(address, record.serializePreviousStates());
+    }
+
+    @Override
+    public void storeCurrentSessionState(SignalProtocolAddress address, SessionRecord record) {
+      partialWrites++;
+      currentStates.put(address, record.serializeCurrentState());
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+      return currentStates.containsKey(address);
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+      currentStates.remove(address);
+      previousStates.remove(address);
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+      throw new AssertionError("Not used");
+    }
+  }
+}
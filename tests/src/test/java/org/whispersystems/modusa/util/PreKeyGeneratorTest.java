@@ -0,0 +1,69 @@
+package org.whispersystems.modusa.util;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.modusa.ecc.ECPublicKey;
+import org.whispersystems.modusa.state.PreKeyRecord;
+import org.whispersystems.modusa.state.impl.InMemoryPreKeyStore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+public class PreKeyGeneratorTest extends TestCase {
+
+  public void testBatches() throws Exception {
+    final List<Integer>      sizes   = new ArrayList<>();
+    final List<PreKeyRecord> records = new ArrayList<>();
+
+    new PreKeyGenerator(new ForkJoinPool(), 40).generate(7, 100, new PreKeyGenerator.BatchCallback() {
+      @Override
+      public void onBatch(List<PreKeyRecord> batch) {
+        sizes.add(batch.size());
+        records.addAll(batch);
+      }
+    });
+
+    assertEquals(3, sizes.size());
+    assertEquals(40, (int)sizes.get(0));
+    assertEquals(40, (int)sizes.get(1));
+    assertEquals(20, (int)sizes.get(2));
+
+    Set<ECPublicKey> keys = new HashSet<>();
+
+    for (int i=0;i<records.size();i++) {
+      assertEquals(7 + i, records.get(i).getId());
+      assertTrue(keys.add(records.get(i).getKeyPair().getPublicKey()));
+    }
+  }
+
+  public void testWraparound() throws Exception {
+    List<PreKeyRecord> records = KeyHelper.generatePreKeys(Medium.MAX_VALUE - 2, 4);
+
+    assertEquals(Medium.MAX_VALUE - 2, records.get(0).getId());
+    assertEquals(Medium.MAX_VALUE - 1, records.get(1).getId());
+    assertEquals(1, records.get(2).getId());
+    assertEquals(2, records.get(3).getId());
+
+    assertEquals(Integer.MAX_VALUE % (Medium.MAX_VALUE - 1) + 1, PreKeyGenerator.getPreKeyId(Integer.MAX_VALUE, 1));
+    assertTrue(PreKeyGenerator.getPreKeyId(Integer.MAX_VALUE, Integer.MAX_VALUE) > 0);
+  }
+
+  public void testStore() throws Exception {
+    InMemoryPreKeyStore store = new InMemoryPreKeyStore();
+
+    new PreKeyGenerator(new ForkJoinPool(), 16).generate(1, 50, store);
+
+    for (int i=1;i<=50;i++) {
+      assertTrue(store.containsPreKey(i));
+    }
+
+    assertFalse(store.containsPreKey(51));
+  }
+
+  public void testEmpty() throws Exception {
+    assertTrue(KeyHelper.generatePreKeys(1, 0).isEmpty());
+  }
+}